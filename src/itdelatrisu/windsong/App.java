@@ -21,6 +21,7 @@ import org.newdawn.slick.util.ResourceLoader;
 
 import itdelatrisu.windsong.leap.LeapController;
 import itdelatrisu.windsong.leap.LeapListener;
+import itdelatrisu.windsong.states.Calibration;
 import itdelatrisu.windsong.states.Game;
 import itdelatrisu.windsong.states.GameOver;
 import itdelatrisu.windsong.states.GameRanking;
@@ -39,7 +40,8 @@ public class App extends StateBasedGame implements LeapListener {
 		STATE_TRAINING      = 2,
 		STATE_GAME          = 3,
 		STATE_GAMERANKING   = 4,
-		STATE_GAMEOVER      = 5;
+		STATE_GAMEOVER      = 5,
+		STATE_CALIBRATION   = 6;
 
 	/** Server socket for restricting the program to a single instance. */
 	private static ServerSocket SERVER_SOCKET;
@@ -61,6 +63,7 @@ public class App extends StateBasedGame implements LeapListener {
 		addState(new Game(STATE_GAME));
 		addState(new GameRanking(STATE_GAMERANKING));
 		addState(new GameOver(STATE_GAMEOVER));
+		addState(new Calibration(STATE_CALIBRATION));
 	}
 
 	/**
@@ -202,7 +205,7 @@ public class App extends StateBasedGame implements LeapListener {
 		}
 	
 		@Override
-		public void onHit(int pos) {}
+		public void onHit(int pos, long time) {}
 		
 		@Override
 		public void onPos(boolean leftHand, int pos) {}
@@ -3,14 +3,22 @@ package itdelatrisu.windsong;
 import org.lwjgl.opengl.Display;
 import org.newdawn.slick.AppGameContainer;
 import org.newdawn.slick.Game;
+import org.newdawn.slick.Graphics;
+import org.newdawn.slick.Input;
+import org.newdawn.slick.Music;
 import org.newdawn.slick.SlickException;
 import org.newdawn.slick.opengl.InternalTextureLoader;
+import org.newdawn.slick.opengl.renderer.SGL;
 
 import itdelatrisu.windsong.audio.MusicController;
 import itdelatrisu.windsong.leap.LeapController;
+import itdelatrisu.windsong.map.MapAnalyzer;
+import itdelatrisu.windsong.map.MapConverter;
+import itdelatrisu.windsong.map.MapWatcher;
 
 /**
- * AppGameContainer extension that sends critical errors to ErrorHandler.
+ * AppGameContainer extension that sends critical errors to ErrorHandler,
+ * and times each phase of the game loop (see {@link FrameTimer}).
  */
 public class Container extends AppGameContainer {
 	/** SlickException causing game failure. */
@@ -67,7 +75,9 @@ public class Container extends AppGameContainer {
 	@Override
 	protected void gameLoop() throws SlickException {
 		int delta = getDelta();
-		if (!Display.isVisible() && updateOnlyOnVisible) {
+		boolean visible = Display.isVisible() || !updateOnlyOnVisible;
+		FrameTimer.beginFrame();
+		if (!visible) {
 			try { Thread.sleep(100); } catch (Exception e) {}
 		} else {
 			try {
@@ -80,12 +90,92 @@ public class Container extends AppGameContainer {
 		}
 		updateFPS();
 		Display.update();
+		if (visible) {
+			FrameTimer.mark(FrameTimer.Phase.DISPLAY);
+			FrameTimer.endFrame();
+		}
 		if (Display.isCloseRequested()) {
 			if (game.closeRequested())
 				running = false;
 		}
 	}
 
+	/**
+	 * Same as {@link org.newdawn.slick.GameContainer#updateAndRender(int)},
+	 * but marks the end of each phase in {@link FrameTimer}, and exports the
+	 * frame timing when F11 is pressed.
+	 */
+	@Override
+	protected void updateAndRender(int delta) throws SlickException {
+		if (smoothDeltas) {
+			if (getFPS() != 0)
+				delta = 1000 / getFPS();
+		}
+
+		input.poll(width, height);
+		if (input.isKeyPressed(Input.KEY_F11))
+			FrameTimer.export();
+		FrameTimer.mark(FrameTimer.Phase.INPUT);
+
+		Music.poll(delta);
+		FrameTimer.mark(FrameTimer.Phase.MUSIC);
+
+		if (!paused) {
+			storedDelta += delta;
+			if (storedDelta >= minimumLogicInterval) {
+				try {
+					if (maximumLogicInterval != 0) {
+						long cycles = storedDelta / maximumLogicInterval;
+						for (int i = 0; i < cycles; i++)
+							game.update(this, (int) maximumLogicInterval);
+
+						int remainder = (int) (storedDelta % maximumLogicInterval);
+						if (remainder > minimumLogicInterval) {
+							game.update(this, (int) (remainder % maximumLogicInterval));
+							storedDelta = 0;
+						} else
+							storedDelta = remainder;
+					} else {
+						game.update(this, (int) storedDelta);
+						storedDelta = 0;
+					}
+				} catch (Throwable e) {
+					throw new SlickException("Game.update() failure.", e);
+				}
+			}
+		} else
+			game.update(this, 0);
+		FrameTimer.mark(FrameTimer.Phase.UPDATE);
+
+		if (hasFocus() || getAlwaysRender()) {
+			if (clearEachFrame)
+				GL.glClear(SGL.GL_COLOR_BUFFER_BIT | SGL.GL_DEPTH_BUFFER_BIT);
+
+			GL.glLoadIdentity();
+
+			Graphics graphics = getGraphics();
+			graphics.resetTransform();
+			graphics.resetFont();
+			graphics.resetLineWidth();
+			graphics.setAntiAlias(false);
+			try {
+				game.render(this, graphics);
+			} catch (Throwable e) {
+				throw new SlickException("Game.render() failure.", e);
+			}
+			graphics.resetTransform();
+
+			if (isShowingFPS())
+				getDefaultFont().drawString(10, 10, "FPS: " + recordedFPS);
+
+			GL.flush();
+		}
+		FrameTimer.mark(FrameTimer.Phase.RENDER);
+
+		if (targetFPS != -1)
+			Display.sync(targetFPS);
+	}
+
 	/**
 	 * Actions to perform before destroying the game container.
 	 */
@@ -93,6 +183,14 @@ public class Container extends AppGameContainer {
 		// save user options
 		Options.saveOptions();
 
+		// stop watching the map directory
+		MapWatcher.stop();
+		MapAnalyzer.stop();
+		MapConverter.stop();
+
+		// write pending scores
+		ScoreDB.stop();
+
 		// destroy images
 		InternalTextureLoader.get().clear();
 
@@ -0,0 +1,351 @@
+package itdelatrisu.windsong;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.newdawn.slick.Color;
+import org.newdawn.slick.Graphics;
+import org.newdawn.slick.util.Log;
+
+import itdelatrisu.windsong.ui.Colors;
+import itdelatrisu.windsong.ui.Fonts;
+import itdelatrisu.windsong.ui.UI;
+
+/**
+ * Per-phase frame timing.
+ * <p>
+ * Each frame is split into phases (see {@link Phase}), and the time spent
+ * in each phase is counted in a fixed-size histogram.  Recording a frame
+ * does not create any objects or take any locks, so it is always on: the
+ * totals since startup can be exported to a CSV file at any time, and the
+ * overlay shows the percentiles over the last second.
+ */
+public class FrameTimer {
+	/** Frame phases. */
+	public enum Phase {
+		INPUT ("Input"),
+		MUSIC ("Music"),
+		UPDATE ("Update"),
+		RENDER ("Render"),
+		DISPLAY ("Display"),
+		GC ("GC"),
+		FRAME ("Frame");
+
+		/** The phase name. */
+		private final String name;
+
+		/** Times since startup. */
+		private final Histogram total = new Histogram();
+
+		/** Times since the last overlay refresh. */
+		private final Histogram recent = new Histogram();
+
+		/**
+		 * Constructor.
+		 * @param name the phase name
+		 */
+		Phase(String name) { this.name = name; }
+
+		/** Returns the phase name. */
+		public String getName() { return name; }
+
+		/**
+		 * Adds a time to the histograms.
+		 * @param nanos the time, in ns
+		 */
+		private void add(long nanos) {
+			total.add(nanos);
+			recent.add(nanos);
+		}
+	}
+
+	/**
+	 * A histogram of times, with fixed-width bins (times beyond the range
+	 * are counted in the last bin).  It can be updated and read from any
+	 * thread without locking; a reader may see a frame that is only partly
+	 * counted.
+	 */
+	private static class Histogram {
+		/** Width of a histogram bin, in ns. */
+		private static final long BIN_WIDTH = 50000L;
+
+		/** Number of histogram bins (covering 0-100ms). */
+		private static final int BIN_COUNT = 2000;
+
+		/** The histogram bins. */
+		private final AtomicIntegerArray bins = new AtomicIntegerArray(BIN_COUNT);
+
+		/** Number of times. */
+		private final AtomicLong count = new AtomicLong();
+
+		/** Sum of the times, in ns. */
+		private final AtomicLong sum = new AtomicLong();
+
+		/** The largest time, in ns. */
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Adds a time.
+		 * @param nanos the time, in ns
+		 */
+		public void add(long nanos) {
+			bins.incrementAndGet((int) Math.min(nanos / BIN_WIDTH, BIN_COUNT - 1));
+			count.incrementAndGet();
+			sum.addAndGet(nanos);
+			long m;
+			while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+				;
+		}
+
+		/** Resets all counts. */
+		public void clear() {
+			for (int i = 0; i < BIN_COUNT; i++)
+				bins.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+
+		/** Returns the number of times. */
+		public long getCount() { return count.get(); }
+
+		/** Returns the mean time, in ms. */
+		public double getMean() {
+			long n = count.get();
+			return (n > 0) ? sum.get() / 1e6 / n : 0;
+		}
+
+		/** Returns the largest time, in ms. */
+		public double getMax() { return max.get() / 1e6; }
+
+		/**
+		 * Returns a percentile of the times (the upper edge of its bin,
+		 * but at most the largest time).
+		 * @param p the percentile [0, 100]
+		 * @return the time, in ms (0 if there are no times)
+		 */
+		public double getPercentile(double p) {
+			long total = 0;
+			for (int i = 0; i < BIN_COUNT; i++)
+				total += bins.get(i);
+			if (total == 0)
+				return 0;
+			long rank = Math.max((long) Math.ceil(total * p / 100.0), 1), seen = 0;
+			for (int i = 0; i < BIN_COUNT; i++) {
+				seen += bins.get(i);
+				if (seen >= rank)
+					return Math.min((i + 1) * BIN_WIDTH / 1e6, getMax());
+			}
+			return getMax();
+		}
+
+		/** Returns the count in a bin. */
+		public int getBin(int i) { return bins.get(i); }
+	}
+
+	/** Interval between overlay refreshes, in ms. */
+	private static final int OVERLAY_INTERVAL = 1000;
+
+	/** Percentiles exported to CSV files. */
+	private static final double[] EXPORT_PERCENTILES = { 50, 90, 99, 99.9 };
+
+	/** Garbage collectors (to measure collection time). */
+	private static final List<GarbageCollectorMXBean> GC_BEANS = ManagementFactory.getGarbageCollectorMXBeans();
+
+	/** The frame start time, from {@link System#nanoTime()}. */
+	private static long frameStart;
+
+	/** The end time of the last phase, from {@link System#nanoTime()}. */
+	private static long lastMark;
+
+	/** Total garbage collection time at the last frame end, in ms. */
+	private static long lastGCTime = -1;
+
+	/** The last overlay refresh time, from {@link System#nanoTime()}. */
+	private static long overlayTime;
+
+	/** The overlay text, by row and column (or null if not yet built). */
+	private static String[][] overlay;
+
+	// This class should not be instantiated.
+	private FrameTimer() {}
+
+	/**
+	 * Starts timing a frame.
+	 */
+	public static void beginFrame() {
+		frameStart = lastMark = System.nanoTime();
+	}
+
+	/**
+	 * Ends a phase of the current frame (started by the end of the previous phase).
+	 * @param phase the phase
+	 */
+	public static void mark(Phase phase) {
+		long time = System.nanoTime();
+		phase.add(time - lastMark);
+		lastMark = time;
+	}
+
+	/**
+	 * Ends the current frame, adding the frame time and the garbage
+	 * collection time since the last frame.  The collection time includes
+	 * concurrent collections, and has a resolution of 1ms.
+	 */
+	public static void endFrame() {
+		Phase.FRAME.add(System.nanoTime() - frameStart);
+		long gcTime = getGCTime();
+		if (lastGCTime != -1)
+			Phase.GC.add((gcTime - lastGCTime) * 1000000L);
+		lastGCTime = gcTime;
+	}
+
+	/**
+	 * Returns the total garbage collection time, in ms.
+	 */
+	private static long getGCTime() {
+		long time = 0;
+		for (int i = 0, n = GC_BEANS.size(); i < n; i++)
+			time += Math.max(GC_BEANS.get(i).getCollectionTime(), 0);
+		return time;
+	}
+
+	/**
+	 * Draws the percentiles of each phase over the last second.
+	 * @param g the graphics context
+	 * @param x the left x coordinate
+	 * @param y the top y coordinate
+	 */
+	public static void draw(Graphics g, float x, float y) {
+		// rebuild the text once per interval
+		long time = System.nanoTime();
+		if (overlay == null || time - overlayTime >= OVERLAY_INTERVAL * 1000000L) {
+			overlayTime = time;
+			Phase[] phases = Phase.values();
+			overlay = new String[phases.length + 1][];
+			overlay[0] = new String[] { "ms", "p50", "p99", "max" };
+			for (int i = 0; i < phases.length; i++) {
+				Histogram h = phases[i].recent;
+				overlay[i + 1] = new String[] {
+					phases[i].getName(),
+					String.format("%.2f", h.getPercentile(50)),
+					String.format("%.2f", h.getPercentile(99)),
+					String.format("%.2f", h.getMax())
+				};
+				h.clear();
+			}
+		}
+
+		// name column, then right-aligned value columns
+		int lineHeight = Fonts.SMALL.getLineHeight();
+		float nameWidth = Fonts.SMALL.getWidth("Display") + lineHeight;
+		float valueWidth = Fonts.SMALL.getWidth("000.00") + lineHeight;
+		g.setColor(Colors.BLACK_BG_FOCUS);
+		g.fillRect(x, y, nameWidth + valueWidth * 3 + lineHeight, lineHeight * (overlay.length + 1));
+		float textX = x + lineHeight / 2f, textY = y + lineHeight / 2f;
+		for (int i = 0; i < overlay.length; i++, textY += lineHeight) {
+			String[] row = overlay[i];
+			Fonts.SMALL.drawString(textX, textY, row[0], Color.white);
+			for (int j = 1; j < row.length; j++)
+				Fonts.SMALL.drawString(textX + nameWidth + valueWidth * j - Fonts.SMALL.getWidth(row[j]), textY, row[j], Color.white);
+		}
+	}
+
+	/**
+	 * Writes the frame timing since startup to a CSV file in the screenshot
+	 * directory, with the summary statistics and the non-empty histogram
+	 * bins of each phase (in columns).  The file is written on a new thread.
+	 */
+	public static void export() {
+		// create the directory
+		File dir = Options.getScreenshotDir();
+		if (!dir.isDirectory() && !dir.mkdir()) {
+			ErrorHandler.error(String.format("Failed to create screenshot directory at '%s'.", dir.getAbsolutePath()), null, false);
+			return;
+		}
+
+		// create file name
+		SimpleDateFormat date = new SimpleDateFormat("yyyyMMdd_HHmmss");
+		final File file = new File(dir, String.format("frametiming_%s.csv", date.format(new Date())));
+
+		new Thread() {
+			@Override
+			public void run() {
+				Phase[] phases = Phase.values();
+				try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+					StringBuilder sb = new StringBuilder("stat");
+					for (Phase phase : phases)
+						sb.append(',').append(phase.getName());
+					writeLine(out, sb);
+
+					// summary statistics
+					sb.append("count");
+					for (Phase phase : phases)
+						sb.append(',').append(phase.total.getCount());
+					writeLine(out, sb);
+					sb.append("mean_ms");
+					for (Phase phase : phases)
+						sb.append(',').append(String.format(Locale.US, "%.3f", phase.total.getMean()));
+					writeLine(out, sb);
+					for (double p : EXPORT_PERCENTILES) {
+						sb.append(String.format("p%s_ms", (p == (int) p) ? Integer.toString((int) p) : Double.toString(p)));
+						for (Phase phase : phases)
+							sb.append(',').append(String.format(Locale.US, "%.3f", phase.total.getPercentile(p)));
+						writeLine(out, sb);
+					}
+					sb.append("max_ms");
+					for (Phase phase : phases)
+						sb.append(',').append(String.format(Locale.US, "%.3f", phase.total.getMax()));
+					writeLine(out, sb);
+
+					// histogram bins (by upper edge)
+					for (int i = 0; i < Histogram.BIN_COUNT; i++) {
+						boolean empty = true;
+						for (Phase phase : phases) {
+							if (phase.total.getBin(i) != 0) {
+								empty = false;
+								break;
+							}
+						}
+						if (empty)
+							continue;
+						if (i == Histogram.BIN_COUNT - 1)
+							sb.append(String.format(Locale.US, "bin_over_%.2f_ms", i * Histogram.BIN_WIDTH / 1e6));
+						else
+							sb.append(String.format(Locale.US, "bin_%.2f_ms", (i + 1) * Histogram.BIN_WIDTH / 1e6));
+						for (Phase phase : phases)
+							sb.append(',').append(phase.total.getBin(i));
+						writeLine(out, sb);
+					}
+					Log.info(String.format("Saved frame timing to '%s'.", file.getAbsolutePath()));
+				} catch (IOException e) {
+					Log.warn(String.format("Failed to write file '%s'.", file.getAbsolutePath()), e);
+				}
+			}
+		}.start();
+		UI.sendBarNotification(String.format("Exporting frame timing to %s", file.getName()));
+	}
+
+	/**
+	 * Writes a line and clears the builder.
+	 * @param out the writer
+	 * @param sb the line
+	 */
+	private static void writeLine(BufferedWriter out, StringBuilder sb) throws IOException {
+		out.write(sb.toString());
+		out.newLine();
+		sb.setLength(0);
+	}
+}
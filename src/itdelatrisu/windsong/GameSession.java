@@ -0,0 +1,137 @@
+package itdelatrisu.windsong;
+
+import itdelatrisu.windsong.map.HitObjectList;
+import itdelatrisu.windsong.map.MapFile;
+
+/**
+ * Gameplay logic of a single play: sending map hit objects as they appear,
+ * judging hits, and detecting the end of the map or a failed play.
+ * <p>
+ * The session has no display or audio dependencies: the track position is
+ * read from a {@link Clock}, and presentation is left to a {@link Listener}.
+ * The "Game" state runs it against the music, and {@link GameSimulator}
+ * runs it against a virtual clock.
+ */
+public class GameSession {
+	/** Time after the last hit object before the play is finished, in ms. */
+	public static final int END_TIME_DELAY = 2000;
+
+	/** Source of the track position. */
+	public interface Clock {
+		/** Returns the track position, in ms. */
+		public int getPosition();
+	}
+
+	/** Session events for presentation. */
+	public interface Listener {
+		/**
+		 * Notification that a map hit object has appeared.
+		 * @param pos the gamepad position
+		 * @param timeUntilHit the time until the object should be hit, in ms
+		 */
+		public void onMapObject(int pos, int timeUntilHit);
+
+		/**
+		 * Notification that a hit was judged.
+		 * @param pos the gamepad position
+		 * @param isMapObjectHit whether a map hit object was hit
+		 */
+		public void onHitJudged(int pos, boolean isMapObjectHit);
+	}
+
+	/** The hit objects. */
+	private final HitObjectList objects;
+
+	/** The map end time. */
+	private final int endTime;
+
+	/** The score data. */
+	private final ScoreData scoreData;
+
+	/** The track position source. */
+	private final Clock clock;
+
+	/** The listener (or null if none). */
+	private Listener listener;
+
+	/** Whether a play with no health left continues. */
+	private final boolean noFail;
+
+	/** Index of the next hit object to send. */
+	private int objectIndex = 0;
+
+	/**
+	 * Constructor.
+	 * @param map the map (with hit objects loaded)
+	 * @param scoreData the score data for the map's hit objects
+	 * @param clock the track position source
+	 * @param listener the listener (or null if none)
+	 * @param noFail whether a play with no health left continues
+	 */
+	public GameSession(MapFile map, ScoreData scoreData, Clock clock, Listener listener, boolean noFail) {
+		this.objects = map.objects;
+		this.endTime = map.getEndTime();
+		this.scoreData = scoreData;
+		this.clock = clock;
+		this.listener = listener;
+		this.noFail = noFail;
+	}
+
+	/** Returns the current track position, in ms. */
+	public int getPosition() { return clock.getPosition(); }
+
+	/** Returns the score data. */
+	public ScoreData getScoreData() { return scoreData; }
+
+	/**
+	 * Sets the listener.
+	 * This must not be called while another thread is using the session.
+	 * @param listener the listener (or null if none)
+	 */
+	public void setListener(Listener listener) { this.listener = listener; }
+
+	/**
+	 * Judges a hit.
+	 * @param pos the gamepad position
+	 * @param time the track position of the hit, in ms
+	 * @return the score for the hit
+	 */
+	public long sendHit(int pos, int time) {
+		long points = scoreData.sendHit(pos, time);
+		if (listener != null)
+			listener.onHitJudged(pos, points != ScoreData.MISS);
+		return points;
+	}
+
+	/**
+	 * Updates the session: expires missed hit objects, drains health, and
+	 * sends all hit objects that are starting to appear.  Hits at or before
+	 * the current track position should be sent first.
+	 * @param delta the delta interval since the last call
+	 */
+	public void update(int delta) {
+		int trackPosition = clock.getPosition();
+		scoreData.update(delta, trackPosition);
+		if (objectIndex >= objects.size() || isFailed())
+			return;
+
+		// send hit objects
+		while (objects.getTime(objectIndex) - trackPosition <= ScoreData.HIT_OBJECT_FADEIN_TIME) {
+			scoreData.sendMapObject(objectIndex);
+			if (listener != null)
+				listener.onMapObject(objects.getPosition(objectIndex), objects.getTime(objectIndex) - trackPosition);
+			if (++objectIndex >= objects.size())
+				break;
+		}
+	}
+
+	/** Returns whether all hit objects were sent and the end delay has passed. */
+	public boolean isFinished() {
+		return objectIndex >= objects.size() && clock.getPosition() >= endTime + END_TIME_DELAY;
+	}
+
+	/** Returns whether the play failed (no health left before all hit objects were sent). */
+	public boolean isFailed() {
+		return objectIndex < objects.size() && scoreData.getHealth() < 1f && !noFail;
+	}
+}
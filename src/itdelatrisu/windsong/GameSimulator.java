@@ -0,0 +1,227 @@
+package itdelatrisu.windsong;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import itdelatrisu.windsong.map.HitObjectList;
+import itdelatrisu.windsong.map.MapAnalyzer;
+import itdelatrisu.windsong.map.MapConverter;
+import itdelatrisu.windsong.map.MapFile;
+import itdelatrisu.windsong.map.MapParser;
+
+/**
+ * Runs plays without a display, faster than realtime.
+ * <p>
+ * A {@link GameSession} is driven by a virtual clock advanced in fixed
+ * frame steps, with input from a replay (scripted input, see
+ * {@link Replay}) or from a simulated player with a given timing error.
+ * Hits are judged by the same score data logic as in the game, so whole
+ * libraries can be scored for regression tests or scoring experiments.
+ * <p>
+ * With "-benchmark", a synthetic stream of notes is played instead, to
+ * measure the cost of sending, judging, and expiring hit objects.
+ */
+public class GameSimulator {
+	/** Default frame step, in ms. */
+	public static final int DEFAULT_STEP = 16;
+
+	/** Note rate of the benchmark stream, in notes per second. */
+	private static final int BENCHMARK_NPS = 30;
+
+	/** Number of positions in the benchmark stream (the 3x3 gamepad grid). */
+	private static final int BENCHMARK_POSITIONS = 9;
+
+	/** Number of measured benchmark runs. */
+	private static final int BENCHMARK_RUNS = 5;
+
+	/** Virtual clock (set by the simulator). */
+	private static class VirtualClock implements GameSession.Clock {
+		/** The track position. */
+		public int position = 0;
+
+		@Override
+		public int getPosition() { return position; }
+	}
+
+	/** The frame step, in ms. */
+	private final int step;
+
+	/** Whether a play with no health left continues. */
+	private final boolean noFail;
+
+	/**
+	 * Constructor.
+	 * @param step the frame step, in ms
+	 * @param noFail whether a play with no health left continues
+	 */
+	public GameSimulator(int step, boolean noFail) {
+		if (step <= 0)
+			throw new IllegalArgumentException("Frame step must be positive.");
+		this.step = step;
+		this.noFail = noFail;
+	}
+
+	/**
+	 * Plays a map with the hits in a replay, starting at track position 0
+	 * (the replay's hand positions are ignored).
+	 * @param map the map (with hit objects loaded)
+	 * @param input the input
+	 * @return the score data after the play is finished or failed
+	 */
+	public ScoreData play(MapFile map, Replay input) {
+		VirtualClock clock = new VirtualClock();
+		ScoreData scoreData = new ScoreData(map.objects);
+		GameSession session = new GameSession(map, scoreData, clock, null, noFail);
+		int index = 0;
+		while (true) {
+			// send all hits up to the current time, at their own times
+			while (index < input.size() && input.getTime(index) <= clock.position) {
+				if (input.isHit(index))
+					session.sendHit(input.getPosition(index), input.getTime(index));
+				index++;
+			}
+
+			session.update(step);
+			if (session.isFinished() || session.isFailed())
+				return scoreData;
+			clock.position += step;
+		}
+	}
+
+	/**
+	 * Returns the input of a simulated player: each hit object is hit in its
+	 * position with a normally distributed timing error, or missed.
+	 * @param objects the hit objects
+	 * @param error the standard deviation of the timing error, in ms
+	 * @param missRate the probability of not hitting an object
+	 * @param random the random number generator
+	 * @return the input
+	 */
+	public static Replay createInput(HitObjectList objects, float error, float missRate, Random random) {
+		// sort hits by time (packed as time and position)
+		int count = 0;
+		long[] hits = new long[objects.size()];
+		for (int i = 0; i < objects.size(); i++) {
+			if (random.nextFloat() < missRate)
+				continue;
+			long time = objects.getTime(i) + Math.round(random.nextGaussian() * error);
+			hits[count++] = ((time - Integer.MIN_VALUE) << 4) | objects.getPosition(i);
+		}
+		Arrays.sort(hits, 0, count);
+
+		Replay input = new Replay("", 0);
+		for (int i = 0; i < count; i++)
+			input.addHit((int) ((hits[i] >> 4) + Integer.MIN_VALUE), (int) (hits[i] & 0xF));
+		return input;
+	}
+
+	/**
+	 * Returns a stream of evenly spaced hit objects at random positions.
+	 * @param count the number of hit objects
+	 * @param nps the note rate, in notes per second
+	 * @param positions the number of positions (positions are in [0, positions))
+	 * @param random the random number generator
+	 * @return the hit objects
+	 */
+	public static HitObjectList createStream(int count, int nps, int positions, Random random) {
+		HitObjectList objects = new HitObjectList(count);
+		for (int i = 0; i < count; i++)
+			objects.add(1000 + (int) (i * 1000L / nps), random.nextInt(positions), 0);
+		return objects;
+	}
+
+	/**
+	 * Plays a synthetic stream of notes several times and prints the median
+	 * play time, per note and per frame.
+	 * @param minutes the stream length, in minutes
+	 * @param seed the random seed
+	 */
+	private static void benchmark(int minutes, long seed) {
+		Random random = new Random(seed);
+		MapFile map = new MapFile(new File("benchmark" + Options.MAP_FILE_EXT));
+		map.objects = createStream(minutes * 60 * BENCHMARK_NPS, BENCHMARK_NPS, BENCHMARK_POSITIONS, random);
+		Replay input = createInput(map.objects, 40f, 0.02f, random);
+		GameSimulator simulator = new GameSimulator(DEFAULT_STEP, true);
+
+		long[] times = new long[BENCHMARK_RUNS];
+		ScoreData scoreData = null;
+		for (int i = -1; i < BENCHMARK_RUNS; i++) {  // first run is a warm-up
+			System.gc();
+			long startTime = System.nanoTime();
+			scoreData = simulator.play(map, input);
+			if (i >= 0)
+				times[i] = System.nanoTime() - startTime;
+		}
+		Arrays.sort(times);
+		long time = times[times.length / 2];
+		int notes = map.objects.size(), frames = (map.getEndTime() + GameSession.END_TIME_DELAY) / DEFAULT_STEP + 1;
+		System.out.printf("Played %d notes (%d min at %d notes/s, %d hits) in %.1f ms: %.0f ns/note, %.0f ns/frame, %d/%d/%d/%d.%n",
+				notes, minutes, BENCHMARK_NPS, input.size(), time / 1e6, (double) time / notes, (double) time / frames,
+				scoreData.getPerfectCount(), scoreData.getGoodCount(), scoreData.getOkayCount(), scoreData.getMissCount());
+	}
+
+	/**
+	 * Simulates plays of every map in a directory and prints the results.
+	 * @param args the map directory, and optionally the timing error (ms),
+	 *             miss rate, random seed, and frame step (ms); or "-benchmark",
+	 *             and optionally the stream length (min) and random seed
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: GameSimulator <directory> [error] [miss rate] [seed] [step]");
+			System.err.println("       GameSimulator -benchmark [minutes] [seed]");
+			System.exit(1);
+		}
+		if (args[0].equals("-benchmark")) {
+			try {
+				benchmark((args.length > 1) ? Integer.parseInt(args[1]) : 10, (args.length > 2) ? Long.parseLong(args[2]) : 0);
+			} catch (NumberFormatException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+
+		File dir = new File(args[0]);
+		float error, missRate;
+		long seed;
+		int step;
+		try {
+			error = (args.length > 1) ? Float.parseFloat(args[1]) : 40f;
+			missRate = (args.length > 2) ? Float.parseFloat(args[2]) : 0.02f;
+			seed = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+			step = (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_STEP;
+		} catch (NumberFormatException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		MapParser.parseAllFiles(dir);
+		List<MapFile> maps = MapParser.getMaps();
+		GameSimulator simulator = new GameSimulator(step, true);
+		long playTime = 0, simulationTime = 0;
+		int played = 0;
+		for (MapFile map : maps) {
+			if (MapParser.loadHitObjects(map) == null || map.objects.size() == 0)
+				continue;
+			Replay input = createInput(map.objects, error, missRate, new Random(seed ^ map.getFile().getPath().hashCode()));
+			long startTime = System.nanoTime();
+			ScoreData scoreData = simulator.play(map, input);
+			simulationTime += System.nanoTime() - startTime;
+			playTime += map.getEndTime() + GameSession.END_TIME_DELAY;
+			played++;
+			System.out.printf("%s\t%d\t%.2f\t%d\t%d/%d/%d/%d\t%s%n", map.getFile().getPath(),
+					scoreData.getScore(), scoreData.getScorePercent(), scoreData.getMaxComboStreak(),
+					scoreData.getPerfectCount(), scoreData.getGoodCount(), scoreData.getOkayCount(),
+					scoreData.getMissCount(), "SABCDF".charAt(scoreData.getGrade()));
+		}
+		System.err.printf("Simulated %d maps (%.1f min of play) in %d ms (%.0fx realtime).%n",
+				played, playTime / 60000.0, simulationTime / 1000000,
+				playTime / Math.max(simulationTime / 1000000.0, 1e-3));
+		MapAnalyzer.stop();
+		MapConverter.stop();
+	}
+}
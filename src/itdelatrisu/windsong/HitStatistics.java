@@ -0,0 +1,150 @@
+package itdelatrisu.windsong;
+
+import org.newdawn.slick.Color;
+import org.newdawn.slick.Graphics;
+
+import itdelatrisu.windsong.ui.Colors;
+import itdelatrisu.windsong.ui.Fonts;
+
+/**
+ * Streaming statistics of hit timing errors.
+ * <p>
+ * Each signed error (hit time minus object time, so positive is late) is
+ * counted in a fixed-size histogram covering the hit windows, and the
+ * running mean and variance are updated with Welford's algorithm.  Neither
+ * adding an error nor drawing the histogram creates any objects (the text
+ * summary is only rebuilt when new errors were added).
+ */
+public class HitStatistics {
+	/** Width of a histogram bin, in ms. */
+	private static final int BIN_WIDTH = 5;
+
+	/** Largest error magnitude counted in the histogram, in ms. */
+	private static final int RANGE = ScoreData.OKAY_TIME;
+
+	/** Number of histogram bins. */
+	private static final int BIN_COUNT = 2 * RANGE / BIN_WIDTH;
+
+	/** Histogram bin colors. */
+	private static final Color
+		COLOR_PERFECT = Colors.LIGHT_BLUE,
+		COLOR_GOOD = Colors.LIGHT_GREEN,
+		COLOR_OKAY = Colors.LIGHT_ORANGE;
+
+	/** The histogram bins (from -{@link #RANGE} to +{@link #RANGE}). */
+	private final int[] bins = new int[BIN_COUNT];
+
+	/** The largest bin count. */
+	private int maxBinCount = 0;
+
+	/** Number of errors. */
+	private int count = 0;
+
+	/** Running mean of the errors. */
+	private double mean = 0;
+
+	/** Running sum of squared differences from the mean. */
+	private double m2 = 0;
+
+	/** The text summary (or null if not yet built). */
+	private String summary;
+
+	/** The error count when the text summary was built. */
+	private int summaryCount = -1;
+
+	/**
+	 * Adds a hit timing error.
+	 * @param error the hit time minus the object time, in ms
+	 */
+	public void add(int error) {
+		count++;
+		double delta = error - mean;
+		mean += delta / count;
+		m2 += delta * (error - mean);
+
+		int bin = Utils.clamp((error + RANGE) / BIN_WIDTH, 0, BIN_COUNT - 1);
+		if (++bins[bin] > maxBinCount)
+			maxBinCount = bins[bin];
+	}
+
+	/** Returns the number of errors. */
+	public int getCount() { return count; }
+
+	/** Returns the mean error, in ms (positive is late). */
+	public double getMean() { return mean; }
+
+	/** Returns the (population) variance of the errors. */
+	public double getVariance() { return (count > 0) ? m2 / count : 0; }
+
+	/** Returns the standard deviation of the errors, in ms. */
+	public double getStandardDeviation() { return Math.sqrt(getVariance()); }
+
+	/** Returns the unstable rate (10 times the standard deviation, in ms). */
+	public double getUnstableRate() { return getStandardDeviation() * 10; }
+
+	/**
+	 * Returns the trimmed mean of the errors (from the histogram, so to
+	 * within a bin width), ignoring a fraction of the errors at each end.
+	 * This is robust to stray hits; a fraction near 0.5 gives the median.
+	 * @param trim the fraction of errors to ignore at each end [0, 0.5)
+	 * @return the trimmed mean, in ms (0 if there are no errors)
+	 */
+	public double getTrimmedMean(float trim) {
+		int total = 0;
+		for (int i = 0; i < BIN_COUNT; i++)
+			total += bins[i];
+		if (total == 0)
+			return 0;
+
+		// sum the bins between the cut-offs, with partial weights at the edges
+		double low = total * trim, high = total - low, seen = 0, weight = 0, sum = 0;
+		for (int i = 0; i < BIN_COUNT && seen < high; i++) {
+			double start = Math.max(seen, low), end = Math.min(seen + bins[i], high);
+			if (end > start) {
+				double binCenter = i * BIN_WIDTH - RANGE + BIN_WIDTH / 2.0;
+				sum += (end - start) * binCenter;
+				weight += end - start;
+			}
+			seen += bins[i];
+		}
+		return (weight > 0) ? sum / weight : 0;
+	}
+
+	/**
+	 * Draws the error histogram, with the mean offset and unstable rate below it.
+	 * @param g the graphics context
+	 * @param x the left x coordinate
+	 * @param y the top y coordinate
+	 * @param width the histogram width
+	 * @param height the histogram height
+	 */
+	public void draw(Graphics g, float x, float y, float width, float height) {
+		// background and center line
+		g.setColor(Colors.BLACK_BG_NORMAL);
+		g.fillRect(x, y, width, height);
+		g.setColor(Color.white);
+		g.fillRect(x + width / 2 - 1, y, 2, height);
+
+		// bins
+		float binWidth = width / BIN_COUNT;
+		if (maxBinCount > 0) {
+			for (int i = 0; i < BIN_COUNT; i++) {
+				if (bins[i] == 0)
+					continue;
+				int binError = Math.abs(i * BIN_WIDTH - RANGE + BIN_WIDTH / 2);
+				g.setColor((binError < ScoreData.PERFECT_TIME) ? COLOR_PERFECT :
+				           (binError < ScoreData.GOOD_TIME) ? COLOR_GOOD : COLOR_OKAY);
+				float binHeight = height * bins[i] / maxBinCount;
+				g.fillRect(x + i * binWidth, y + height - binHeight, Math.max(binWidth - 1, 1), binHeight);
+			}
+		}
+
+		// summary
+		if (summaryCount != count) {
+			summaryCount = count;
+			summary = (count == 0) ? "No hits" : String.format("Mean offset: %+.1f ms (%s)   Unstable rate: %.1f",
+					mean, (mean >= 0) ? "late" : "early", getUnstableRate());
+		}
+		Fonts.MEDIUM.drawString(x, y + height, summary, Color.white);
+	}
+}
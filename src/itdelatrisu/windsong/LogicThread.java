@@ -0,0 +1,107 @@
+package itdelatrisu.windsong;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs game logic on its own thread at a fixed tick rate.
+ * <p>
+ * Ticks are scheduled against {@link System#nanoTime()}, independently of
+ * the frame rate, so a slow frame does not delay hit expiry or judgement.
+ * If the thread falls behind, missed ticks are run back-to-back, unless it
+ * is more than {@link #MAX_LAG} behind (then they are skipped).
+ */
+public class LogicThread {
+	/** Tick length, in ms (1000 Hz). */
+	public static final int TICK_LENGTH = 1;
+
+	/** Tick length, in ns. */
+	private static final long TICK_NANOS = TICK_LENGTH * 1000000L;
+
+	/** Largest delay before missed ticks are skipped, in ms. */
+	private static final int MAX_LAG = 100;
+
+	/** Game logic run on each tick. */
+	public interface Logic {
+		/**
+		 * Runs one tick.
+		 * @param delta the tick length, in ms
+		 * @return true to keep running, false to stop
+		 */
+		public boolean tick(int delta);
+	}
+
+	/** The game logic. */
+	private final Logic logic;
+
+	/** The thread (null if not started). */
+	private Thread thread;
+
+	/** Whether the thread is running. */
+	private volatile boolean running = false;
+
+	/**
+	 * Constructor.
+	 * @param logic the game logic
+	 */
+	public LogicThread(Logic logic) {
+		this.logic = logic;
+	}
+
+	/**
+	 * Starts running ticks.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+
+		running = true;
+		thread = new Thread("LogicThread") {
+			@Override
+			public void run() {
+				try {
+					long nextTick = System.nanoTime();
+					while (running && logic.tick(TICK_LENGTH)) {
+						nextTick += TICK_NANOS;
+						long wait;
+						while (running && (wait = nextTick - System.nanoTime()) > 0)
+							LockSupport.parkNanos(wait);
+						if (System.nanoTime() - nextTick > MAX_LAG * 1000000L)
+							nextTick = System.nanoTime();
+					}
+				} finally {
+					running = false;
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Returns whether ticks are still running (false once the game logic
+	 * stopped, or failed with an exception).
+	 */
+	public boolean isRunning() { return running; }
+
+	/**
+	 * Stops running ticks, and waits for the current tick to finish.
+	 * All game logic state can be read after this returns.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread == null)
+			return;
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		thread = null;
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
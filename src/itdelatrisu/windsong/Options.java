@@ -47,6 +47,27 @@ public class Options {
 	/** File for storing user options. */
 	private static final File OPTIONS_FILE = new File(CONFIG_DIR, ".windsong.cfg");
 
+	/** File for caching parsed map data. */
+	public static final File MAP_CACHE_FILE = new File(CACHE_DIR, ".windsong.mapcache");
+
+	/** File for caching file hashes. */
+	public static final File HASH_CACHE_FILE = new File(CACHE_DIR, ".windsong.hashcache");
+
+	/** File for caching map statistics. */
+	public static final File MAP_STATS_CACHE_FILE = new File(CACHE_DIR, ".windsong.statscache");
+
+	/** File for storing automatic music offsets (by audio device). */
+	public static final File AUTO_OFFSET_FILE = new File(CONFIG_DIR, ".windsong.offsets");
+
+	/** File for storing scores (append-only log). */
+	public static final File SCORE_DB_FILE = new File(DATA_DIR, ".windsong.scores");
+
+	/** File for indexing the best scores of each map. */
+	public static final File SCORE_INDEX_FILE = new File(CACHE_DIR, ".windsong.scoreindex");
+
+	/** Generated click track for offset calibration. */
+	public static final File CLICK_TRACK_FILE = new File(CACHE_DIR, ".windsong.click.wav");
+
 	/** The default map directory. */
 	private static final File MAP_DIR = new File(DATA_DIR, "Songs/");
 
@@ -68,6 +89,9 @@ public class Options {
 	/** File extension for map files. */
 	public static final String MAP_FILE_EXT = ".wind";
 
+	/** File extension for binary map files. */
+	public static final String MAP_BINARY_FILE_EXT = ".windb";
+
 	/** The map directory. */
 	private static File mapDir;
 
@@ -77,6 +101,9 @@ public class Options {
 	/** Port binding. */
 	private static int port = 55556;
 
+	/** Number of map parser threads (0 for one per available processor). */
+	private static int parserThreads = 0;
+
 	/**
 	 * Returns whether the XDG flag in the manifest (if any) is set to "true".
 	 * @return true if XDG directories are enabled, false otherwise
@@ -166,6 +193,17 @@ public class Options {
 					port = i;
 			}
 		},
+		PARSER_THREADS ("ParserThreads") {
+			@Override
+			public String write() { return Integer.toString(parserThreads); }
+
+			@Override
+			public void read(String s) {
+				int i = Integer.parseInt(s);
+				if (i >= 0)
+					parserThreads = i;
+			}
+		},
 
 		// in-game options
 		SCREEN_RESOLUTION ("Screen Resolution", "ScreenResolution", "Restart (Ctrl+Shift+F5) to apply resolution changes.") {
@@ -217,6 +255,7 @@ public class Options {
 			}
 		},
 		SHOW_FPS ("Show FPS Counter", "FpsCounter", "Show an FPS counter in the bottom-right hand corner.", true),
+		SHOW_FRAME_TIMING ("Show Frame Timing", "FrameTiming", "Show the time spent in each part of a frame in the top-left hand corner. Press F11 to export to a file.", false),
 		SCREENSHOT_FORMAT ("Screenshot Format", "ScreenshotFormat", "Press F12 to take a screenshot.") {
 			@Override
 			public String getValueString() { return screenshotFormat[screenshotFormatIndex].toUpperCase(); }
@@ -255,6 +294,16 @@ public class Options {
 			@Override
 			public String getValueString() { return String.format("%dms", val); }
 		},
+		AUTO_OFFSET ("Automatic Music Offset", "AutoOffset", "Adjust the music offset after each song from your hit timing (saved for each audio device).", false),
+		AUTO_OFFSET_LIMIT ("Automatic Offset Limit", "AutoOffsetLimit", "Largest automatic change to the music offset.", 100, 0, 500) {
+			@Override
+			public String getValueString() { return String.format("%dms", val); }
+		},
+		LEAP_OFFSET ("Leap Motion Offset", "LeapOffset", "Added to the music offset for Leap Motion hits.", 0, -300, 300) {
+			@Override
+			public String getValueString() { return String.format("%dms", val); }
+		},
+		FIXED_RATE_LOGIC ("Fixed-Rate Game Logic", "FixedRateLogic", "Judge hits on a separate 1000 Hz thread, independent of the frame rate.", false),
 		DISABLE_SOUNDS ("Disable All Sound Effects", "DisableSound", "May resolve Linux sound driver issues.  Requires a restart.",
 				(System.getProperty("os.name").toLowerCase().contains("linux"))),
 		KEY_LEFT ("Left Game Key", "keyLeft", "Select this option to input a key.") {
@@ -282,6 +331,9 @@ public class Options {
 		LOAD_HD_IMAGES ("Load HD Images", "LoadHDImages", String.format("Loads HD (%s) images when available. Increases memory usage and loading times.", GameImage.HD_SUFFIX), true),
 		ENABLE_THEME_SONG ("Enable Theme Song", "MenuMusic", "Whether to play the theme song upon starting the game.", true),
 		NO_FAIL ("No Fail", "NoFail", "Whether to disable failing songs.", false),
+		LAZY_HIT_OBJECTS ("Load Hit Objects On Demand", "LazyHitObjects", "Only read hit objects when a map is selected. Reduces memory usage and loading times for large libraries.", false),
+		CONVERT_MAPS ("Convert Maps To Binary", "ConvertMaps", "Save a binary copy of each song in the background after loading. Binary songs load faster and use less disk space.", false),
+		WATCH_MAP_DIR ("Watch Song Directory", "WatchMapDir", "Automatically add, update, and remove songs when the song directory changes.", true),
 		HIDE_LOADING_PROGRESS ("Hide Loading Progress", "HideLoadingProgress", "Whether to hide loading progress on the splash screen.", true);
 
 		/** Option name. */
@@ -610,6 +662,48 @@ public class Options {
 	 */
 	public static int getMusicOffset() { return GameOption.MUSIC_OFFSET.getIntegerValue(); }
 
+	/**
+	 * Sets the music offset time (clamped to the valid range).
+	 * @param offset the offset (in milliseconds)
+	 */
+	public static void setMusicOffset(int offset) {
+		GameOption option = GameOption.MUSIC_OFFSET;
+		option.setValue(Utils.clamp(offset, option.min, option.max));
+	}
+
+	/**
+	 * Returns whether the music offset is adjusted automatically.
+	 * @return true if enabled
+	 */
+	public static boolean isAutoOffsetEnabled() { return GameOption.AUTO_OFFSET.getBooleanValue(); }
+
+	/**
+	 * Returns the largest automatic music offset adjustment.
+	 * @return the limit (in milliseconds)
+	 */
+	public static int getAutoOffsetLimit() { return GameOption.AUTO_OFFSET_LIMIT.getIntegerValue(); }
+
+	/**
+	 * Returns the offset time for Leap Motion hits (added to the music offset).
+	 * @return the offset (in milliseconds)
+	 */
+	public static int getLeapOffset() { return GameOption.LEAP_OFFSET.getIntegerValue(); }
+
+	/**
+	 * Sets the offset time for Leap Motion hits (clamped to the valid range).
+	 * @param offset the offset (in milliseconds)
+	 */
+	public static void setLeapOffset(int offset) {
+		GameOption option = GameOption.LEAP_OFFSET;
+		option.setValue(Utils.clamp(offset, option.min, option.max));
+	}
+
+	/**
+	 * Returns whether gameplay logic runs on its own fixed-rate thread.
+	 * @return true if enabled
+	 */
+	public static boolean isFixedRateLogic() { return GameOption.FIXED_RATE_LOGIC.getBooleanValue(); }
+
 	/**
 	 * Returns the screenshot file format.
 	 * @return the file extension ("png", "jpg", "bmp")
@@ -649,12 +743,26 @@ public class Options {
 	 */
 	public static boolean isFPSCounterEnabled() { return GameOption.SHOW_FPS.getBooleanValue(); }
 
+	/**
+	 * Returns whether or not the frame timing overlay is enabled.
+	 * @return true if enabled
+	 */
+	public static boolean isFrameTimingEnabled() { return GameOption.SHOW_FRAME_TIMING.getBooleanValue(); }
+
 	/**
 	 * Returns the port number to bind to.
 	 * @return the port
 	 */
 	public static int getPort() { return port; }
 
+	/**
+	 * Returns the number of threads to use when parsing maps.
+	 * @return the thread count (at least 1)
+	 */
+	public static int getParserThreads() {
+		return (parserThreads > 0) ? parserThreads : Runtime.getRuntime().availableProcessors();
+	}
+
 	/**
 	 * Returns the background dim level.
 	 * @return the alpha level [0, 1]
@@ -747,7 +855,8 @@ public class Options {
 	private static boolean isValidGameKey(int key) {
 		return (key != Keyboard.KEY_ESCAPE && key != Keyboard.KEY_SPACE &&
 		        key != Keyboard.KEY_UP && key != Keyboard.KEY_DOWN &&
-		        key != Keyboard.KEY_F7 && key != Keyboard.KEY_F10 && key != Keyboard.KEY_F12);
+		        key != Keyboard.KEY_F7 && key != Keyboard.KEY_F10 && key != Keyboard.KEY_F11 &&
+		        key != Keyboard.KEY_F12);
 	}
 
 	/**
@@ -756,6 +865,24 @@ public class Options {
 	 */
 	public static boolean isNoFail() { return GameOption.NO_FAIL.getBooleanValue(); }
 
+	/**
+	 * Returns whether or not hit objects are only loaded when needed.
+	 * @return true if enabled
+	 */
+	public static boolean isLazyHitObjectsEnabled() { return GameOption.LAZY_HIT_OBJECTS.getBooleanValue(); }
+
+	/**
+	 * Returns whether or not text maps are converted to binary maps when loaded.
+	 * @return true if enabled
+	 */
+	public static boolean isMapConversionEnabled() { return GameOption.CONVERT_MAPS.getBooleanValue(); }
+
+	/**
+	 * Returns whether or not the map directory is watched for changes.
+	 * @return true if enabled
+	 */
+	public static boolean isMapDirWatched() { return GameOption.WATCH_MAP_DIR.getBooleanValue(); }
+
 	/**
 	 * Returns whether or not all loading progress is hidden.
 	 * @return true if disabled
@@ -791,6 +918,12 @@ public class Options {
 		return screenshotDir;
 	}
 
+	/**
+	 * Returns the replay directory.
+	 * @return the replay directory
+	 */
+	public static File getReplayDir() { return new File(DATA_DIR, "Replays/"); }
+
 	/**
 	 * Returns a dummy map containing the theme song.
 	 * @return the theme song map
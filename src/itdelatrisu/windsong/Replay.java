@@ -0,0 +1,299 @@
+package itdelatrisu.windsong;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.newdawn.slick.util.Log;
+
+import itdelatrisu.windsong.map.HitObjectList;
+import itdelatrisu.windsong.map.MapFile;
+import itdelatrisu.windsong.map.MapHasher;
+
+/**
+ * Recorded input of a play: hits and hand positions, by track time.
+ * <p>
+ * Events are stored in time order in growable primitive arrays, so
+ * recording creates no objects per event.  On disk, each event is a
+ * variable-length (zigzag) time delta followed by one byte holding the
+ * event type, hand, and position, and the event stream is deflated.
+ */
+public class Replay {
+	/** File header. */
+	private static final int MAGIC = 0x57535250;  // "WSRP"
+
+	/** File format version (increment on any format change). */
+	private static final int VERSION = 1;
+
+	/** Replay file extension. */
+	public static final String FILE_EXT = ".wsr";
+
+	/** Event flag: a hand position change (otherwise, a hit). */
+	private static final int EVENT_POSITION = 0x80;
+
+	/** Event flag: the left hand (for hand positions). */
+	private static final int EVENT_LEFT_HAND = 0x40;
+
+	/** Event mask: the position (or {@link #NO_POSITION}). */
+	private static final int EVENT_POSITION_MASK = 0x0F;
+
+	/** Position value for "no hand". */
+	private static final int NO_POSITION = 0x0F;
+
+	/** The MD5 hash of the map file. */
+	private final String mapHash;
+
+	/** The time the play started (in ms since the epoch). */
+	private final long timestamp;
+
+	/** The event times (track positions, in ms). */
+	private int[] times = new int[256];
+
+	/** The packed events. */
+	private byte[] events = new byte[256];
+
+	/** Number of events. */
+	private int size = 0;
+
+	/** The file the replay was saved to or read from (or null if not saved). */
+	private File file;
+
+	/**
+	 * Constructor.
+	 * @param mapHash the MD5 hash of the map file
+	 * @param timestamp the time the play started (in ms since the epoch)
+	 */
+	public Replay(String mapHash, long timestamp) {
+		this.mapHash = mapHash;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Starts a replay recording for a map.
+	 * @param map the map
+	 * @return the replay, or null if the map file could not be hashed
+	 */
+	public static Replay create(MapFile map) {
+		if (map.getFile() == null)
+			return null;
+		String hash = MapHasher.getHash(map.getFile());
+		return (hash == null) ? null : new Replay(hash, System.currentTimeMillis());
+	}
+
+	/**
+	 * Records a hit.
+	 * @param time the track position (in ms)
+	 * @param pos the gamepad position
+	 */
+	public void addHit(int time, int pos) {
+		if (pos < 0 || pos >= HitObjectList.POSITION_COUNT)
+			return;
+		add(time, pos);
+	}
+
+	/**
+	 * Records a hand position change.
+	 * @param time the track position (in ms)
+	 * @param leftHand whether this is the left hand
+	 * @param pos the gamepad position, or -1 for none
+	 */
+	public void addPosition(int time, boolean leftHand, int pos) {
+		int event = EVENT_POSITION | ((leftHand) ? EVENT_LEFT_HAND : 0);
+		event |= (pos < 0 || pos >= HitObjectList.POSITION_COUNT) ? NO_POSITION : pos;
+		add(time, event);
+	}
+
+	/**
+	 * Appends a packed event.
+	 */
+	private void add(int time, int event) {
+		if (size == times.length) {
+			times = Arrays.copyOf(times, size * 2);
+			events = Arrays.copyOf(events, size * 2);
+		}
+		times[size] = time;
+		events[size] = (byte) event;
+		size++;
+	}
+
+	/** Returns the number of events. */
+	public int size() { return size; }
+
+	/** Returns the time of an event (track position, in ms). */
+	public int getTime(int index) { return times[index]; }
+
+	/** Returns whether an event is a hit (otherwise, a hand position change). */
+	public boolean isHit(int index) { return (events[index] & EVENT_POSITION) == 0; }
+
+	/** Returns whether a hand position change is for the left hand. */
+	public boolean isLeftHand(int index) { return (events[index] & EVENT_LEFT_HAND) != 0; }
+
+	/** Returns the gamepad position of an event (-1 for no hand). */
+	public int getPosition(int index) {
+		int pos = events[index] & EVENT_POSITION_MASK;
+		return (pos == NO_POSITION) ? -1 : pos;
+	}
+
+	/** Returns the MD5 hash of the map file. */
+	public String getMapHash() { return mapHash; }
+
+	/** Returns the time the play started (in ms since the epoch). */
+	public long getTimestamp() { return timestamp; }
+
+	/**
+	 * Writes the replay to the replay directory in a new thread, if not already saved.
+	 */
+	public void save() {
+		if (file != null)
+			return;
+		File dir = Options.getReplayDir();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			ErrorHandler.error(String.format("Failed to create replay directory at '%s'.", dir.getAbsolutePath()), null, false);
+			return;
+		}
+		SimpleDateFormat date = new SimpleDateFormat("yyyyMMdd_HHmmss");
+		final File target = new File(dir, String.format("%s_%s%s", mapHash, date.format(new Date(timestamp)), FILE_EXT));
+		file = target;
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					write(target);
+				} catch (IOException e) {
+					Log.warn(String.format("Failed to write replay '%s'.", target.getAbsolutePath()), e);
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Writes the replay to a file.
+	 * @param file the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(mapHash);
+			out.writeLong(timestamp);
+			out.writeInt(size);
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+			try {
+				OutputStream body = new DeflaterOutputStream(out, deflater);
+				int lastTime = 0;
+				for (int i = 0; i < size; i++) {
+					int delta = times[i] - lastTime;
+					writeVarInt(body, (delta << 1) ^ (delta >> 31));
+					body.write(events[i]);
+					lastTime = times[i];
+				}
+				((DeflaterOutputStream) body).finish();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Reads a replay from a file.
+	 * @param file the file
+	 * @return the replay
+	 * @throws IOException if the file could not be read or is not a valid replay
+	 */
+	public static Replay read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(String.format("'%s' is not a supported replay file.", file.getName()));
+			Replay replay = new Replay(in.readUTF(), in.readLong());
+			int count = in.readInt();
+			if (count < 0)
+				throw new IOException(String.format("Invalid event count in replay '%s'.", file.getName()));
+			InputStream body = new InflaterInputStream(in);
+			int time = 0;
+			for (int i = 0; i < count; i++) {
+				int zigzag = readVarInt(body);
+				time += (zigzag >>> 1) ^ -(zigzag & 1);
+				int event = body.read();
+				if (event == -1)
+					throw new EOFException();
+				replay.add(time, event);
+			}
+			replay.file = file;
+			return replay;
+		}
+	}
+
+	/**
+	 * Returns the most recent replay of a map in the replay directory.
+	 * @param map the map
+	 * @return the replay, or null if none (or it could not be read)
+	 */
+	public static Replay getLatest(MapFile map) {
+		File[] files = Options.getReplayDir().listFiles();
+		if (files == null || map.getFile() == null)
+			return null;
+		String hash = MapHasher.getHash(map.getFile());
+		if (hash == null)
+			return null;
+
+		// file names sort by date
+		String prefix = hash + "_";
+		File latest = null;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix) && name.endsWith(FILE_EXT) &&
+			    (latest == null || name.compareTo(latest.getName()) > 0))
+				latest = file;
+		}
+		if (latest == null)
+			return null;
+		try {
+			return read(latest);
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to read replay '%s'.", latest.getAbsolutePath()), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes an unsigned variable-length integer (7 bits per byte).
+	 */
+	private static void writeVarInt(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Reads an unsigned variable-length integer (7 bits per byte).
+	 */
+	private static int readVarInt(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable-length integer.");
+	}
+}
@@ -0,0 +1,530 @@
+package itdelatrisu.windsong;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.newdawn.slick.util.Log;
+
+/**
+ * Local score database.
+ * <p>
+ * Results are appended to a log file as fixed-size records, each with a
+ * CRC32 checksum, and forced to disk.  A record torn by a crash fails its
+ * checksum and is discarded (with anything after it) on the next load.
+ * The best scores of each map are kept in memory, so lookups do no file
+ * I/O, and are checkpointed to an index file along with the log length
+ * they cover; on load, only the log records after the checkpoint are read
+ * (the whole log is read if the index is missing or does not match).
+ * <p>
+ * Loading and writing happen on a background thread.  Each map's scores
+ * are replaced rather than modified, so they can be read from any thread.
+ */
+public class ScoreDB {
+	/** Log file header. */
+	private static final int MAGIC = 0x57535344;  // "WSSD"
+
+	/** Index file header. */
+	private static final int INDEX_MAGIC = 0x57535349;  // "WSSI"
+
+	/** File format version (increment on any format change). */
+	private static final int VERSION = 1;
+
+	/** Log file header size. */
+	private static final int HEADER_SIZE = 8;
+
+	/** MD5 hash size, in bytes. */
+	private static final int HASH_SIZE = 16;
+
+	/** Record size (including the trailing checksum). */
+	private static final int RECORD_SIZE = HASH_SIZE + 8 + 8 + 4 + 4 * 4 + 4 + 1 + 4;
+
+	/** Number of scores kept for each map. */
+	public static final int TOP_COUNT = 10;
+
+	/** Time to wait for pending writes when stopping, in ms. */
+	private static final int STOP_TIMEOUT = 2000;
+
+	/** A stored result. */
+	public static class Score {
+		/** The MD5 hash of the map file. */
+		public final String mapHash;
+
+		/** The time the play started (in ms since the epoch). */
+		public final long timestamp;
+
+		/** The score. */
+		public final long score;
+
+		/** The score percentage. */
+		public final float percent;
+
+		/** Hit counts. */
+		public final int perfect, good, okay, miss;
+
+		/** The highest combo streak. */
+		public final int maxCombo;
+
+		/** The grade (see {@link ScoreData#getGrade()}). */
+		public final byte grade;
+
+		/**
+		 * Constructor.
+		 * @param mapHash the MD5 hash of the map file
+		 * @param timestamp the time the play started (in ms since the epoch)
+		 * @param score the score
+		 * @param percent the score percentage
+		 * @param perfect the number of perfect hits
+		 * @param good the number of good hits
+		 * @param okay the number of okay hits
+		 * @param miss the number of misses
+		 * @param maxCombo the highest combo streak
+		 * @param grade the grade
+		 */
+		public Score(String mapHash, long timestamp, long score, float percent,
+				int perfect, int good, int okay, int miss, int maxCombo, byte grade) {
+			this.mapHash = mapHash;
+			this.timestamp = timestamp;
+			this.score = score;
+			this.percent = percent;
+			this.perfect = perfect;
+			this.good = good;
+			this.okay = okay;
+			this.miss = miss;
+			this.maxCombo = maxCombo;
+			this.grade = grade;
+		}
+
+		/** Returns whether this score ranks above another (higher, or equal and earlier). */
+		public boolean isBetterThan(Score s) {
+			return (score != s.score) ? score > s.score : timestamp < s.timestamp;
+		}
+	}
+
+	/** The scores of a map (never modified once published). */
+	private static class MapScores {
+		/** The best scores, highest first. */
+		public final List<Score> top;
+
+		/** The number of stored plays. */
+		public final int plays;
+
+		/**
+		 * Constructor.
+		 * @param top the best scores, highest first
+		 * @param plays the number of stored plays
+		 */
+		public MapScores(Score[] top, int plays) {
+			this.top = Collections.unmodifiableList(Arrays.asList(top));
+			this.plays = plays;
+		}
+
+		/**
+		 * Returns the scores with a new result added.
+		 * @param s the result
+		 */
+		public MapScores add(Score s) {
+			int size = top.size(), index = 0;
+			while (index < size && !s.isBetterThan(top.get(index)))
+				index++;
+			if (index >= TOP_COUNT)
+				return new MapScores(top.toArray(new Score[size]), plays + 1);
+			Score[] newTop = new Score[Math.min(size + 1, TOP_COUNT)];
+			for (int i = 0, j = 0; i < newTop.length; i++)
+				newTop[i] = (i == index) ? s : top.get(j++);
+			return new MapScores(newTop, plays + 1);
+		}
+	}
+
+	/** Marks the end of the write queue. */
+	private static final Score STOP = new Score("", 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0);
+
+	/** Scores by map file hash. */
+	private static final Map<String, MapScores> scores = new ConcurrentHashMap<String, MapScores>();
+
+	/** Results waiting to be written. */
+	private static final LinkedBlockingQueue<Score> queue = new LinkedBlockingQueue<Score>();
+
+	/** The database thread. */
+	private static Thread thread;
+
+	/** The log file (null if not open). */
+	private static FileChannel log;
+
+	/** The log length covered by the index file. */
+	private static long indexedLength = -1;
+
+	/** The checksum of the last record in the log. */
+	private static int lastChecksum = 0;
+
+	// This class should not be instantiated.
+	private ScoreDB() {}
+
+	/**
+	 * Loads the database and starts writing results in the background.
+	 */
+	public static synchronized void start() {
+		if (thread != null)
+			return;
+
+		thread = new Thread("ScoreDB") {
+			@Override
+			public void run() {
+				open(Options.SCORE_DB_FILE, Options.SCORE_INDEX_FILE);
+				try {
+					Score s;
+					while ((s = queue.take()) != STOP)
+						append(s);
+				} catch (InterruptedException e) {
+					// stopped
+				}
+				close(Options.SCORE_INDEX_FILE);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Writes all pending results and the index file, then stops.
+	 */
+	public static synchronized void stop() {
+		if (thread == null)
+			return;
+
+		queue.add(STOP);
+		try {
+			thread.join(STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			// give up waiting
+		}
+		thread = null;
+	}
+
+	/**
+	 * Stores a result in the background.
+	 * @param mapHash the MD5 hash of the map file
+	 * @param timestamp the time the play started (in ms since the epoch)
+	 * @param scoreData the score data of the finished play
+	 */
+	public static void add(String mapHash, long timestamp, ScoreData scoreData) {
+		if (mapHash == null || mapHash.length() != HASH_SIZE * 2) {
+			Log.warn(String.format("Not storing score for invalid map hash '%s'.", mapHash));
+			return;
+		}
+		queue.add(new Score(mapHash, timestamp, scoreData.getScore(), scoreData.getScorePercent(),
+				scoreData.getPerfectCount(), scoreData.getGoodCount(), scoreData.getOkayCount(),
+				scoreData.getMissCount(), scoreData.getMaxComboStreak(), (byte) scoreData.getGrade()));
+	}
+
+	/**
+	 * Returns the best score for a map.
+	 * @param mapHash the MD5 hash of the map file (or null)
+	 * @return the score, or null if none (or the database is not loaded yet)
+	 */
+	public static Score getBest(String mapHash) {
+		MapScores s = (mapHash == null) ? null : scores.get(mapHash);
+		return (s == null) ? null : s.top.get(0);
+	}
+
+	/**
+	 * Returns the best scores for a map (at most {@link #TOP_COUNT}).
+	 * @param mapHash the MD5 hash of the map file (or null)
+	 * @return the scores, highest first (unmodifiable)
+	 */
+	public static List<Score> getTopScores(String mapHash) {
+		MapScores s = (mapHash == null) ? null : scores.get(mapHash);
+		return (s == null) ? Collections.<Score>emptyList() : s.top;
+	}
+
+	/**
+	 * Returns the number of stored plays of a map.
+	 * @param mapHash the MD5 hash of the map file (or null)
+	 */
+	public static int getPlayCount(String mapHash) {
+		MapScores s = (mapHash == null) ? null : scores.get(mapHash);
+		return (s == null) ? 0 : s.plays;
+	}
+
+	/**
+	 * Opens the log file (creating it if needed) and loads all scores.
+	 * If the log cannot be opened, results are not stored.
+	 * @param file the log file
+	 * @param indexFile the index file
+	 */
+	private static void open(File file, File indexFile) {
+		long startTime = System.currentTimeMillis();
+		try {
+			log = new RandomAccessFile(file, "rw").getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (log.size() < HEADER_SIZE) {
+				header.putInt(MAGIC).putInt(VERSION).flip();
+				log.truncate(0);
+				log.write(header, 0);
+				log.force(true);
+			} else {
+				log.read(header, 0);
+				header.flip();
+				if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+					ErrorHandler.error(String.format("Score database '%s' has an unknown format; scores will not be saved.",
+							file.getAbsolutePath()), null, false);
+					log.close();
+					log = null;
+					return;
+				}
+			}
+		} catch (IOException e) {
+			ErrorHandler.error(String.format("Failed to open score database '%s'; scores will not be saved.",
+					file.getAbsolutePath()), e, false);
+			log = null;
+			return;
+		}
+
+		try {
+			long length = log.size();
+			long start = loadIndex(indexFile, length) ? indexedLength : HEADER_SIZE;
+
+			// read the records after the checkpoint, stopping at the first bad one
+			ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 256);
+			long position = start;
+			int count = 0;
+			boolean valid = true;
+			while (valid && position < length) {
+				buf.clear();
+				int read = 0;
+				while (buf.hasRemaining() && position + read < length) {
+					int n = log.read(buf, position + read);
+					if (n < 0)
+						break;
+					read += n;
+				}
+				buf.flip();
+				while (buf.remaining() >= RECORD_SIZE) {
+					Score s = readRecord(buf);
+					if (s == null) {
+						valid = false;
+						break;
+					}
+					addScore(s);
+					lastChecksum = buf.getInt(buf.position() - 4);
+					position += RECORD_SIZE;
+					count++;
+				}
+				if (buf.hasRemaining())
+					valid = false;
+			}
+			if (position < length) {
+				Log.warn(String.format("Discarding %d bytes of incomplete or damaged score data.", length - position));
+				log.truncate(position);
+				log.force(true);
+			}
+			log.position(position);
+			if (count > 0 || start == HEADER_SIZE)
+				saveIndex(indexFile);
+			Log.info(String.format("Loaded scores for %d maps (%d records read) in %dms.",
+					scores.size(), count, System.currentTimeMillis() - startTime));
+		} catch (IOException e) {
+			ErrorHandler.error("Failed to read the score database; scores will not be saved.", e, false);
+			try {
+				log.close();
+			} catch (IOException e1) {
+				// ignore
+			}
+			log = null;
+		}
+	}
+
+	/**
+	 * Writes the index file and closes the log file.
+	 * @param indexFile the index file
+	 */
+	private static void close(File indexFile) {
+		if (log == null)
+			return;
+		try {
+			if (log.position() != indexedLength)
+				saveIndex(indexFile);
+			log.close();
+		} catch (IOException e) {
+			Log.warn("Failed to close the score database.", e);
+		}
+		log = null;
+	}
+
+	/**
+	 * Appends a result to the log file and adds it to the scores.
+	 * @param s the result
+	 */
+	private static void append(Score s) {
+		if (log == null)
+			return;
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+		int checksum = writeRecord(buf, s);
+		buf.flip();
+		try {
+			while (buf.hasRemaining())
+				log.write(buf);
+			log.force(false);
+			lastChecksum = checksum;
+			addScore(s);
+		} catch (IOException e) {
+			ErrorHandler.error("Failed to save score.", e, false);
+		}
+	}
+
+	/**
+	 * Adds a result to the scores.
+	 * @param s the result
+	 */
+	private static void addScore(Score s) {
+		MapScores old = scores.get(s.mapHash);
+		scores.put(s.mapHash, (old == null) ? new MapScores(new Score[] { s }, 1) : old.add(s));
+	}
+
+	/**
+	 * Writes a record.
+	 * @param buf the buffer (backed by an array)
+	 * @param s the result
+	 * @return the record checksum
+	 */
+	private static int writeRecord(ByteBuffer buf, Score s) {
+		int start = buf.position();
+		for (int i = 0; i < HASH_SIZE; i++)
+			buf.put((byte) Integer.parseInt(s.mapHash.substring(i * 2, i * 2 + 2), 16));
+		buf.putLong(s.timestamp).putLong(s.score).putFloat(s.percent);
+		buf.putInt(s.perfect).putInt(s.good).putInt(s.okay).putInt(s.miss);
+		buf.putInt(s.maxCombo).put(s.grade);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), buf.arrayOffset() + start, RECORD_SIZE - 4);
+		int checksum = (int) crc.getValue();
+		buf.putInt(checksum);
+		return checksum;
+	}
+
+	/**
+	 * Reads a record.
+	 * @param buf the buffer (backed by an array)
+	 * @return the result, or null if the checksum does not match
+	 */
+	private static Score readRecord(ByteBuffer buf) {
+		int start = buf.position();
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), buf.arrayOffset() + start, RECORD_SIZE - 4);
+		int checksum = buf.getInt(start + RECORD_SIZE - 4);
+		if ((int) crc.getValue() != checksum)
+			return null;
+
+		byte[] hash = new byte[HASH_SIZE];
+		buf.get(hash);
+		Score s = new Score(Utils.toHexString(hash), buf.getLong(), buf.getLong(), buf.getFloat(),
+				buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt(), buf.get());
+		buf.getInt();
+		return s;
+	}
+
+	/**
+	 * Loads the scores from the index file, if it matches the log.
+	 * @param file the index file
+	 * @param logLength the log file length
+	 * @return true if the index was loaded
+	 */
+	private static boolean loadIndex(File file, long logLength) {
+		if (!file.isFile())
+			return false;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION)
+				return false;
+
+			// the log must still contain the last indexed record
+			long length = in.readLong();
+			int checksum = in.readInt();
+			if (length < HEADER_SIZE || length > logLength || (length - HEADER_SIZE) % RECORD_SIZE != 0)
+				return false;
+			if (length > HEADER_SIZE) {
+				ByteBuffer buf = ByteBuffer.allocate(4);
+				log.read(buf, length - 4);
+				if (buf.getInt(0) != checksum)
+					return false;
+			}
+
+			int count = in.readInt();
+			byte[] record = new byte[RECORD_SIZE];
+			ByteBuffer buf = ByteBuffer.wrap(record);
+			for (int i = 0; i < count; i++) {
+				int plays = in.readInt();
+				Score[] top = new Score[in.readUnsignedByte()];
+				for (int j = 0; j < top.length; j++) {
+					in.readFully(record);
+					buf.clear();
+					if ((top[j] = readRecord(buf)) == null)
+						throw new IOException("Index record checksum mismatch.");
+				}
+				if (top.length > 0)
+					scores.put(top[0].mapHash, new MapScores(top, plays));
+			}
+			indexedLength = length;
+			lastChecksum = checksum;
+			return true;
+		} catch (IOException | RuntimeException e) {
+			Log.warn(String.format("Failed to read score index '%s'; the score database will be read in full.",
+					file.getAbsolutePath()), e);
+			scores.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the scores to the index file, covering the whole log.
+	 * @param file the index file
+	 * @throws IOException if the log position cannot be read
+	 */
+	private static void saveIndex(File file) throws IOException {
+		long length = log.position();
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(length);
+			out.writeInt(lastChecksum);
+			out.writeInt(scores.size());
+			ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+			for (MapScores s : scores.values()) {
+				out.writeInt(s.plays);
+				out.writeByte(s.top.size());
+				for (Score score : s.top) {
+					buf.clear();
+					writeRecord(buf, score);
+					out.write(buf.array());
+				}
+			}
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to write score index '%s'.", file.getAbsolutePath()), e);
+			tmp.delete();
+			return;
+		}
+
+		// replace the old index file
+		if (file.isFile() && !file.delete())
+			Log.warn(String.format("Failed to delete old score index '%s'.", file.getAbsolutePath()));
+		if (!tmp.renameTo(file))
+			Log.warn(String.format("Failed to rename score index '%s'.", tmp.getAbsolutePath()));
+		else
+			indexedLength = length;
+	}
+}
@@ -1,8 +1,8 @@
 package itdelatrisu.windsong;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.newdawn.slick.Color;
 import org.newdawn.slick.GameContainer;
@@ -12,8 +12,7 @@ import org.newdawn.slick.Image;
 import itdelatrisu.windsong.audio.MusicController;
 import itdelatrisu.windsong.audio.SoundController;
 import itdelatrisu.windsong.audio.SoundEffect;
-import itdelatrisu.windsong.map.HitObject;
-import itdelatrisu.windsong.map.MapFile;
+import itdelatrisu.windsong.map.HitObjectList;
 import itdelatrisu.windsong.ui.Fonts;
 import itdelatrisu.windsong.ui.animations.AnimatedValue;
 import itdelatrisu.windsong.ui.animations.AnimationEquation;
@@ -40,6 +39,9 @@ public class ScoreData {
 	/** Duration, in milliseconds, of a combo pop effect. */
 	private static final int COMBO_POP_TIME = 250;
 
+	/** Number of cached symbol image scales per unit of scale. */
+	private static final int SYMBOL_SCALE_STEPS = 100;
+
 	/** Count for each type of hit result. */
 	private int hitPerfect, hitGood, hitOkay, hitMiss;
 
@@ -49,6 +51,9 @@ public class ScoreData {
 	/** Alpha value of the last hit result. */
 	private AnimatedValue lastHitResultValue = new AnimatedValue(800, 1f, 0f, AnimationEquation.IN_BACK);
 
+	/** Number of hit results so far (to detect new results in snapshots). */
+	private int hitResultCount = 0;
+
 	/** Total object count (so far). */
 	@SuppressWarnings("unused")
 	private int objectCount = 0;
@@ -80,16 +85,208 @@ public class ScoreData {
 	/** Score text symbol images. */
 	private HashMap<Character, Image> scoreSymbols;
 
-	/** List of hit objects currently able to be hit. */
-	private List<HitObject> hitObjects = new ArrayList<HitObject>();
+	/** Scaled score text symbol images, by symbol and scale step (see {@link #getSymbol(char, float)}). */
+	private HashMap<Character, Image[]> scaledSymbols;
+
+	/** Filter color for drawing score text symbols. */
+	private final Color symbolColor = new Color(Color.white);
+
+	/** Reusable score text buffer. */
+	private final SymbolText symbolText = new SymbolText();
+
+	/**
+	 * Reusable buffer of score text symbols.
+	 * Numbers are formatted without creating any objects.
+	 */
+	private static class SymbolText {
+		/** The characters. */
+		public final char[] chars = new char[32];
+
+		/** Number of characters. */
+		public int length = 0;
+
+		/** Clears the buffer. */
+		public SymbolText clear() {
+			length = 0;
+			return this;
+		}
+
+		/** Appends a character. */
+		public SymbolText append(char c) {
+			chars[length++] = c;
+			return this;
+		}
+
+		/**
+		 * Appends a non-negative integer, padded with leading zeros.
+		 * @param value the value
+		 * @param minDigits the minimum number of digits
+		 */
+		public SymbolText append(long value, int minDigits) {
+			int digits = 1;
+			for (long v = value / 10; v > 0; v /= 10)
+				digits++;
+			for (int i = digits; i < minDigits; i++)
+				chars[length++] = '0';
+			for (int i = length + digits - 1; i >= length; i--) {
+				chars[i] = (char) ('0' + value % 10);
+				value /= 10;
+			}
+			length += digits;
+			return this;
+		}
+
+		/**
+		 * Appends a non-negative number with a fixed number of decimal places
+		 * (rounded half up), padded with leading zeros.
+		 * @param value the value
+		 * @param minDigits the minimum number of integer digits
+		 * @param decimals the number of decimal places
+		 */
+		public SymbolText append(double value, int minDigits, int decimals) {
+			long unit = 1;
+			for (int i = 0; i < decimals; i++)
+				unit *= 10;
+			long scaled = Math.round(Math.max(value, 0) * unit);
+			append(scaled / unit, minDigits);
+			if (decimals > 0) {
+				chars[length++] = '.';
+				append(scaled % unit, decimals);
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Scoring state published by one thread for display on another.
+	 * A snapshot is not modified while it is published.
+	 */
+	private static class Snapshot {
+		/** The publishing order. */
+		public long sequence = 0;
+
+		/** Scoring state (see the fields of the same names). */
+		public int hitPerfect, hitGood, hitOkay, hitMiss, combo, comboMax, hitResultCount;
+		public long score;
+		public float health;
+		public GameImage lastHitResult;
+	}
+
+	/**
+	 * Triple buffer of snapshots, passing the newest scoring state from a
+	 * logic thread to the display thread without locks or creating objects.
+	 * Exactly one thread may write and exactly one thread may read.
+	 */
+	public static class SnapshotBuffer {
+		/** The newest published snapshot. */
+		private final AtomicReference<Snapshot> published = new AtomicReference<Snapshot>(new Snapshot());
+
+		/** The snapshot being written (owned by the writing thread). */
+		private Snapshot back = new Snapshot();
+
+		/** The snapshot last read (owned by the reading thread). */
+		private Snapshot front = new Snapshot();
+
+		/** Number of snapshots written. */
+		private long sequence = 0;
+
+		/**
+		 * Publishes the scoring state of the score data (writing thread only).
+		 * @param data the score data
+		 */
+		public void write(ScoreData data) {
+			data.writeSnapshot(back);
+			back.sequence = ++sequence;
+			back = published.getAndSet(back);
+		}
+
+		/**
+		 * Copies the newest published scoring state into the score data,
+		 * if anything was published since the last read (reading thread only).
+		 * @param data the score data (used only for display)
+		 * @return true if the score data was changed
+		 */
+		public boolean read(ScoreData data) {
+			if (published.get().sequence <= front.sequence)
+				return false;
+			front = published.getAndSet(front);
+			data.readSnapshot(front);
+			return true;
+		}
+	}
+
+	/** All hit objects. */
+	private HitObjectList hitObjects;
+
+	/**
+	 * Queue of hit object indices in one lane (grid position), in the order sent.
+	 * Backed by a growable ring buffer.
+	 */
+	private static class LaneQueue {
+		/** The hit object indices (capacity is a power of two). */
+		private int[] objects = new int[8];
+
+		/** Index of the first hit object in the buffer. */
+		private int head = 0;
+
+		/** Number of hit objects. */
+		private int size = 0;
+
+		/** Appends a hit object index. */
+		public void add(int index) {
+			if (size == objects.length) {
+				int[] newObjects = new int[objects.length * 2];
+				for (int i = 0; i < size; i++)
+					newObjects[i] = objects[(head + i) & (objects.length - 1)];
+				objects = newObjects;
+				head = 0;
+			}
+			objects[(head + size) & (objects.length - 1)] = index;
+			size++;
+		}
+
+		/** Returns the first hit object index (the queue must not be empty). */
+		public int peek() { return objects[head]; }
+
+		/** Removes the first hit object index (the queue must not be empty). */
+		public void remove() {
+			head = (head + 1) & (objects.length - 1);
+			size--;
+		}
+
+		/** Returns whether the queue is empty. */
+		public boolean isEmpty() { return size == 0; }
+	}
+
+	/**
+	 * Hit objects currently able to be hit, by position.
+	 * Objects are sent in time order, so the first object in each lane
+	 * is both the next one to be hit and the next one to expire.
+	 * The gamepad only has nine positions, but there is a lane for every
+	 * position a map can store, so objects at other positions are still
+	 * sent and expire as misses instead of being dropped.
+	 */
+	private final LaneQueue[] lanes = new LaneQueue[HitObjectList.POSITION_COUNT];
+
+	/** Number of hit objects currently able to be hit. */
+	private int activeCount = 0;
+
+	/** Timing errors of all scoring hits. */
+	private final HitStatistics hitStatistics = new HitStatistics();
 
 	/** Container dimensions. */
 	private int width, height;
 
+	/** Whether there is no display (nothing can be drawn and no sounds are played). */
+	private final boolean headless;
+
 	/**
 	 * Constructor.
+	 * @param container the game container
+	 * @param hitObjects the hit objects to be sent with {@link #sendMapObject(int)}
 	 */
-	public ScoreData(GameContainer container) {
+	public ScoreData(GameContainer container, HitObjectList hitObjects) {
+		this(hitObjects, false);
 		this.width = container.getWidth();
 		this.height = container.getHeight();
 
@@ -109,33 +306,77 @@ public class ScoreData {
 		scoreSymbols.put('.', GameImage.SCORE_DOT.getImage());
 		scoreSymbols.put('%', GameImage.SCORE_PERCENT.getImage());
 		scoreSymbols.put('x', GameImage.SCORE_X.getImage());
+		scaledSymbols = new HashMap<Character, Image[]>(14);
+	}
+
+	/**
+	 * Constructor for score data without a display (e.g. for simulations).
+	 * Nothing can be drawn and no sounds are played.
+	 * @param hitObjects the hit objects to be sent with {@link #sendMapObject(int)}
+	 */
+	public ScoreData(HitObjectList hitObjects) { this(hitObjects, true); }
+
+	/**
+	 * Constructor.
+	 * @param hitObjects the hit objects to be sent with {@link #sendMapObject(int)}
+	 * @param headless whether there is no display
+	 */
+	private ScoreData(HitObjectList hitObjects, boolean headless) {
+		this.hitObjects = hitObjects;
+		this.headless = headless;
+		for (int i = 0; i < lanes.length; i++)
+			lanes[i] = new LaneQueue();
+	}
+
+	/**
+	 * Returns a score text symbol image at a scale.
+	 * Scales are rounded to the nearest {@link #SYMBOL_SCALE_STEPS} step,
+	 * and scaled copies are created only once per symbol and step.
+	 * @param c the symbol
+	 * @param scale the scale
+	 */
+	private Image getSymbol(char c, float scale) {
+		Image image = scoreSymbols.get(c);
+		int step = Math.max(Math.round(scale * SYMBOL_SCALE_STEPS), 1);
+		if (step == SYMBOL_SCALE_STEPS)
+			return image;
+
+		Image[] images = scaledSymbols.get(c);
+		if (images == null || step >= images.length) {
+			int size = Math.max(step + 1, SYMBOL_SCALE_STEPS * 2);
+			images = (images == null) ? new Image[size] : Arrays.copyOf(images, Math.max(size, images.length * 2));
+			scaledSymbols.put(c, images);
+		}
+		Image scaled = images[step];
+		if (scaled == null) {
+			scaled = image.getScaledCopy((float) step / SYMBOL_SCALE_STEPS);
+			scaled.setAlpha(1f);
+			images[step] = scaled;
+		}
+		return scaled;
 	}
 
 	/**
 	 * Draws a string of scoreSymbols of fixed width.
-	 * @param str the string to draw
+	 * @param text the symbols to draw
 	 * @param x the starting x coordinate
 	 * @param y the y coordinate
 	 * @param scale the scale to apply
 	 * @param fixedsize the width to use for all symbols
 	 * @param rightAlign align right (true) or left (false)
 	 */
-	private void drawFixedSizeSymbolString(String str, float x, float y, float scale, float fixedsize, boolean rightAlign) {
-		char[] c = str.toCharArray();
+	private void drawFixedSizeSymbolString(SymbolText text, float x, float y, float scale, float fixedsize, boolean rightAlign) {
+		char[] c = text.chars;
 		float cx = x;
 		if (rightAlign) {
-			for (int i = c.length - 1; i >= 0; i--) {
-				Image digit = scoreSymbols.get(c[i]);
-				if (scale != 1.0f)
-					digit = digit.getScaledCopy(scale);
+			for (int i = text.length - 1; i >= 0; i--) {
+				Image digit = getSymbol(c[i], scale);
 				cx -= fixedsize;
 				digit.draw(cx + (fixedsize - digit.getWidth()) / 2, y);
 			}
 		} else {
-			for (int i = 0; i < c.length; i++) {
-				Image digit = scoreSymbols.get(c[i]);
-				if (scale != 1.0f)
-					digit = digit.getScaledCopy(scale);
+			for (int i = 0; i < text.length; i++) {
+				Image digit = getSymbol(c[i], scale);
 				digit.draw(cx + (fixedsize - digit.getWidth()) / 2, y);
 				cx += fixedsize;
 			}
@@ -152,26 +393,35 @@ public class ScoreData {
 	 * @param rightAlign align right (true) or left (false)
 	 */
 	public void drawSymbolString(String str, float x, float y, float scale, float alpha, boolean rightAlign) {
-		char[] c = str.toCharArray();
+		symbolText.clear();
+		for (int i = 0; i < str.length(); i++)
+			symbolText.append(str.charAt(i));
+		drawSymbolString(symbolText, x, y, scale, alpha, rightAlign);
+	}
+
+	/**
+	 * Draws a string of scoreSymbols.
+	 * @param text the symbols to draw
+	 * @param x the starting x coordinate
+	 * @param y the y coordinate
+	 * @param scale the scale to apply
+	 * @param alpha the alpha level
+	 * @param rightAlign align right (true) or left (false)
+	 */
+	private void drawSymbolString(SymbolText text, float x, float y, float scale, float alpha, boolean rightAlign) {
+		char[] c = text.chars;
 		float cx = x;
+		symbolColor.a = alpha;
 		if (rightAlign) {
-			for (int i = c.length - 1; i >= 0; i--) {
-				Image digit = scoreSymbols.get(c[i]);
-				if (scale != 1.0f)
-					digit = digit.getScaledCopy(scale);
+			for (int i = text.length - 1; i >= 0; i--) {
+				Image digit = getSymbol(c[i], scale);
 				cx -= digit.getWidth();
-				digit.setAlpha(alpha);
-				digit.draw(cx, y);
-				digit.setAlpha(1f);
+				digit.draw(cx, y, symbolColor);
 			}
 		} else {
-			for (int i = 0; i < c.length; i++) {
-				Image digit = scoreSymbols.get(c[i]);
-				if (scale != 1.0f)
-					digit = digit.getScaledCopy(scale);
-				digit.setAlpha(alpha);
-				digit.draw(cx, y);
-				digit.setAlpha(1f);
+			for (int i = 0; i < text.length; i++) {
+				Image digit = getSymbol(c[i], scale);
+				digit.draw(cx, y, symbolColor);
 				cx += digit.getWidth();
 			}
 		}
@@ -186,18 +436,16 @@ public class ScoreData {
 		float uiScale = GameImage.getUIscale();
 
 		// score
-		drawFixedSizeSymbolString((scoreDisplay < 100000000) ? String.format("%08d", scoreDisplay) : Long.toString(scoreDisplay),
+		drawFixedSizeSymbolString(symbolText.clear().append(scoreDisplay, 8),
 				width - margin, 0, 1.0f, scoreSymbols.get('0').getWidth() - 2, true);
 
 		// score percentage
 		int symbolHeight = scoreSymbols.get('0').getHeight();
-		drawSymbolString(
-			String.format((scorePercentDisplay < 10f) ? "0%.2f%%" : "%.2f%%", scorePercentDisplay),
+		drawSymbolString(symbolText.clear().append(scorePercentDisplay, 2, 2).append('%'),
 			width - margin, symbolHeight, 0.60f, 1f, true);
 
 		// map progress circle
-		MapFile map = MusicController.getMap();
-		int firstObjectTime = map.objects[0].getTime();
+		int firstObjectTime = hitObjects.getTime(0), endTime = hitObjects.getEndTime();
 		int trackPosition = MusicController.getPosition();
 		float circleDiameter = symbolHeight * 0.60f;
 		int circleX = (int) (width - margin - (  // max width: "100.00%"
@@ -212,7 +460,7 @@ public class ScoreData {
 		g.drawOval(circleX, symbolHeight, circleDiameter, circleDiameter);
 		if (trackPosition > firstObjectTime)  // map progress (white)
 			g.fillArc(circleX, symbolHeight, circleDiameter, circleDiameter,
-				-90, -90 + (int) (360f * (Math.min(trackPosition, map.getEndTime()) - firstObjectTime) / (map.getEndTime() - firstObjectTime)));
+				-90, -90 + (int) (360f * (Math.min(trackPosition, endTime) - firstObjectTime) / (endTime - firstObjectTime)));
 		g.setAntiAlias(false);
 
 		// scorebar
@@ -220,10 +468,10 @@ public class ScoreData {
 		Image scorebar = GameImage.SCOREBAR_BG.getImage();
 		Image colour = GameImage.SCOREBAR_COLOUR.getImage();
 		float colourX = 4 * uiScale, colourY = 15 * uiScale;
-		Image colourCropped = colour.getSubImage(0, 0, (int) (645 * uiScale * healthRatio), colour.getHeight());
+		int colourWidth = (int) (645 * uiScale * healthRatio);
 		scorebar.setAlpha(1f);
 		scorebar.draw(0, 0);
-		colourCropped.draw(colourX, colourY);
+		colour.draw(colourX, colourY, colourX + colourWidth, colourY + colour.getHeight(), 0, 0, colourWidth, colour.getHeight());
 		Image ki = null;
 		if (health >= 50f)
 			ki = GameImage.SCOREBAR_KI.getImage();
@@ -231,19 +479,19 @@ public class ScoreData {
 			ki = GameImage.SCOREBAR_KI_DANGER.getImage();
 		else
 			ki = GameImage.SCOREBAR_KI_DANGER2.getImage();
-		if (comboPopTime < COMBO_POP_TIME)
-			ki = ki.getScaledCopy(1f + (0.45f * (1f - (float) comboPopTime / COMBO_POP_TIME)));
-		ki.drawCentered(colourX + colourCropped.getWidth(), colourY);
+		float kiScale = (comboPopTime < COMBO_POP_TIME) ? 1f + (0.45f * (1f - (float) comboPopTime / COMBO_POP_TIME)) : 1f;
+		float kiWidth = ki.getWidth() * kiScale, kiHeight = ki.getHeight() * kiScale;
+		ki.draw(colourX + colourWidth - kiWidth / 2, colourY - kiHeight / 2, kiWidth, kiHeight);
 
 		// combo count
 		if (combo > 0) {
 			float comboPop = 1 - ((float) comboPopTime / COMBO_POP_TIME);
 			float comboPopBack  = 1 + comboPop * 0.45f;
 			float comboPopFront = 1 + comboPop * 0.08f;
-			String comboString = String.format("%dx", combo);
+			symbolText.clear().append(combo, 1).append('x');
 			if (comboPopTime != COMBO_POP_TIME)
-				drawSymbolString(comboString, margin, height - margin - (symbolHeight * comboPopBack), comboPopBack, 0.5f, false);
-			drawSymbolString(comboString, margin, height - margin - (symbolHeight * comboPopFront), comboPopFront, 1f, false);
+				drawSymbolString(symbolText, margin, height - margin - (symbolHeight * comboPopBack), comboPopBack, 0.5f, false);
+			drawSymbolString(symbolText, margin, height - margin - (symbolHeight * comboPopFront), comboPopFront, 1f, false);
 		}
 	}
 
@@ -274,6 +522,24 @@ public class ScoreData {
 	/** Returns the current combo streak. */
 	public int getComboStreak() { return combo; }
 
+	/** Returns the max combo streak obtained. */
+	public int getMaxComboStreak() { return comboMax; }
+
+	/** Returns the number of perfect hits. */
+	public int getPerfectCount() { return hitPerfect; }
+
+	/** Returns the number of good hits. */
+	public int getGoodCount() { return hitGood; }
+
+	/** Returns the number of okay hits. */
+	public int getOkayCount() { return hitOkay; }
+
+	/** Returns the number of misses. */
+	public int getMissCount() { return hitMiss; }
+
+	/** Returns the timing error statistics of all scoring hits. */
+	public HitStatistics getHitStatistics() { return hitStatistics; }
+
 	/**
 	 * Increases the combo streak by one.
 	 */
@@ -286,7 +552,7 @@ public class ScoreData {
 
 	/** Resets the combo streak to zero. */
 	private void resetComboStreak() {
-		if (combo >= 10)
+		if (combo >= 10 && !headless)
 			SoundController.playSound(SoundEffect.COMBOBREAK);
 		combo = 0;
 	}
@@ -310,7 +576,7 @@ public class ScoreData {
 	/**
 	 * Returns the raw score percentage.
 	 */
-	private float getScorePercent() { return getScorePercent(hitPerfect, hitGood, hitOkay, hitMiss); }
+	public float getScorePercent() { return getScorePercent(hitPerfect, hitGood, hitOkay, hitMiss); }
 
 	/**
 	 * Gets the grade associated with the percent scored / missed.
@@ -330,10 +596,11 @@ public class ScoreData {
 	/**
 	 * Registers the given map hit object.
 	 * This should be called when the hit object first appears on the screen (i.e. during fade-in).
-	 * @param hitObject the hit object
+	 * @param index the hit object index
 	 */
-	public void sendMapObject(HitObject hitObject) {
-		hitObjects.add(hitObject);
+	public void sendMapObject(int index) {
+		lanes[hitObjects.getPosition(index)].add(index);
+		activeCount++;
 		objectCount++;
 	}
 
@@ -344,55 +611,62 @@ public class ScoreData {
 	 * @return the score for the hit
 	 */
 	public long sendHit(int pos, int time) {
-		// check all registered hit objects...
-		for (HitObject h : hitObjects) {
-			if (h.getPosition() == pos) {
-				// TODO: animation graphic magic stuff
-
-				// compute score based on time difference
-				int timeDiff = Math.abs(h.getTime() - time);
-				int points;
-				if (timeDiff < PERFECT_TIME) {
-					points = PERFECT_SCORE;
-					hitPerfect++;
-					lastHitResult = GameImage.HIT_PERFECT;
-					changeHealth(10f);
-				} else if (timeDiff < GOOD_TIME) {
-					points = GOOD_SCORE;
-					hitGood++;
-					lastHitResult = GameImage.HIT_GOOD;
-					changeHealth(5f);
-				} else if (timeDiff < OKAY_TIME) {
-					points = OKAY_SCORE;
-					hitOkay++;
-					lastHitResult = GameImage.HIT_OK;
-					changeHealth(1f);
-				} else {
-					points = MISS;
-					hitMiss++;
-					lastHitResult = GameImage.HIT_MISS;
-					changeHealth(-2f);
-					resetComboStreak();
-				}
-				lastHitResultValue.setTime(0);
-
-				// successful hit!
-				if (points != MISS) {
-					// increment score/combo
-					score += points;
-					incrementComboStreak();
+		// judge the first registered hit object in the lane
+		if (pos < 0 || pos >= lanes.length)
+			return MISS;
+		LaneQueue lane = lanes[pos];
+		if (lane.isEmpty())
+			return MISS;
+		int h = lane.peek();
+
+		// TODO: animation graphic magic stuff
+
+		// compute score based on time difference
+		int timeDiff = Math.abs(hitObjects.getTime(h) - time);
+		int points;
+		if (timeDiff < PERFECT_TIME) {
+			points = PERFECT_SCORE;
+			hitPerfect++;
+			lastHitResult = GameImage.HIT_PERFECT;
+			changeHealth(10f);
+		} else if (timeDiff < GOOD_TIME) {
+			points = GOOD_SCORE;
+			hitGood++;
+			lastHitResult = GameImage.HIT_GOOD;
+			changeHealth(5f);
+		} else if (timeDiff < OKAY_TIME) {
+			points = OKAY_SCORE;
+			hitOkay++;
+			lastHitResult = GameImage.HIT_OK;
+			changeHealth(1f);
+		} else {
+			points = MISS;
+			hitMiss++;
+			lastHitResult = GameImage.HIT_MISS;
+			changeHealth(-2f);
+			resetComboStreak();
+		}
+		lastHitResultValue.setTime(0);
+		hitResultCount++;
 
-					// play the hit sound
-					SoundController.playHitSound(h.getSound());
-				}
+		// successful hit!
+		if (points != MISS) {
+			hitStatistics.add(time - hitObjects.getTime(h));
 
-				// remove the hit object
-				hitObjects.remove(h);
+			// increment score/combo
+			score += points;
+			incrementComboStreak();
 
-				return points;
-			}
+			// play the hit sound
+			if (!headless)
+				SoundController.playHitSound(hitObjects.getSound(h));
 		}
-		return MISS;
+
+		// remove the hit object
+		lane.remove();
+		activeCount--;
+
+		return points;
 	}
 
 	/**
@@ -405,21 +679,25 @@ public class ScoreData {
 			lastHitResultValue.update(delta);
 
 		// remove hit objects after their time has expired
-		List<HitObject> toRemove = new ArrayList<HitObject>();
-		for (HitObject h : hitObjects) {
-			if (h.getTime() - trackPosition < -OKAY_TIME)
-				toRemove.add(h);
+		int expired = 0;
+		if (activeCount > 0) {
+			for (LaneQueue lane : lanes) {
+				while (!lane.isEmpty() && hitObjects.getTime(lane.peek()) - trackPosition < -OKAY_TIME) {
+					lane.remove();
+					expired++;
+				}
+			}
 		}
-		if (!toRemove.isEmpty()) {
-			for (HitObject r : toRemove)
-				hitObjects.remove(r);
+		if (expired > 0) {
+			activeCount -= expired;
 
 			// count misses and break combo
-			hitMiss += toRemove.size();
-			changeHealth(-2f * toRemove.size());
+			hitMiss += expired;
+			changeHealth(-2f * expired);
 			resetComboStreak();
 			lastHitResult = GameImage.HIT_MISS;
 			lastHitResultValue.setTime(0);
+			hitResultCount++;
 		}
 
 		// score display
@@ -444,7 +722,7 @@ public class ScoreData {
 		}
 
 		// drain health...
-		if (!hitObjects.isEmpty())
+		if (activeCount > 0)
 			changeHealth(-delta / 250f);
 
 		// health display
@@ -467,21 +745,68 @@ public class ScoreData {
 			comboPopTime = COMBO_POP_TIME;
 	}
 	
+	/**
+	 * Copies the scoring state into a snapshot.
+	 * @param s the snapshot
+	 */
+	private void writeSnapshot(Snapshot s) {
+		s.hitPerfect = hitPerfect;
+		s.hitGood = hitGood;
+		s.hitOkay = hitOkay;
+		s.hitMiss = hitMiss;
+		s.combo = combo;
+		s.comboMax = comboMax;
+		s.hitResultCount = hitResultCount;
+		s.score = score;
+		s.health = health;
+		s.lastHitResult = lastHitResult;
+	}
+
+	/**
+	 * Sets the scoring state from a snapshot, starting the display animations
+	 * for any new hit result or combo (no sounds are played).
+	 * @param s the snapshot
+	 */
+	private void readSnapshot(Snapshot s) {
+		if (s.hitResultCount != hitResultCount) {
+			lastHitResultValue.setTime(0);
+			hitResultCount = s.hitResultCount;
+		}
+		if (s.combo > combo)
+			comboPopTime = 0;
+		hitPerfect = s.hitPerfect;
+		hitGood = s.hitGood;
+		hitOkay = s.hitOkay;
+		hitMiss = s.hitMiss;
+		combo = s.combo;
+		comboMax = s.comboMax;
+		score = s.score;
+		health = s.health;
+		lastHitResult = s.lastHitResult;
+	}
+
+	/**
+	 * Returns the ranking image for a grade.
+	 * @param grade the grade (see {@link #getGrade()})
+	 */
+	public static GameImage getGradeImage(int grade) {
+		if (grade == GRADE_S) return GameImage.RANKING_S;
+		else if (grade == GRADE_A) return GameImage.RANKING_A;
+		else if (grade == GRADE_B) return GameImage.RANKING_B;
+		else if (grade == GRADE_C) return GameImage.RANKING_C;
+		else if (grade == GRADE_D) return GameImage.RANKING_D;
+		else return GameImage.RANKING_F;
+	}
+
 	/**
 	 * Draws the scoring information to the screen.
+	 * @param g the graphics context
 	 */
-	public void drawScoreScreen() {
+	public void drawScoreScreen(Graphics g) {
 		float xUnit = width * 2f / 3f / 6f;
 		float yUnit = height / 14f;
 		
-		GameImage rankingImage;
-		int ranking = getGrade();
-		if (ranking == GRADE_S) rankingImage = GameImage.RANKING_S;
-		else if (ranking == GRADE_A) rankingImage = GameImage.RANKING_A;
-		else if (ranking == GRADE_B) rankingImage = GameImage.RANKING_B;
-		else if (ranking == GRADE_C) rankingImage = GameImage.RANKING_C;
-		else if (ranking == GRADE_D) rankingImage = GameImage.RANKING_D;
-		else rankingImage = GameImage.RANKING_F;
+		GameImage rankingImage = getGradeImage(getGrade());
 		
 		float rankingScale = Math.min(3f * xUnit / rankingImage.getImage().getWidth(),
 				6f * yUnit / rankingImage.getImage().getHeight());
@@ -499,9 +824,9 @@ public class ScoreData {
 				.draw(3f * xUnit, 5f * yUnit);
 		
 		float generalScale = 0.5f * yUnit / scoreSymbols.get('0').getHeight();
-		drawSymbolString(String.format("%.2f%%", getScorePercent()),
+		drawSymbolString(symbolText.clear().append(getScorePercent(), 1, 2).append('%'),
 				xUnit, 5.6f * yUnit, generalScale, 1.0f, false);
-		drawSymbolString(String.format("%dx", comboMax),
+		drawSymbolString(symbolText.clear().append(comboMax, 1).append('x'),
 				3f * xUnit, 5.6f * yUnit, generalScale, 1.0f, false);
 		
 		float hitScale = 0.75f * yUnit / GameImage.HIT_PERFECT.getImage().getHeight();
@@ -511,10 +836,12 @@ public class ScoreData {
 		GameImage.HIT_MISS.getImage().getScaledCopy(hitScale).draw(xUnit, 10f * yUnit);
 		
 		float countScale = 0.75f * yUnit / scoreSymbols.get('0').getHeight();
-		drawSymbolString(Integer.toString(hitPerfect), 4 * xUnit, 7f * yUnit, countScale, 1.0f, true);
-		drawSymbolString(Integer.toString(hitGood), 4 * xUnit, 8f * yUnit, countScale, 1.0f, true);
-		drawSymbolString(Integer.toString(hitOkay), 4 * xUnit, 9f * yUnit, countScale, 1.0f, true);
-		drawSymbolString(Integer.toString(hitMiss), 4 * xUnit, 10f * yUnit, countScale, 1.0f, true);
+		drawSymbolString(symbolText.clear().append(hitPerfect, 1), 4 * xUnit, 7f * yUnit, countScale, 1.0f, true);
+		drawSymbolString(symbolText.clear().append(hitGood, 1), 4 * xUnit, 8f * yUnit, countScale, 1.0f, true);
+		drawSymbolString(symbolText.clear().append(hitOkay, 1), 4 * xUnit, 9f * yUnit, countScale, 1.0f, true);
+		drawSymbolString(symbolText.clear().append(hitMiss, 1), 4 * xUnit, 10f * yUnit, countScale, 1.0f, true);
+
+		hitStatistics.draw(g, xUnit, 11.25f * yUnit, 4f * xUnit, 1.5f * yUnit);
 		
 		Fonts.MEDIUM.drawString(5.75f * xUnit, 9f * yUnit, "Click or press space to continue.");
 	}
@@ -1,15 +1,15 @@
 package itdelatrisu.windsong;
 
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -51,6 +51,12 @@ public class Utils {
 		Arrays.sort(illegalChars);
 	}
 
+	/** Read buffer size for hashing files. */
+	private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+	/** Hexadecimal digits. */
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	// game-related variables
 	private static Input input;
 
@@ -274,29 +280,46 @@ public class Utils {
 	 */
 	public static String getMD5(File file) {
 		try {
-			InputStream in = new BufferedInputStream(new FileInputStream(file));
 			MessageDigest md = MessageDigest.getInstance("MD5");
-			byte[] buf = new byte[4096];
-
-			while (true) {
-				int len = in.read(buf);
-				if (len < 0)
-					break;
-				md.update(buf, 0, len);
-			}
-			in.close();
-
-			byte[] md5byte = md.digest();
-			StringBuilder result = new StringBuilder();
-			for (byte b : md5byte)
-				result.append(String.format("%02x", b));
-			return result.toString();
+			digest(file, md, ByteBuffer.allocate(DIGEST_BUFFER_SIZE));
+			return toHexString(md.digest());
 		} catch (NoSuchAlgorithmException | IOException e) {
 			ErrorHandler.error("Failed to calculate MD5 hash.", e, true);
 		}
 		return null;
 	}
 
+	/**
+	 * Updates a message digest with the contents of a file.
+	 * @param file the file to read
+	 * @param md the message digest
+	 * @param buf the read buffer to use (its contents are overwritten)
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void digest(File file, MessageDigest md, ByteBuffer buf) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buf.clear();
+			while (in.read(buf) != -1) {
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the lowercase hex form of a byte array.
+	 * @param bytes the bytes
+	 */
+	public static String toHexString(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
 	/**
 	 * Returns a formatted time string for a given number of seconds.
 	 * @param seconds the number of seconds
@@ -48,6 +48,42 @@ public class MusicController {
 	/** The track dim level, if dimmed. */
 	private static float dimLevel = 1f;
 
+	/**
+	 * A track position reading, for other threads (see {@link #updateClock()}).
+	 * The position advances from the reading time at the reading pitch.
+	 */
+	private static class ClockReading {
+		/** The reading time, from {@link System#nanoTime()}. */
+		public final long time;
+
+		/** The track position at the reading time (including the offset), in ms. */
+		public final double position;
+
+		/** The track pitch (0 if not playing). */
+		public final float pitch;
+
+		/**
+		 * Constructor.
+		 * @param time the reading time, from {@link System#nanoTime()}
+		 * @param position the track position, in ms
+		 * @param pitch the track pitch (0 if not playing)
+		 */
+		public ClockReading(long time, double position, float pitch) {
+			this.time = time;
+			this.position = position;
+			this.pitch = pitch;
+		}
+
+		/** Returns the track position at a time, in ms. */
+		public double getPosition(long t) { return position + (t - time) / 1000000.0 * pitch; }
+	}
+
+	/** Largest drift before a new clock reading is published, in ms. */
+	private static final double CLOCK_TOLERANCE = 0.5;
+
+	/** The last published clock reading. */
+	private static volatile ClockReading clock = new ClockReading(0, 0, 0);
+
 	// This class should not be instantiated.
 	private MusicController() {}
 
@@ -73,6 +109,7 @@ public class MusicController {
 			switch (Utils.getExtension(map.audioFilename.getName())) {
 			case "ogg":
 			case "mp3":
+			case "wav":
 				trackLoader = new Thread() {
 					@Override
 					public void run() { loadTrack(audioFile, 0, loop); }
@@ -217,13 +254,56 @@ public class MusicController {
 	 */
 	public static int getPosition() {
 		if (isPlaying())
-			return (int) (player.getPosition() * 1000 + Options.getMusicOffset());
+			return (int) (player.getPosition() * 1000 + getOffset());
 		else if (isPaused())
-			return Math.max((int) (pauseTime * 1000 + Options.getMusicOffset()), 0);
+			return Math.max((int) (pauseTime * 1000 + getOffset()), 0);
 		else
 			return 0;
 	}
 
+	/**
+	 * Returns the position in the current track at an earlier time, in milliseconds.
+	 * If the track is not playing, this is the same as {@link #getPosition()}.
+	 * @param time the earlier time, from {@link System#nanoTime()}
+	 */
+	public static int getPosition(long time) {
+		if (isPlaying())
+			return (int) (player.getPosition(time) * 1000 + getOffset());
+		else
+			return getPosition();
+	}
+
+	/**
+	 * Publishes the current track position for {@link #getClockPosition(long)}.
+	 * This must be called on the game thread (e.g. once per frame); a new
+	 * reading is only created if the track pitch changed or the position
+	 * drifted from the last reading.
+	 */
+	public static void updateClock() {
+		long time = System.nanoTime();
+		boolean playing = isPlaying();
+		double position = (playing) ? player.getPosition() * 1000.0 + getOffset() : getPosition();
+		float pitch = (playing) ? player.getPitch() : 0f;
+		ClockReading c = clock;
+		if (c.pitch != pitch || Math.abs(c.getPosition(time) - position) > CLOCK_TOLERANCE)
+			clock = new ClockReading(time, position, pitch);
+	}
+
+	/**
+	 * Returns the track position at a time, from the last reading published
+	 * by {@link #updateClock()}.  Unlike {@link #getPosition(long)}, this can
+	 * be called from any thread.
+	 * @param time the time, from {@link System#nanoTime()}
+	 * @return the track position (in ms)
+	 */
+	public static int getClockPosition(long time) { return (int) clock.getPosition(time); }
+
+	/**
+	 * Returns the effective music offset (the option value plus any automatic adjustment).
+	 * @return the offset (in milliseconds)
+	 */
+	public static int getOffset() { return Options.getMusicOffset() + OffsetCalibrator.getOffset(); }
+
 	/**
 	 * Seeks to a position in the current track.
 	 * @param position the new track position (in ms)
@@ -0,0 +1,156 @@
+package itdelatrisu.windsong.audio;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.lwjgl.openal.AL;
+import org.lwjgl.openal.ALC10;
+import org.newdawn.slick.util.Log;
+
+import itdelatrisu.windsong.HitStatistics;
+import itdelatrisu.windsong.Options;
+import itdelatrisu.windsong.Utils;
+
+/**
+ * Automatic music offset calibration.
+ * <p>
+ * After each completed song, the trimmed mean of the hit timing errors is
+ * used to nudge an automatic offset (added to the music offset option)
+ * towards zero error.  Changes are damped and limited per song, only
+ * applied between songs, bounded by {@link Options#getAutoOffsetLimit()},
+ * and stored separately for each audio output device.  Every change is
+ * logged.
+ */
+public class OffsetCalibrator {
+	/** Minimum number of scoring hits in a song to adjust the offset. */
+	private static final int MIN_HITS = 50;
+
+	/** Fraction of hit errors ignored at each end. */
+	private static final float TRIM = 0.25f;
+
+	/** Fraction of the measured error corrected after each song. */
+	private static final float GAIN = 0.5f;
+
+	/** Largest change after a single song, in ms. */
+	private static final int MAX_STEP = 25;
+
+	/** Automatic offsets, by audio device (loaded when first needed). */
+	private static Map<String, Integer> offsets;
+
+	/** The audio device name (determined when first needed). */
+	private static String device;
+
+	// This class should not be instantiated.
+	private OffsetCalibrator() {}
+
+	/**
+	 * Returns the automatic offset for the current audio device,
+	 * or 0 if automatic offsets are disabled.
+	 * @return the offset (in milliseconds)
+	 */
+	public static int getOffset() {
+		if (!Options.isAutoOffsetEnabled())
+			return 0;
+		Integer offset = getOffsets().get(getDevice());
+		if (offset == null)
+			return 0;
+		int limit = Options.getAutoOffsetLimit();
+		return Utils.clamp(offset, -limit, limit);
+	}
+
+	/**
+	 * Adjusts the automatic offset for the current audio device from the
+	 * hit timing errors of a completed song (if automatic offsets are enabled).
+	 * @param stats the hit timing error statistics
+	 */
+	public static void addPlay(HitStatistics stats) {
+		if (!Options.isAutoOffsetEnabled() || stats.getCount() < MIN_HITS)
+			return;
+
+		// positive errors are late hits, so the track position should be lower
+		double error = stats.getTrimmedMean(TRIM);
+		int step = Utils.clamp((int) Math.round(-error * GAIN), -MAX_STEP, MAX_STEP);
+		int oldOffset = getOffset();
+		int limit = Options.getAutoOffsetLimit();
+		int newOffset = Utils.clamp(oldOffset + step, -limit, limit);
+		if (newOffset == oldOffset)
+			return;
+
+		getOffsets().put(getDevice(), newOffset);
+		Log.info(String.format("Automatic music offset for '%s': %dms -> %dms (trimmed mean error %+.1fms over %d hits).",
+				getDevice(), oldOffset, newOffset, error, stats.getCount()));
+		save();
+	}
+
+	/**
+	 * Returns the name of the audio output device.
+	 */
+	private static String getDevice() {
+		if (device == null) {
+			device = "default";
+			try {
+				if (AL.isCreated()) {
+					String name = ALC10.alcGetString(AL.getDevice(), ALC10.ALC_DEVICE_SPECIFIER);
+					if (name != null && !name.trim().isEmpty())
+						device = name.trim();
+				}
+			} catch (Exception e) {
+				Log.warn("Failed to get the audio device name.", e);
+			}
+		}
+		return device;
+	}
+
+	/**
+	 * Returns the automatic offsets, loading them if needed.
+	 */
+	private static Map<String, Integer> getOffsets() {
+		if (offsets != null)
+			return offsets;
+
+		offsets = new TreeMap<String, Integer>();
+		File file = Options.AUTO_OFFSET_FILE;
+		if (!file.isFile())
+			return offsets;
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int index = line.lastIndexOf('=');
+				if (index == -1)
+					continue;
+				try {
+					offsets.put(line.substring(0, index).trim(), Integer.parseInt(line.substring(index + 1).trim()));
+				} catch (NumberFormatException e) {
+					Log.warn(String.format("Format error in automatic offset file for line: '%s'.", line), e);
+				}
+			}
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to read file '%s'.", file.getAbsolutePath()), e);
+		}
+		return offsets;
+	}
+
+	/**
+	 * Writes the automatic offsets to a file.
+	 */
+	private static void save() {
+		File file = Options.AUTO_OFFSET_FILE;
+		try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, Integer> e : offsets.entrySet()) {
+				out.write(String.format("%s = %d", e.getKey(), e.getValue()));
+				out.newLine();
+			}
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to write file '%s'.", file.getAbsolutePath()), e);
+		}
+	}
+}
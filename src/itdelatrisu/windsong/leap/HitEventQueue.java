@@ -0,0 +1,77 @@
+package itdelatrisu.windsong.leap;
+
+/**
+ * Queue of timestamped hit events, passed from the input thread to the game thread.
+ * <p>
+ * Hits are captured on the Leap Motion thread, but must be judged on the game
+ * thread.  Each event keeps its capture time, so judgement does not depend on
+ * when the game thread gets to it.  Exactly one thread may add events and
+ * exactly one thread may read them; no objects are created per event.
+ */
+public class HitEventQueue {
+	/** Default maximum number of pending events. */
+	private static final int DEFAULT_CAPACITY = 64;
+
+	/** Maximum number of pending events (a power of two). */
+	private final int capacity;
+
+	/** The event positions. */
+	private final int[] positions;
+
+	/** The event capture times. */
+	private final long[] times;
+
+	/** Number of events read (written only by the reading thread). */
+	private volatile int head = 0;
+
+	/** Number of events added (written only by the adding thread). */
+	private volatile int tail = 0;
+
+	/**
+	 * Constructor.
+	 */
+	public HitEventQueue() { this(DEFAULT_CAPACITY); }
+
+	/**
+	 * Constructor.
+	 * @param capacity the maximum number of pending events (a power of two)
+	 */
+	public HitEventQueue(int capacity) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException("Capacity must be a power of two.");
+		this.capacity = capacity;
+		this.positions = new int[capacity];
+		this.times = new long[capacity];
+	}
+
+	/**
+	 * Adds a hit event.
+	 * @param pos the gamepad position
+	 * @param time the capture time, from {@link System#nanoTime()}
+	 * @return false if the queue is full (the event is dropped)
+	 */
+	public boolean add(int pos, long time) {
+		int t = tail;
+		if (t - head == capacity)
+			return false;
+		positions[t & (capacity - 1)] = pos;
+		times[t & (capacity - 1)] = time;
+		tail = t + 1;
+		return true;
+	}
+
+	/** Returns whether the queue is empty. */
+	public boolean isEmpty() { return head == tail; }
+
+	/** Returns the position of the first event (the queue must not be empty). */
+	public int peekPosition() { return positions[head & (capacity - 1)]; }
+
+	/** Returns the capture time of the first event (the queue must not be empty). */
+	public long peekTime() { return times[head & (capacity - 1)]; }
+
+	/** Removes the first event (the queue must not be empty). */
+	public void remove() { head = head + 1; }
+
+	/** Removes all events. */
+	public void clear() { head = tail; }
+}
@@ -46,10 +46,10 @@ public class LeapInput extends Listener {
 			listener.onDisconnect();
 	}
 
-	/** Fires listeners for a hit at the given point. */
-	private void fireHit(Point p) {
+	/** Fires listeners for a hit at the given point, captured at the given time (from {@link System#nanoTime()}). */
+	private void fireHit(Point p, long time) {
 		for (LeapListener listener : LeapController.getListeners())
-			listener.onHit(p.x * GRID_SIZE + p.y);
+			listener.onHit(p.x * GRID_SIZE + p.y, time);
 	}
 	
 	private void firePos(boolean leftHand, Point p) {
@@ -59,6 +59,7 @@ public class LeapInput extends Listener {
 
 	@Override
 	public void onFrame(Controller controller) {
+		long captureTime = System.nanoTime();
 		Frame frame = controller.frame();
 		
 		int numHands = frame.hands().count();
@@ -95,10 +96,10 @@ public class LeapInput extends Listener {
 				long curTime = System.currentTimeMillis();
 				if (hand.isLeft() && !hasHitLeft && curTime - hitTimeLeft < HIT_TIME) {
 					hasHitLeft = true;
-					fireHit(hit);
+					fireHit(hit, captureTime);
 				} else if (hand.isRight() && !hasHitRight && curTime - hitTimeRight < HIT_TIME) {
 					hasHitRight = true;
-					fireHit(hit);
+					fireHit(hit, captureTime);
 				}
 			}
 		}
@@ -13,6 +13,10 @@ public interface LeapListener {
 	/** Notification that the hand is at a current position */
 	public void onPos(boolean leftHand, int pos);
 	
-	/** Notification that a hit has occurred at the given position for the given hand ( 0 left, 1 right) */
-	public void onHit(int pos);
+	/**
+	 * Notification that a hit has occurred at the given position.
+	 * @param pos the gamepad position
+	 * @param time the time the hit was captured, from {@link System#nanoTime()}
+	 */
+	public void onHit(int pos, long time);
 }
@@ -0,0 +1,122 @@
+package itdelatrisu.windsong.map;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Snapshot of the file names in a directory.
+ * <p>
+ * The directory is listed once, and all lookups for maps and their assets
+ * in the directory are answered from the listing, so parsing a directory
+ * with many maps does not list or query the file system for each map.
+ * Names are looked up exactly, or ignoring case (as {@link String#equalsIgnoreCase(String)}).
+ */
+public class DirectoryListing {
+	/** The directory. */
+	private final File dir;
+
+	/** The absolute directory path. */
+	private final String path;
+
+	/** The file names in the directory. */
+	private final String[] names;
+
+	/** Set of all file names. */
+	private final Set<String> nameSet;
+
+	/** Case-folded file names (created when first needed). */
+	private HashMap<String, String> foldedNames;
+
+	/**
+	 * Constructor.
+	 * @param dir the directory to list
+	 */
+	public DirectoryListing(File dir) {
+		this.dir = dir;
+		this.path = dir.getAbsolutePath();
+		String[] list = dir.list();
+		this.names = (list != null) ? list : new String[0];
+		this.nameSet = new HashSet<String>(names.length * 2);
+		for (String name : names)
+			nameSet.add(name);
+	}
+
+	/**
+	 * Returns the directory.
+	 */
+	public File getDirectory() { return dir; }
+
+	/**
+	 * Returns all files whose names end with one of the given extensions (ignoring case).
+	 * @param extensions the file extensions (in lowercase)
+	 */
+	public File[] getFiles(String... extensions) {
+		List<File> files = new ArrayList<File>();
+		for (String name : names) {
+			String s = name.toLowerCase();
+			for (String ext : extensions) {
+				if (s.endsWith(ext)) {
+					files.add(new File(dir, name));
+					break;
+				}
+			}
+		}
+		return files.toArray(new File[files.size()]);
+	}
+
+	/**
+	 * Returns a file in the directory, matching its name exactly if possible
+	 * and ignoring case otherwise.
+	 * <p>
+	 * Names that refer to other directories are checked on the file system.
+	 * @param name the file name (relative to the directory)
+	 * @return the file, or null if not found
+	 */
+	public File find(String name) {
+		if (name.indexOf('/') != -1 || name.indexOf(File.separatorChar) != -1) {
+			File file = new File(dir, name);
+			return (file.isFile()) ? file : null;
+		}
+
+		if (nameSet.contains(name))
+			return new File(dir, name);
+		if (foldedNames == null) {
+			foldedNames = new HashMap<String, String>(names.length * 2);
+			for (String s : names) {
+				String key = fold(s);
+				if (!foldedNames.containsKey(key))
+					foldedNames.put(key, s);
+			}
+		}
+		String match = foldedNames.get(fold(name));
+		return (match != null) ? new File(dir, match) : null;
+	}
+
+	/**
+	 * Returns whether a file exists.
+	 * Files in this directory are checked against the listing.
+	 * @param file the file
+	 */
+	public boolean exists(File file) {
+		String parent = file.getAbsoluteFile().getParent();
+		if (parent != null && parent.equals(path))
+			return nameSet.contains(file.getName());
+		return file.isFile();
+	}
+
+	/**
+	 * Returns a case-folded string, such that two strings are equal ignoring
+	 * case (see {@link String#equalsIgnoreCase(String)}) if and only if their
+	 * folded strings are equal.
+	 */
+	private static String fold(String s) {
+		char[] chars = new char[s.length()];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+		return new String(chars);
+	}
+}
@@ -0,0 +1,142 @@
+package itdelatrisu.windsong.map;
+
+import java.util.Arrays;
+
+/**
+ * Compact, time-ordered list of hit objects.
+ * <p>
+ * Hit objects are stored in parallel primitive arrays instead of as
+ * individual {@link HitObject} instances: one int for the time and one
+ * byte holding both the position and the hit sound type.
+ */
+public class HitObjectList {
+	/** Number of bits used for the position in a packed byte. */
+	private static final int POSITION_BITS = 4;
+
+	/** Mask for the position in a packed byte. */
+	private static final int POSITION_MASK = (1 << POSITION_BITS) - 1;
+
+	/** Maximum position and sound type values that can be stored. */
+	private static final int MAX_POSITION = POSITION_MASK, MAX_SOUND = 0xFF >> POSITION_BITS;
+
+	/** Number of distinct positions that can be stored (positions are in [0, POSITION_COUNT)). */
+	public static final int POSITION_COUNT = MAX_POSITION + 1;
+
+	/** Start times (in ms). */
+	private int[] times;
+
+	/** Packed positions (low bits) and hit sound types (high bits). */
+	private byte[] packed;
+
+	/** Number of hit objects. */
+	private int size = 0;
+
+	/**
+	 * Constructor.
+	 */
+	public HitObjectList() { this(16); }
+
+	/**
+	 * Constructor.
+	 * @param capacity the initial capacity
+	 */
+	public HitObjectList(int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.times = new int[capacity];
+		this.packed = new byte[capacity];
+	}
+
+	/**
+	 * Appends a hit object.
+	 * @param time the sound track time at which to hit this object
+	 * @param position the grid position to hit
+	 * @param sound the sound to be played on hit
+	 * @throws IllegalArgumentException if the position or sound is out of range
+	 */
+	public void add(int time, int position, int sound) {
+		if (!isValid(position, sound))
+			throw new IllegalArgumentException(String.format("Invalid hit object position/sound: %d,%d", position, sound));
+
+		if (size == times.length) {
+			int capacity = size + (size >> 1) + 1;
+			times = Arrays.copyOf(times, capacity);
+			packed = Arrays.copyOf(packed, capacity);
+		}
+		times[size] = time;
+		packed[size] = (byte) (position | (sound << POSITION_BITS));
+		size++;
+	}
+
+	/**
+	 * Returns whether a hit object position and sound can be stored.
+	 * @param position the grid position
+	 * @param sound the hit sound type
+	 */
+	public static boolean isValid(int position, int sound) {
+		return (position >= 0 && position <= MAX_POSITION && sound >= 0 && sound <= MAX_SOUND);
+	}
+
+	/**
+	 * Trims the capacity of the backing arrays to the current size.
+	 */
+	public void trimToSize() {
+		if (times.length != size) {
+			times = Arrays.copyOf(times, size);
+			packed = Arrays.copyOf(packed, size);
+		}
+	}
+
+	/**
+	 * Returns the number of hit objects.
+	 */
+	public int size() { return size; }
+
+	/**
+	 * Returns the start time of a hit object.
+	 * @param index the hit object index
+	 * @return the start time (in ms)
+	 */
+	public int getTime(int index) { return times[index]; }
+
+	/**
+	 * Returns the position of a hit object.
+	 * @param index the hit object index
+	 */
+	public int getPosition(int index) { return packed[index] & POSITION_MASK; }
+
+	/**
+	 * Returns the hit sound type of a hit object.
+	 * @param index the hit object index
+	 * @return the sound type
+	 */
+	public int getSound(int index) { return (packed[index] & 0xFF) >> POSITION_BITS; }
+
+	/**
+	 * Returns the start time of the last hit object.
+	 * @return the end time (in ms), or -1 if there are no hit objects
+	 */
+	public int getEndTime() { return (size > 0) ? times[size - 1] : -1; }
+
+	/**
+	 * Returns a new {@link HitObject} for the hit object at the given index.
+	 * @param index the hit object index
+	 */
+	public HitObject get(int index) {
+		return new HitObject(getTime(index), getPosition(index), getSound(index));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append('[');
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(times[i]); sb.append(',');
+			sb.append(getPosition(i)); sb.append(',');
+			sb.append(getSound(i));
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,347 @@
+package itdelatrisu.windsong.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.newdawn.slick.util.Log;
+
+import itdelatrisu.windsong.ErrorHandler;
+import itdelatrisu.windsong.Options;
+
+/**
+ * Computes map statistics (see {@link MapStats}) in the background.
+ * <p>
+ * Maps are analyzed in parallel after they are parsed, and the results are
+ * stored in {@link MapFile#stats} (and the file hash in {@link MapFile#hash}).
+ * Statistics are cached on disk, keyed by the MD5 hash of the map file
+ * (see {@link MapHasher}), so each map is only analyzed once (even if it is
+ * moved or copied).  Files whose size and modification time are unchanged
+ * are not hashed again.  Once a batch of
+ * maps is analyzed, the map library is rebuilt so the statistics can be
+ * used for sorting and filtering (see {@link MapParser#refreshLibrary()}).
+ * Cache entries are only kept for maps in the current map list.
+ */
+public class MapAnalyzer {
+	/** Cache file header. */
+	private static final int MAGIC = 0x5753414E;  // "WSAN"
+
+	/** Cache format version (increment on any format change). */
+	private static final int VERSION = 1;
+
+	/** Maximum number of maps analyzed by a single fork/join task. */
+	private static final int MAPS_PER_TASK = 16;
+
+	/** Cache entry. */
+	private static class Entry {
+		/** The map file size. */
+		public final long length;
+
+		/** The map file modification time. */
+		public final long lastModified;
+
+		/** The MD5 hash of the map file. */
+		public final String hash;
+
+		/** The map statistics. */
+		public final MapStats stats;
+
+		/**
+		 * Constructor.
+		 * @param length the map file size
+		 * @param lastModified the map file modification time
+		 * @param hash the MD5 hash of the map file
+		 * @param stats the map statistics
+		 */
+		public Entry(long length, long lastModified, String hash, MapStats stats) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.stats = stats;
+		}
+	}
+
+	/**
+	 * Fork/join task that analyzes a range of maps.
+	 */
+	private static class AnalyzeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** The maps. */
+		private final List<MapFile> maps;
+
+		/** The range of maps to analyze: [start, end). */
+		private final int start, end;
+
+		/**
+		 * Constructor.
+		 * @param maps the list of maps
+		 * @param start the first index to analyze (inclusive)
+		 * @param end the last index to analyze (exclusive)
+		 */
+		public AnalyzeTask(List<MapFile> maps, int start, int end) {
+			this.maps = maps;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= MAPS_PER_TASK) {
+				for (int i = start; i < end && running; i++)
+					analyze(maps.get(i));
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new AnalyzeTask(maps, start, mid), new AnalyzeTask(maps, mid, end));
+		}
+	}
+
+	/** Lists of maps waiting to be analyzed. */
+	private static final LinkedBlockingQueue<List<MapFile>> queue = new LinkedBlockingQueue<List<MapFile>>();
+
+	/** Cache entries, by absolute map file path. */
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/** Map statistics, by map file hash. */
+	private static final Map<String, MapStats> hashes = new ConcurrentHashMap<String, MapStats>();
+
+	/** Number of maps whose statistics were set in the current batch. */
+	private static final AtomicInteger updatedCount = new AtomicInteger();
+
+	/** Number of cache entries added in the current batch. */
+	private static final AtomicInteger addedCount = new AtomicInteger();
+
+	/** The analyzer thread. */
+	private static Thread thread;
+
+	/** Whether the analyzer is running. */
+	private static volatile boolean running = false;
+
+	// This class should not be instantiated.
+	private MapAnalyzer() {}
+
+	/**
+	 * Queues maps to be analyzed in the background.
+	 * Maps that are already analyzed are skipped.
+	 * @param maps the maps (the list must not be modified)
+	 */
+	public static synchronized void analyze(List<MapFile> maps) {
+		queue.add(maps);
+		if (thread != null)
+			return;
+
+		running = true;
+		thread = new Thread("MapAnalyzer") {
+			@Override
+			public void run() {
+				loadCache(Options.MAP_STATS_CACHE_FILE);
+				try {
+					while (running)
+						analyzeAll(queue.take());
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stops analyzing maps.
+	 * Maps that were queued but not analyzed yet are discarded.
+	 */
+	public static synchronized void stop() {
+		running = false;
+		queue.clear();
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Analyzes a list of maps, then writes the cache and rebuilds the map library.
+	 * @param maps the maps
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private static void analyzeAll(List<MapFile> maps) throws InterruptedException {
+		long startTime = System.currentTimeMillis();
+		updatedCount.set(0);
+		addedCount.set(0);
+		int threads = Math.min(Options.getParserThreads(), Math.max(maps.size() / MAPS_PER_TASK, 1));
+		if (threads <= 1) {
+			for (int i = 0, n = maps.size(); i < n && running; i++)
+				analyze(maps.get(i));
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			ForkJoinTask<Void> task = pool.submit(new AnalyzeTask(maps, 0, maps.size()));
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				ErrorHandler.error("Failed to analyze maps.", e.getCause(), true);
+			} finally {
+				pool.shutdown();
+			}
+		}
+		if (!running)
+			throw new InterruptedException();
+
+		int updated = updatedCount.get(), added = addedCount.get();
+		if (updated == 0)
+			return;
+		Log.info(String.format("Analyzed %d maps (%d cached) in %dms.",
+				updated, updated - added, System.currentTimeMillis() - startTime));
+		if (added > 0) {
+			saveCache(Options.MAP_STATS_CACHE_FILE);
+			MapHasher.save();
+		}
+		MapParser.refreshLibrary();
+	}
+
+	/**
+	 * Sets the statistics for a map, from the cache if possible.
+	 * @param map the map
+	 */
+	private static void analyze(MapFile map) {
+		if (map.stats != null)
+			return;
+
+		// unchanged file?
+		File file = map.getFile();
+		String path = file.getAbsolutePath();
+		long length = file.length(), lastModified = file.lastModified();
+		Entry entry = entries.get(path);
+		if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+			map.hash = entry.hash;
+			map.stats = entry.stats;
+			updatedCount.incrementAndGet();
+			return;
+		}
+
+		// same contents as an analyzed file?
+		String hash = MapHasher.getHash(file);
+		if (hash == null)
+			return;
+		MapStats stats = hashes.get(hash);
+		if (stats == null) {
+			HitObjectList objects = map.objects;
+			try {
+				if (objects == null && map.objectsOffset >= 0)
+					objects = MapParser.readHitObjects(map);
+			} catch (IOException e) {
+				Log.warn(String.format("Failed to read hit objects for file '%s'.", path), e);
+			}
+			if (objects == null)
+				return;
+			stats = MapStats.compute(objects);
+			hashes.put(hash, stats);
+		}
+		entries.put(path, new Entry(length, lastModified, hash, stats));
+		addedCount.incrementAndGet();
+		map.hash = hash;
+		map.stats = stats;
+		updatedCount.incrementAndGet();
+	}
+
+	/**
+	 * Loads the statistics cache.
+	 * If the file does not exist, is out of date, or cannot be read,
+	 * nothing is loaded.
+	 * @param file the cache file
+	 */
+	private static void loadCache(File file) {
+		if (!file.isFile())
+			return;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.warn(String.format("Ignoring out-of-date map statistics cache '%s'.", file.getAbsolutePath()));
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				String hash = in.readUTF();
+				int duration = in.readInt();
+				float averageNps = in.readFloat();
+				int peakNps = in.readInt();
+				float strain = in.readFloat();
+				short[] density = new short[in.readUnsignedShort()];
+				for (int j = 0; j < density.length; j++)
+					density[j] = in.readShort();
+				MapStats stats = new MapStats(duration, averageNps, peakNps, strain, density);
+				entries.put(path, new Entry(length, lastModified, hash, stats));
+				hashes.put(hash, stats);
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.warn(String.format("Failed to read map statistics cache '%s'; all maps will be analyzed.", file.getAbsolutePath()), e);
+			entries.clear();
+			hashes.clear();
+		}
+	}
+
+	/**
+	 * Writes the cache entries for all maps in the map list to the cache file.
+	 * Entries for other files (e.g. deleted maps) are dropped.
+	 * @param file the cache file
+	 */
+	private static void saveCache(File file) {
+		Set<String> paths = new HashSet<String>();
+		for (MapFile map : MapParser.getMaps())
+			paths.add(map.getFile().getAbsolutePath());
+		entries.keySet().retainAll(paths);
+
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				MapStats stats = entry.stats;
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.length);
+				out.writeLong(entry.lastModified);
+				out.writeUTF(entry.hash);
+				out.writeInt(stats.duration);
+				out.writeFloat(stats.averageNps);
+				out.writeInt(stats.peakNps);
+				out.writeFloat(stats.strain);
+				out.writeShort(stats.getDensityLength());
+				for (int i = 0, n = stats.getDensityLength(); i < n; i++)
+					out.writeShort(stats.getDensity(i));
+			}
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to write map statistics cache '%s'.", file.getAbsolutePath()), e);
+			tmp.delete();
+			return;
+		}
+
+		// replace the old cache file
+		if (file.isFile() && !file.delete())
+			Log.warn(String.format("Failed to delete old map statistics cache '%s'.", file.getAbsolutePath()));
+		if (!tmp.renameTo(file))
+			Log.warn(String.format("Failed to rename map statistics cache '%s'.", tmp.getAbsolutePath()));
+	}
+}
@@ -0,0 +1,428 @@
+package itdelatrisu.windsong.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import itdelatrisu.windsong.Options;
+
+/**
+ * Benchmarks map scanning on synthetic libraries (see {@link MapGenerator}).
+ * <p>
+ * For each library size, a library is generated once (in a subdirectory of
+ * the given directory, with a fixed seed) and scanned several times after a
+ * warm-up scan: cold (no cache files) and warm (with the map cache).  The
+ * median scan times, the peak heap usage of a cold scan, and the median
+ * times to sort the map list and build the map library are reported.
+ * Then, for each library size, cold scans are timed with 1, 2, 4, ... parser
+ * threads (up to the number of processors), to show how scanning scales.
+ * Finally, the map files of each library are parsed without scanning, by
+ * the reference parser of {@link MapParserCheck}, eagerly, and lazily, and
+ * the parser throughput is reported.  Then each library is searched with
+ * generated queries, by the search index and by a naive substring scan of
+ * every map, and the query latencies are reported.
+ * <p>
+ * Modes can be selected on the command line (by default, all are run):
+ * "scan", "threads", "parse", and "search".
+ * <p>
+ * The benchmark deletes and rewrites the cache files in the working
+ * directory, so it must be run from a scratch directory, and refuses to
+ * run if XDG directories are enabled.
+ */
+public class MapBenchmark {
+	/** Default library sizes (number of maps). */
+	private static final int[] DEFAULT_SIZES = { 1000, 10000, 100000 };
+
+	/** Maps per generated song directory. */
+	private static final int MAPS_PER_SONG = 4;
+
+	/** Number of measured runs per library size. */
+	private static final int RUNS = 3;
+
+	/** Benchmark modes. */
+	private static final List<String> MODES = Arrays.asList("scan", "threads", "parse", "search");
+
+	/** Number of generated search queries per library size. */
+	private static final int SEARCH_QUERIES = 500;
+
+	// This class should not be instantiated.
+	private MapBenchmark() {}
+
+	/**
+	 * Runs the benchmark.
+	 * @param args the directory for generated libraries, and optionally the
+	 *             modes and the library sizes
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: MapBenchmark <directory> [scan|threads|parse|search]... [maps]...");
+			System.exit(1);
+		}
+		if (Options.USE_XDG) {
+			System.err.println("XDG directories are enabled; the benchmark would replace the game's cache files.");
+			System.exit(1);
+		}
+
+		File dir = new File(args[0]);
+		List<String> modes = new ArrayList<String>();
+		List<Integer> sizeList = new ArrayList<Integer>();
+		for (int i = 1; i < args.length; i++) {
+			if (MODES.contains(args[i]))
+				modes.add(args[i]);
+			else {
+				try {
+					sizeList.add(Integer.parseInt(args[i]));
+				} catch (NumberFormatException e) {
+					System.err.printf("Unknown mode '%s'.%n", args[i]);
+					System.exit(1);
+				}
+			}
+		}
+		if (modes.isEmpty())
+			modes = MODES;
+		int[] sizes = DEFAULT_SIZES;
+		if (!sizeList.isEmpty()) {
+			sizes = new int[sizeList.size()];
+			for (int i = 0; i < sizes.length; i++)
+				sizes[i] = sizeList.get(i);
+		}
+
+		// generate the libraries
+		File[] roots = new File[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			try {
+				roots[i] = generate(dir, sizes[i]);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		if (modes.contains("scan")) {
+			System.out.printf("%8s %10s %10s %10s %10s %12s%n", "maps", "cold (ms)", "warm (ms)", "heap (MB)", "sort (ms)", "library (ms)");
+			for (int i = 0; i < sizes.length; i++)
+				run(roots[i], sizes[i]);
+			System.out.println();
+		}
+
+		// parser thread scaling (restoring the option afterwards)
+		if (modes.contains("threads")) {
+			String parserThreads = Options.GameOption.PARSER_THREADS.write();
+			System.out.printf("%8s %8s %10s %8s%n", "maps", "threads", "cold (ms)", "speedup");
+			for (File root : roots)
+				runThreads(root);
+			Options.GameOption.PARSER_THREADS.read(parserThreads);
+			System.out.println();
+		}
+
+		if (modes.contains("parse")) {
+			System.out.printf("%8s %10s %10s %10s %10s%n", "maps", "parser", "time (ms)", "maps/s", "MB/s");
+			for (File root : roots) {
+				try {
+					runParse(root);
+				} catch (IOException e) {
+					System.err.println(e.getMessage());
+					System.exit(1);
+				}
+			}
+			System.out.println();
+		}
+
+		if (modes.contains("search")) {
+			System.out.printf("%8s %8s %10s %10s %10s %10s%n", "maps", "search", "p50 (ms)", "p99 (ms)", "max (ms)", "matches");
+			for (File root : roots)
+				runSearch(root);
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Generates a library, unless it already exists.
+	 * @param dir the directory for generated libraries
+	 * @param size the number of maps
+	 * @return the library root directory
+	 * @throws IOException if the library could not be generated
+	 */
+	private static File generate(File dir, int size) throws IOException {
+		File root = new File(dir, Integer.toString(size));
+		if (!root.isDirectory())
+			new MapGenerator(size, MAPS_PER_SONG, 8f, Math.max(size / MAPS_PER_SONG / 5, 1)).generate(root, size / MAPS_PER_SONG);
+		return root;
+	}
+
+	/**
+	 * Benchmarks scans of a generated library.
+	 * @param root the library root directory (see {@link #generate(File, int)})
+	 * @param size the number of maps
+	 */
+	private static void run(File root, int size) {
+		// warm-up
+		deleteCaches();
+		scan(root);
+
+		long[] cold = new long[RUNS], warm = new long[RUNS], sort = new long[RUNS], library = new long[RUNS];
+		long heap = 0;
+		for (int i = 0; i < RUNS; i++) {
+			deleteCaches();
+			resetHeapPeak();
+			cold[i] = scan(root);
+			heap = Math.max(heap, getHeapPeak());
+			warm[i] = scan(root);
+
+			// sort a shuffled copy of the map list
+			List<MapFile> maps = MapParser.getMaps();
+			List<MapFile> shuffled = new ArrayList<MapFile>(maps);
+			Collections.shuffle(shuffled, new Random(i));
+			long startTime = System.nanoTime();
+			Collections.sort(shuffled);
+			sort[i] = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			new MapLibrary(maps);
+			library[i] = System.nanoTime() - startTime;
+		}
+
+		int count = MapParser.getMaps().size();
+		System.out.printf("%8d %10d %10d %10d %10d %12d%n", count,
+				median(cold) / 1000000, median(warm) / 1000000, heap / (1024 * 1024),
+				median(sort) / 1000000, median(library) / 1000000);
+		if (count != size / MAPS_PER_SONG * MAPS_PER_SONG)
+			System.err.printf("Expected %d maps in '%s'.%n", size / MAPS_PER_SONG * MAPS_PER_SONG, root.getPath());
+	}
+
+	/**
+	 * Benchmarks cold scans of a generated library with an increasing
+	 * number of parser threads.
+	 * @param root the library root directory (see {@link #generate(File, int)})
+	 */
+	private static void runThreads(File root) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		long baseline = 0;
+		for (int threads = 1; ; threads = Math.min(threads * 2, processors)) {
+			Options.GameOption.PARSER_THREADS.read(Integer.toString(threads));
+
+			// warm-up
+			deleteCaches();
+			scan(root);
+
+			long[] cold = new long[RUNS];
+			for (int i = 0; i < RUNS; i++) {
+				deleteCaches();
+				cold[i] = scan(root);
+			}
+			long time = median(cold);
+			if (threads == 1)
+				baseline = time;
+			System.out.printf("%8d %8d %10d %8.2f%n", MapParser.getMaps().size(), threads,
+					time / 1000000, (double) baseline / Math.max(time, 1));
+			if (threads >= processors)
+				break;
+		}
+	}
+
+	/**
+	 * Benchmarks parsing the map files of a generated library (without
+	 * scanning directories or using the caches): by the reference parser,
+	 * eagerly, and lazily (skimming the hit objects).
+	 * @param root the library root directory (see {@link #generate(File, int)})
+	 * @throws IOException if a map file could not be read
+	 */
+	private static void runParse(File root) throws IOException {
+		List<File> files = new ArrayList<File>();
+		MapParserCheck.findMapFiles(root, 2, files);
+		List<DirectoryListing> listings = new ArrayList<DirectoryListing>(files.size());
+		long bytes = 0;
+		DirectoryListing listing = null;
+		for (File file : files) {
+			if (listing == null || !listing.getDirectory().equals(file.getParentFile()))
+				listing = new DirectoryListing(file.getParentFile());
+			listings.add(listing);
+			bytes += file.length();
+		}
+
+		String[] parsers = { "reference", "eager", "lazy" };
+		for (int p = 0; p < parsers.length; p++) {
+			long[] times = new long[RUNS + 1];
+			for (int i = 0; i <= RUNS; i++) {  // first run is a warm-up
+				System.gc();
+				int parsed = 0;
+				long startTime = System.nanoTime();
+				for (int j = 0, n = files.size(); j < n; j++) {
+					Object map = (p == 0) ? MapParserCheck.parseReference(files.get(j))
+					                      : MapParser.parseFile(files.get(j), listings.get(j), p == 2);
+					if (map != null)
+						parsed++;
+				}
+				times[i] = System.nanoTime() - startTime;
+				if (parsed != files.size())
+					System.err.printf("Parsed %d of %d maps in '%s' (%s).%n", parsed, files.size(), root.getPath(), parsers[p]);
+			}
+			long time = median(Arrays.copyOfRange(times, 1, times.length));
+			double seconds = Math.max(time, 1) / 1e9;
+			System.out.printf("%8d %10s %10d %10.0f %10.1f%n", files.size(), parsers[p],
+					time / 1000000, files.size() / seconds, bytes / (1024.0 * 1024.0) / seconds);
+		}
+	}
+
+	/**
+	 * Benchmarks searching a generated library, by the search index (as in
+	 * the song menu) and by a naive scan of every map.  Queries are generated
+	 * from the maps' titles and artists: short (below the index's trigram
+	 * length) and longer substrings, whole words, two terms, and no match.
+	 * @param root the library root directory (see {@link #generate(File, int)})
+	 */
+	private static void runSearch(File root) {
+		scan(root);
+		List<MapFile> maps = MapParser.getLibrary().getMaps();
+		if (maps.isEmpty())
+			return;
+		MapSearchIndex index = MapParser.getSearchIndex();
+
+		// generate queries
+		Random random = new Random(0);
+		String[] queries = new String[SEARCH_QUERIES];
+		for (int i = 0; i < queries.length; i++) {
+			MapFile map = maps.get(random.nextInt(maps.size()));
+			String text = (random.nextBoolean()) ? map.title : map.artist;
+			switch (i % 5) {
+			case 0:  // short substring
+			case 1:  // longer substring
+				int length = Math.min((i % 5 == 0) ? 2 : 3 + random.nextInt(6), text.length());
+				int start = random.nextInt(text.length() - length + 1);
+				queries[i] = text.substring(start, start + length);
+				break;
+			case 2:  // word
+				String[] words = text.split(" ");
+				queries[i] = words[random.nextInt(words.length)];
+				break;
+			case 3:  // two terms
+				queries[i] = String.format("%s %s", map.artist.split(" ")[0], map.title.split(" ")[0]);
+				break;
+			default:  // no match
+				queries[i] = String.format("%s qxz", text);
+				break;
+			}
+		}
+
+		long[] indexTimes = new long[queries.length], naiveTimes = new long[queries.length];
+		long indexMatches = 0, naiveMatches = 0;
+		for (int run = 0; run < 2; run++) {  // first run is a warm-up
+			System.gc();
+			indexMatches = naiveMatches = 0;
+			for (int i = 0; i < queries.length; i++) {
+				long startTime = System.nanoTime();
+				int indexCount = index.getMask(queries[i], maps).cardinality();
+				indexTimes[i] = System.nanoTime() - startTime;
+
+				startTime = System.nanoTime();
+				int naiveCount = naiveSearch(queries[i], maps);
+				naiveTimes[i] = System.nanoTime() - startTime;
+
+				if (indexCount != naiveCount)
+					System.err.printf("Query '%s' matched %d maps in the index, but %d by scanning.%n", queries[i], indexCount, naiveCount);
+				indexMatches += indexCount;
+				naiveMatches += naiveCount;
+			}
+		}
+		printLatencies(maps.size(), "index", indexTimes, indexMatches / queries.length);
+		printLatencies(maps.size(), "naive", naiveTimes, naiveMatches / queries.length);
+	}
+
+	/**
+	 * Returns the number of maps that match a query, by checking whether the
+	 * lowercase artist, title, and creator of every map contain all terms.
+	 */
+	private static int naiveSearch(String query, List<MapFile> maps) {
+		String[] terms = query.toLowerCase().trim().split("\\s+");
+		int count = 0;
+		for (MapFile map : maps) {
+			String text = String.format("%s\n%s\n%s", map.artist, map.title, map.creator).toLowerCase();
+			boolean match = true;
+			for (String term : terms) {
+				if (!text.contains(term)) {
+					match = false;
+					break;
+				}
+			}
+			if (match)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Prints the latency percentiles of a search method.
+	 * @param count the number of maps
+	 * @param name the search method
+	 * @param times the query times (in ns; sorted in place)
+	 * @param matches the mean number of matches per query
+	 */
+	private static void printLatencies(int count, String name, long[] times, long matches) {
+		Arrays.sort(times);
+		System.out.printf("%8d %8s %10.3f %10.3f %10.3f %10d%n", count, name,
+				times[times.length / 2] / 1e6, times[(int) Math.ceil(times.length * 0.99) - 1] / 1e6,
+				times[times.length - 1] / 1e6, matches);
+	}
+
+	/**
+	 * Scans a library, stopping the background analysis afterwards.
+	 * @param root the root directory
+	 * @return the scan time (in ns)
+	 */
+	private static long scan(File root) {
+		System.gc();
+		long startTime = System.nanoTime();
+		MapParser.parseAllFiles(root);
+		long time = System.nanoTime() - startTime;
+		MapAnalyzer.stop();
+		MapConverter.stop();
+		return time;
+	}
+
+	/**
+	 * Deletes all map cache files.
+	 */
+	private static void deleteCaches() {
+		Options.MAP_CACHE_FILE.delete();
+		Options.HASH_CACHE_FILE.delete();
+		Options.MAP_STATS_CACHE_FILE.delete();
+	}
+
+	/**
+	 * Resets the peak usage of all heap memory pools (after a garbage collection).
+	 */
+	private static void resetHeapPeak() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * Returns the sum of the peak usage of all heap memory pools (in bytes).
+	 */
+	private static long getHeapPeak() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	/**
+	 * Returns the median of an array (which is sorted in place).
+	 */
+	private static long median(long[] values) {
+		Arrays.sort(values);
+		return values[values.length / 2];
+	}
+}
@@ -0,0 +1,459 @@
+package itdelatrisu.windsong.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.newdawn.slick.util.Log;
+
+import itdelatrisu.windsong.Options;
+
+/**
+ * Reader and writer for binary map files ({@link Options#MAP_BINARY_FILE_EXT}).
+ * <p>
+ * Format (all integers are unsigned LEB128 varints unless noted; signed
+ * values are zigzag-encoded):
+ * <pre>
+ * int32 magic ("WSMB"), byte version
+ * string table: count, then (length, UTF-8 bytes) for each string
+ * header: audio filename, title, artist, creator (string table indices),
+ *         difficulty (signed), end time (signed, -1 if none)
+ * hit objects: count, then for each: time delta from the previous
+ *              hit object (signed), byte (position | sound &lt;&lt; 4)
+ * </pre>
+ * The audio filename is relative to the map directory.
+ * <p>
+ * This class can also be run to convert text maps:
+ * {@code MapBinary <song directory | map directory | map file>...}
+ */
+public class MapBinary {
+	/** File header. */
+	private static final int MAGIC = 0x57534D42;  // "WSMB"
+
+	/** Format version (increment on any format change). */
+	private static final int VERSION = 1;
+
+	/**
+	 * Byte array reader.
+	 */
+	private static class Input {
+		/** The data. */
+		private final byte[] buf;
+
+		/** The current position. */
+		private int pos = 0;
+
+		/**
+		 * Constructor.
+		 * @param buf the data
+		 */
+		public Input(byte[] buf) { this.buf = buf; }
+
+		/** Reads a byte. */
+		public int readByte() throws IOException {
+			if (pos >= buf.length)
+				throw new IOException("Unexpected end of file.");
+			return buf[pos++] & 0xFF;
+		}
+
+		/** Reads a big-endian 32-bit integer. */
+		public int readInt() throws IOException {
+			return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+		}
+
+		/** Reads an unsigned varint. */
+		public int readVarInt() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed varint.");
+		}
+
+		/** Reads a zigzag-encoded signed varint. */
+		public int readSignedVarInt() throws IOException {
+			int value = readVarInt();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/** Reads a string. */
+		public String readString() throws IOException {
+			int length = readVarInt();
+			if (length < 0 || length > buf.length - pos)
+				throw new IOException("Unexpected end of file.");
+			String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return s;
+		}
+
+		/** Returns the current position. */
+		public int getPosition() { return pos; }
+
+		/** Returns the number of bytes remaining. */
+		public int remaining() { return buf.length - pos; }
+
+		/** Sets the current position. */
+		public void setPosition(int pos) { this.pos = pos; }
+	}
+
+	// This class should not be instantiated.
+	private MapBinary() {}
+
+	/**
+	 * Returns whether a file is a binary map file (by its extension).
+	 * @param file the file
+	 */
+	public static boolean isBinaryMap(File file) {
+		return file.getName().toLowerCase().endsWith(Options.MAP_BINARY_FILE_EXT);
+	}
+
+	/**
+	 * Returns the binary map file for a text map file.
+	 * @param file the text map file
+	 */
+	public static File getBinaryFile(File file) {
+		String name = file.getName();
+		int index = name.lastIndexOf('.');
+		if (index != -1)
+			name = name.substring(0, index);
+		return new File(file.getParentFile(), name + Options.MAP_BINARY_FILE_EXT);
+	}
+
+	/**
+	 * Reads a binary map file.
+	 * @param file the file to read
+	 * @param dir the listing of the directory containing the map
+	 * @param lazy if true, only record the hit object offset (see {@link MapFile#objectsOffset})
+	 * @return the map, or null if the file is invalid
+	 */
+	public static MapFile read(File file, DirectoryListing dir, boolean lazy) {
+		MapFile map = new MapFile(file);
+		try {
+			Input in = new Input(Files.readAllBytes(file.toPath()));
+			if (in.readInt() != MAGIC || in.readByte() != VERSION)
+				throw new IOException("Unsupported format or version.");
+
+			// string table
+			int stringCount = in.readVarInt();
+			if (stringCount < 0 || stringCount > in.remaining())
+				throw new IOException("Invalid string count.");
+			String[] strings = new String[stringCount];
+			for (int i = 0; i < stringCount; i++)
+				strings[i] = MapParser.getDBString(in.readString());
+
+			// header
+			String audioFilename = getString(strings, in.readVarInt());
+			map.title = getString(strings, in.readVarInt());
+			map.artist = getString(strings, in.readVarInt());
+			map.creator = getString(strings, in.readVarInt());
+			map.difficulty = in.readSignedVarInt();
+			int endTime = in.readSignedVarInt();
+			map.audioFilename = dir.find(audioFilename);
+			if (map.audioFilename == null) {
+				Log.error(String.format("Audio file '%s' not found in directory '%s'.", audioFilename, dir.getDirectory().getName()));
+				return null;
+			}
+
+			// hit objects
+			if (lazy) {
+				map.objectsOffset = in.getPosition();
+				map.endTime = endTime;
+				map.objectCount = in.readVarInt();
+			} else
+				map.objects = readHitObjects(in);
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to read binary map file '%s'.", file.getAbsolutePath()), e);
+			return null;
+		}
+
+		if (map.getEndTime() < 0) {
+			Log.warn(String.format("No hit objects found in MapFile '%s'.", map.toString()));
+			return null;
+		}
+		return map;
+	}
+
+	/**
+	 * Reads the hit objects of a binary map file.
+	 * @param file the file to read
+	 * @param offset the hit object offset (see {@link MapFile#objectsOffset})
+	 * @return the hit objects
+	 * @throws IOException if an I/O error occurs or the file is invalid
+	 */
+	public static HitObjectList readHitObjects(File file, long offset) throws IOException {
+		byte[] buf = Files.readAllBytes(file.toPath());
+		if (offset < 0 || offset > buf.length)
+			throw new IOException("Invalid hit object offset.");
+		Input in = new Input(buf);
+		in.setPosition((int) offset);
+		return readHitObjects(in);
+	}
+
+	/**
+	 * Reads hit objects.
+	 * @param in the input, positioned at the hit objects
+	 * @return the hit objects
+	 */
+	private static HitObjectList readHitObjects(Input in) throws IOException {
+		int count = in.readVarInt();
+		if (count < 0 || count > in.remaining() / 2)
+			throw new IOException("Invalid hit object count.");
+		HitObjectList objects = new HitObjectList(count);
+		int time = 0;
+		for (int i = 0; i < count; i++) {
+			time += in.readSignedVarInt();
+			int packed = in.readByte();
+			objects.add(time, packed & 0xF, packed >> 4);
+		}
+		return objects;
+	}
+
+	/**
+	 * Returns a string from the string table.
+	 */
+	private static String getString(String[] strings, int index) throws IOException {
+		if (index < 0 || index >= strings.length)
+			throw new IOException("Invalid string table index.");
+		return strings[index];
+	}
+
+	/**
+	 * Writes a map in the binary format.
+	 * @param map the map (with hit objects loaded)
+	 * @param file the file to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void write(MapFile map, File file) throws IOException {
+		HitObjectList objects = map.objects;
+		if (objects == null)
+			throw new IOException("Hit objects are not loaded.");
+
+		// string table
+		List<String> strings = new ArrayList<String>();
+		Map<String, Integer> indices = new HashMap<String, Integer>();
+		File dir = file.getAbsoluteFile().getParentFile();
+		String audioFilename = dir.toPath().relativize(getPath(map.audioFilename)).toString();
+		int audio = addString(audioFilename, strings, indices);
+		int title = addString(map.title, strings, indices);
+		int artist = addString(map.artist, strings, indices);
+		int creator = addString(map.creator, strings, indices);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + objects.size() * 3);
+		writeInt(out, MAGIC);
+		out.write(VERSION);
+		writeVarInt(out, strings.size());
+		for (String s : strings) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(out, bytes.length);
+			out.write(bytes);
+		}
+
+		// header
+		writeVarInt(out, audio);
+		writeVarInt(out, title);
+		writeVarInt(out, artist);
+		writeVarInt(out, creator);
+		writeSignedVarInt(out, map.difficulty);
+		writeSignedVarInt(out, objects.getEndTime());
+
+		// hit objects
+		writeVarInt(out, objects.size());
+		int lastTime = 0;
+		for (int i = 0, n = objects.size(); i < n; i++) {
+			int time = objects.getTime(i);
+			writeSignedVarInt(out, time - lastTime);
+			out.write(objects.getPosition(i) | (objects.getSound(i) << 4));
+			lastTime = time;
+		}
+
+		// write to a temporary file first, so readers never see a partial file
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (OutputStream fos = new FileOutputStream(tmp)) {
+			out.writeTo(fos);
+		}
+		if (file.isFile() && !file.delete()) {
+			tmp.delete();
+			throw new IOException(String.format("Failed to replace file '%s'.", file.getAbsolutePath()));
+		}
+		if (!tmp.renameTo(file))
+			throw new IOException(String.format("Failed to rename file '%s'.", tmp.getAbsolutePath()));
+	}
+
+	/**
+	 * Converts a text map file to the binary format, writing the binary
+	 * file next to it (see {@link #getBinaryFile(File)}).
+	 * @param file the text map file
+	 * @param map the parsed map, or null to parse the file
+	 * @return the binary map file, or null if the conversion failed
+	 */
+	public static File convert(File file, MapFile map) {
+		try {
+			if (map == null)
+				map = MapParser.parseFile(file, new DirectoryListing(file.getParentFile()), false);
+			if (map == null)
+				return null;
+			HitObjectList objects = map.objects;
+			if (objects == null)
+				objects = MapParser.readHitObjects(file, map.objectsOffset);
+
+			// write a copy, so loaded maps are not modified
+			MapFile copy = new MapFile(file);
+			copy.audioFilename = map.audioFilename;
+			copy.title = map.title;
+			copy.artist = map.artist;
+			copy.creator = map.creator;
+			copy.difficulty = map.difficulty;
+			copy.objects = objects;
+			File binaryFile = getBinaryFile(file);
+			write(copy, binaryFile);
+			return binaryFile;
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to convert map file '%s'.", file.getAbsolutePath()), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Adds a string to the string table (if not already present).
+	 * @return the string index
+	 */
+	private static int addString(String s, List<String> strings, Map<String, Integer> indices) {
+		Integer index = indices.get(s);
+		if (index == null) {
+			index = strings.size();
+			strings.add(s);
+			indices.put(s, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the normalized absolute path of a file.
+	 */
+	private static Path getPath(File file) { return file.getAbsoluteFile().toPath().normalize(); }
+
+	/** Writes a big-endian 32-bit integer. */
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	/** Writes an unsigned varint. */
+	private static void writeVarInt(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/** Writes a zigzag-encoded signed varint. */
+	private static void writeSignedVarInt(OutputStream out, int value) throws IOException {
+		writeVarInt(out, (value << 1) ^ (value >> 31));
+	}
+
+	/**
+	 * Converts text map files to the binary format, and verifies that the
+	 * binary maps are read back identically.
+	 * @param args the song directories, map directories, or map files to convert
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: MapBinary <song directory | map directory | map file>...");
+			System.exit(1);
+		}
+
+		// find all text map files (up to two levels deep)
+		List<File> files = new ArrayList<File>();
+		for (String arg : args)
+			findMapFiles(new File(arg), 2, files);
+
+		int converted = 0, failed = 0;
+		long textSize = 0, binarySize = 0, textTime = 0, binaryTime = 0;
+		for (File file : files) {
+			DirectoryListing listing = new DirectoryListing(file.getParentFile());
+			long startTime = System.nanoTime();
+			MapFile map = MapParser.parseFile(file, listing, false);
+			textTime += System.nanoTime() - startTime;
+			File binaryFile = (map != null) ? convert(file, map) : null;
+			if (binaryFile == null) {
+				failed++;
+				continue;
+			}
+
+			// read back and compare
+			startTime = System.nanoTime();
+			MapFile binaryMap = read(binaryFile, new DirectoryListing(file.getParentFile()), false);
+			binaryTime += System.nanoTime() - startTime;
+			if (binaryMap == null || !isEquivalent(map, binaryMap)) {
+				System.err.printf("Verification failed: %s%n", file.getPath());
+				binaryFile.delete();
+				failed++;
+				continue;
+			}
+			converted++;
+			textSize += file.length();
+			binarySize += binaryFile.length();
+		}
+
+		System.out.printf("Converted %d map(s), %d failed.%n", converted, failed);
+		if (converted > 0) {
+			System.out.printf("Size: %d -> %d bytes (%.1f%%)%n",
+					textSize, binarySize, binarySize * 100.0 / textSize);
+			System.out.printf("Load time: %d ms (text), %d ms (binary)%n",
+					textTime / 1000000, binaryTime / 1000000);
+		}
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Adds all text map files in a directory (or the file itself) to a list.
+	 * @param file the file or directory
+	 * @param depth the maximum directory depth to search
+	 * @param files the list to add files to
+	 */
+	private static void findMapFiles(File file, int depth, List<File> files) {
+		if (file.isFile()) {
+			if (file.getName().toLowerCase().endsWith(Options.MAP_FILE_EXT))
+				files.add(file);
+		} else if (file.isDirectory() && depth > 0) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children)
+					findMapFiles(child, depth - 1, files);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether two maps have the same metadata and hit objects.
+	 */
+	private static boolean isEquivalent(MapFile a, MapFile b) {
+		if (!getPath(a.audioFilename).equals(getPath(b.audioFilename)) || !a.title.equals(b.title) ||
+		    !a.artist.equals(b.artist) || !a.creator.equals(b.creator) || a.difficulty != b.difficulty)
+			return false;
+		HitObjectList x = a.objects, y = b.objects;
+		if (x.size() != y.size())
+			return false;
+		for (int i = 0, n = x.size(); i < n; i++) {
+			if (x.getTime(i) != y.getTime(i) || x.getPosition(i) != y.getPosition(i) || x.getSound(i) != y.getSound(i))
+				return false;
+		}
+		return true;
+	}
+}
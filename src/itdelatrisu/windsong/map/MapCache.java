@@ -0,0 +1,230 @@
+package itdelatrisu.windsong.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.newdawn.slick.util.Log;
+
+/**
+ * On-disk cache of parsed map data.
+ * <p>
+ * If hit objects are loaded on demand, only their location in the map
+ * file is cached.
+ * <p>
+ * Entries are keyed by the absolute path of the map file, and are only
+ * valid if the file size and modification time are unchanged.  Only the
+ * entries looked up or added during the current scan are written back,
+ * so maps that were deleted are dropped from the cache (unless the scan
+ * was interrupted, see {@link #keepUnseen()}).
+ */
+public class MapCache {
+	/** Cache file header. */
+	private static final int MAGIC = 0x57534D43;  // "WSMC"
+
+	/** Cache format version (increment on any format change). */
+	private static final int VERSION = 4;
+
+	/** Cache entry. */
+	private static class Entry {
+		/** The map file size. */
+		public final long length;
+
+		/** The map file modification time. */
+		public final long lastModified;
+
+		/** The parsed map. */
+		public final MapFile map;
+
+		/**
+		 * Constructor.
+		 * @param length the map file size
+		 * @param lastModified the map file modification time
+		 * @param map the parsed map
+		 */
+		public Entry(long length, long lastModified, MapFile map) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.map = map;
+		}
+	}
+
+	/** The cache file. */
+	private final File file;
+
+	/** Entries read from the cache file. */
+	private final Map<String, Entry> entries;
+
+	/** Entries seen during the current scan (to be written back). */
+	private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+
+	/** Number of cache hits. */
+	private int hits = 0;
+
+	/**
+	 * Constructor.
+	 * @param file the cache file
+	 * @param entries the entries read from the file
+	 */
+	private MapCache(File file, Map<String, Entry> entries) {
+		this.file = file;
+		this.entries = entries;
+	}
+
+	/**
+	 * Loads the map cache from a file.
+	 * If the file does not exist, is out of date, or cannot be read,
+	 * an empty cache is returned.
+	 * @param file the cache file
+	 * @return the map cache
+	 */
+	public static MapCache load(File file) {
+		Map<String, Entry> entries = new HashMap<String, Entry>();
+		if (!file.isFile())
+			return new MapCache(file, entries);
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.warn(String.format("Ignoring out-of-date map cache '%s'.", file.getAbsolutePath()));
+				return new MapCache(file, entries);
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				MapFile map = new MapFile(new File(path));
+				map.audioFilename = new File(in.readUTF());
+				map.title = MapParser.getDBString(in.readUTF());
+				map.artist = MapParser.getDBString(in.readUTF());
+				map.creator = MapParser.getDBString(in.readUTF());
+				map.difficulty = in.readInt();
+				map.objectsOffset = in.readLong();
+				map.endTime = in.readInt();
+				map.objectCount = in.readInt();
+				int objectCount = in.readInt();
+				if (objectCount >= 0) {
+					HitObjectList objects = new HitObjectList(objectCount);
+					for (int j = 0; j < objectCount; j++) {
+						int time = in.readInt();
+						int packed = in.readUnsignedByte();
+						objects.add(time, packed & 0xF, packed >> 4);
+					}
+					map.objects = objects;
+				}
+				entries.put(path, new Entry(length, lastModified, map));
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.warn(String.format("Failed to read map cache '%s'; all maps will be parsed.", file.getAbsolutePath()), e);
+			entries.clear();
+		}
+		return new MapCache(file, entries);
+	}
+
+	/**
+	 * Returns the cached map for a file, or null if the file is not cached
+	 * or has changed since it was cached.
+	 * @param mapFile the map file
+	 * @param length the current map file size
+	 * @param lastModified the current map file modification time
+	 * @param lazy whether hit objects are loaded on demand
+	 * @param listing the listing of the directory containing the map (used to check the audio file)
+	 * @return the cached map, or null
+	 */
+	public MapFile get(File mapFile, long length, long lastModified, boolean lazy, DirectoryListing listing) {
+		String path = mapFile.getAbsolutePath();
+		Entry entry = entries.get(path);
+		if (entry == null || entry.length != length || entry.lastModified != lastModified ||
+		    !listing.exists(entry.map.audioFilename))
+			return null;
+		if (lazy ? entry.map.objectsOffset < 0 : entry.map.objects == null)
+			return null;  // cached in a different mode
+		current.put(path, entry);
+		synchronized (this) { hits++; }
+		return entry.map;
+	}
+
+	/**
+	 * Adds a newly parsed map to the cache.
+	 * @param mapFile the map file
+	 * @param length the map file size (before parsing)
+	 * @param lastModified the map file modification time (before parsing)
+	 * @param map the parsed map
+	 */
+	public void put(File mapFile, long length, long lastModified, MapFile map) {
+		current.put(mapFile.getAbsolutePath(), new Entry(length, lastModified, map));
+	}
+
+	/**
+	 * Returns the number of cache hits so far.
+	 */
+	public synchronized int getHitCount() { return hits; }
+
+	/**
+	 * Keeps the loaded entries that were not seen during the current scan
+	 * (e.g. if the scan was interrupted), so they are also written back.
+	 */
+	public void keepUnseen() {
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (!current.containsKey(e.getKey()))
+				current.put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Writes all entries seen during the current scan to the cache file.
+	 */
+	public void save() {
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(current.size());
+			for (Map.Entry<String, Entry> e : current.entrySet()) {
+				Entry entry = e.getValue();
+				MapFile map = entry.map;
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.length);
+				out.writeLong(entry.lastModified);
+				out.writeUTF(map.audioFilename.getAbsolutePath());
+				out.writeUTF(map.title);
+				out.writeUTF(map.artist);
+				out.writeUTF(map.creator);
+				out.writeInt(map.difficulty);
+				out.writeLong(map.objectsOffset);
+				out.writeInt(map.getEndTime());
+				out.writeInt(map.getObjectCount());
+
+				// hit objects loaded on demand are not cached
+				HitObjectList objects = map.objects;
+				if (map.objectsOffset >= 0 || objects == null)
+					out.writeInt(-1);
+				else {
+					out.writeInt(objects.size());
+					for (int i = 0, n = objects.size(); i < n; i++) {
+						out.writeInt(objects.getTime(i));
+						out.writeByte(objects.getPosition(i) | (objects.getSound(i) << 4));
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to write map cache '%s'.", file.getAbsolutePath()), e);
+			tmp.delete();
+			return;
+		}
+
+		// replace the old cache file
+		if (file.isFile() && !file.delete())
+			Log.warn(String.format("Failed to delete old map cache '%s'.", file.getAbsolutePath()));
+		if (!tmp.renameTo(file))
+			Log.warn(String.format("Failed to rename map cache '%s'.", tmp.getAbsolutePath()));
+	}
+}
@@ -0,0 +1,106 @@
+package itdelatrisu.windsong.map;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.newdawn.slick.util.Log;
+
+import itdelatrisu.windsong.Options;
+
+/**
+ * Converts text maps to the binary format (see {@link MapBinary}) in the background.
+ * <p>
+ * If map conversion is enabled (see {@link Options#isMapConversionEnabled()}),
+ * every text map in a parsed list without an up-to-date binary file next
+ * to it is converted after parsing, whether it was parsed or loaded from
+ * the map cache.  A binary file is up to date if it is at least as new as
+ * the text file, i.e. the text file is superseded by it on the next scan.
+ */
+public class MapConverter {
+	/** Lists of maps waiting to be converted. */
+	private static final LinkedBlockingQueue<List<MapFile>> queue = new LinkedBlockingQueue<List<MapFile>>();
+
+	/** The converter thread. */
+	private static Thread thread;
+
+	/** Whether the converter is running. */
+	private static volatile boolean running = false;
+
+	// This class should not be instantiated.
+	private MapConverter() {}
+
+	/**
+	 * Queues maps to be converted in the background, if map conversion is enabled.
+	 * Binary maps and maps with an up-to-date binary file are skipped.
+	 * @param maps the maps (the list must not be modified)
+	 */
+	public static synchronized void convert(List<MapFile> maps) {
+		if (!Options.isMapConversionEnabled())
+			return;
+
+		queue.add(maps);
+		if (thread != null)
+			return;
+
+		running = true;
+		thread = new Thread("MapConverter") {
+			@Override
+			public void run() {
+				try {
+					while (running)
+						convertAll(queue.take());
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stops converting maps.
+	 * Maps that were queued but not converted yet are discarded.
+	 */
+	public static synchronized void stop() {
+		running = false;
+		queue.clear();
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Converts all text maps in a list that need to be converted.
+	 * @param maps the maps
+	 */
+	private static void convertAll(List<MapFile> maps) {
+		long startTime = System.currentTimeMillis();
+		int converted = 0, failed = 0;
+		for (int i = 0, n = maps.size(); i < n && running; i++) {
+			File file = maps.get(i).getFile();
+			if (MapBinary.isBinaryMap(file) || isUpToDate(file))
+				continue;
+			if (MapBinary.convert(file, maps.get(i)) != null)
+				converted++;
+			else
+				failed++;
+		}
+		if (converted > 0 || failed > 0)
+			Log.info(String.format("Converted %d maps to binary (%d failed) in %dms.",
+					converted, failed, System.currentTimeMillis() - startTime));
+	}
+
+	/**
+	 * Returns whether the binary file for a text map file exists and is
+	 * at least as new as the text file.
+	 * @param file the text map file
+	 */
+	private static boolean isUpToDate(File file) {
+		File binaryFile = MapBinary.getBinaryFile(file);
+		return binaryFile.isFile() && binaryFile.lastModified() >= file.lastModified();
+	}
+}
@@ -0,0 +1,141 @@
+package itdelatrisu.windsong.map;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.newdawn.slick.util.Log;
+
+/**
+ * Maps with identical contents, and audio files with identical contents
+ * in different map directories.
+ * <p>
+ * Only files with the same size as another file are hashed (see
+ * {@link MapHasher}), so a scan with no duplicates reads no file contents.
+ */
+public class MapDuplicates {
+	/** Groups of maps with identical map files. */
+	private final List<List<MapFile>> duplicateMaps;
+
+	/** Groups of identical audio files in different directories. */
+	private final List<List<File>> sharedAudio;
+
+	/**
+	 * Constructor.
+	 * @param duplicateMaps the groups of maps with identical map files
+	 * @param sharedAudio the groups of identical audio files
+	 */
+	private MapDuplicates(List<List<MapFile>> duplicateMaps, List<List<File>> sharedAudio) {
+		this.duplicateMaps = duplicateMaps;
+		this.sharedAudio = sharedAudio;
+	}
+
+	/**
+	 * Finds all duplicate maps and shared audio files in a list of maps.
+	 * Stops early if the calling thread is interrupted.
+	 * @param maps the maps
+	 */
+	public static MapDuplicates find(List<MapFile> maps) {
+		List<List<MapFile>> duplicateMaps = new ArrayList<List<MapFile>>();
+		List<List<File>> sharedAudio = new ArrayList<List<File>>();
+		if (maps.size() < 2)
+			return new MapDuplicates(duplicateMaps, sharedAudio);
+
+		// maps
+		Map<File, MapFile> mapFiles = new LinkedHashMap<File, MapFile>(maps.size() * 2);
+		for (MapFile map : maps)
+			mapFiles.put(map.getFile(), map);
+		for (List<File> group : findDuplicates(mapFiles.keySet())) {
+			List<MapFile> list = new ArrayList<MapFile>(group.size());
+			for (File file : group)
+				list.add(mapFiles.get(file));
+			duplicateMaps.add(Collections.unmodifiableList(list));
+		}
+
+		// audio files (only those in different directories)
+		Map<String, File> audioFiles = new LinkedHashMap<String, File>();
+		for (MapFile map : maps) {
+			File audio = map.audioFilename.getAbsoluteFile();
+			audioFiles.put(audio.getPath(), audio);
+		}
+		for (List<File> group : findDuplicates(audioFiles.values())) {
+			Set<File> dirs = new HashSet<File>();
+			for (File file : group)
+				dirs.add(file.getParentFile());
+			if (dirs.size() > 1)
+				sharedAudio.add(Collections.unmodifiableList(group));
+		}
+
+		if (!duplicateMaps.isEmpty() || !sharedAudio.isEmpty())
+			Log.info(String.format("Found %d groups of duplicate maps and %d groups of shared audio files.",
+					duplicateMaps.size(), sharedAudio.size()));
+		return new MapDuplicates(Collections.unmodifiableList(duplicateMaps), Collections.unmodifiableList(sharedAudio));
+	}
+
+	/**
+	 * Returns groups of files with identical contents.
+	 * Files are first grouped by size, and only files in the same group are hashed.
+	 * @param files the files
+	 * @return the groups (each with at least two files)
+	 */
+	private static List<List<File>> findDuplicates(Iterable<File> files) {
+		// group by size
+		Map<Long, List<File>> sizes = new HashMap<Long, List<File>>();
+		for (File file : files) {
+			long length = file.length();
+			if (length == 0)
+				continue;  // empty or missing
+			List<File> group = sizes.get(length);
+			if (group == null) {
+				group = new ArrayList<File>(1);
+				sizes.put(length, group);
+			}
+			group.add(file);
+		}
+		List<File> candidates = new ArrayList<File>();
+		for (List<File> group : sizes.values()) {
+			if (group.size() > 1)
+				candidates.addAll(group);
+		}
+		List<List<File>> duplicates = new ArrayList<List<File>>();
+		if (candidates.isEmpty())
+			return duplicates;
+
+		// group candidates by hash
+		Map<File, String> hashes = MapHasher.getHashes(candidates);
+		Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+		for (File file : candidates) {
+			String hash = hashes.get(file);
+			if (hash == null)
+				continue;
+			List<File> group = groups.get(hash);
+			if (group == null) {
+				group = new ArrayList<File>(2);
+				groups.put(hash, group);
+			}
+			group.add(file);
+		}
+		for (List<File> group : groups.values()) {
+			if (group.size() > 1)
+				duplicates.add(group);
+		}
+		return duplicates;
+	}
+
+	/**
+	 * Returns the groups of maps whose map files have identical contents.
+	 */
+	public List<List<MapFile>> getDuplicateMaps() { return duplicateMaps; }
+
+	/**
+	 * Returns the groups of audio files with identical contents,
+	 * where each group contains files in more than one directory.
+	 */
+	public List<List<File>> getSharedAudio() { return sharedAudio; }
+}
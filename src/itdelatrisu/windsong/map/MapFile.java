@@ -24,8 +24,23 @@ public class MapFile implements Comparable<MapFile> {
 	/** Map difficulty. */
 	public int difficulty = 1;
 
-	/** All hit objects. */
-	public HitObject[] objects;
+	/** All hit objects (null if not loaded, see {@link MapParser#loadHitObjects(MapFile)}). */
+	public HitObjectList objects;
+
+	/** Byte offset of the hit objects in the map file, or -1 if not recorded. */
+	public long objectsOffset = -1;
+
+	/** Track end time (used if the hit objects are not loaded). */
+	public int endTime = -1;
+
+	/** Number of hit objects (used if the hit objects are not loaded). */
+	public int objectCount = 0;
+
+	/** Hit object statistics (null if not analyzed yet, see {@link MapAnalyzer}). */
+	public volatile MapStats stats;
+
+	/** MD5 hash of the map file (null if not analyzed yet, see {@link MapAnalyzer}). */
+	public volatile String hash;
 
 	/**
 	 * Constructor.
@@ -45,7 +60,12 @@ public class MapFile implements Comparable<MapFile> {
 	 * Returns the track end time (i.e. last hit object time).
 	 * @return the time, in ms
 	 */
-	public int getEndTime() { return objects[objects.length - 1].getTime(); }
+	public int getEndTime() { return (objects != null) ? objects.getEndTime() : endTime; }
+
+	/**
+	 * Returns the number of hit objects.
+	 */
+	public int getObjectCount() { return (objects != null) ? objects.size() : objectCount; }
 
 	/**
 	 * Returns the difficulty as a string.
@@ -0,0 +1,218 @@
+package itdelatrisu.windsong.map;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import itdelatrisu.windsong.Options;
+
+/**
+ * Generates synthetic map libraries for benchmarking.
+ * <p>
+ * Each song directory contains a stub audio file and several text maps of
+ * increasing difficulty.  Artists follow a Zipf-like distribution (a few
+ * artists have many songs), song lengths are 1-5 minutes, and the note
+ * density of each map scales with its difficulty.  Notes mostly move to
+ * nearby grid positions.  Output depends only on the parameters and seed.
+ */
+public class MapGenerator {
+	/** Syllables used to build names. */
+	private static final String[] SYLLABLES = {
+		"ka", "ze", "ri", "mo", "ta", "shi", "ne", "lu", "ar", "vo",
+		"en", "dy", "so", "mi", "ra", "ko", "yu", "el", "na", "to"
+	};
+
+	/** Number of grid positions. */
+	private static final int POSITIONS = 9;
+
+	/** Number of grid columns. */
+	private static final int COLUMNS = 3;
+
+	/** The random number generator. */
+	private final Random random;
+
+	/** Maps per song directory. */
+	private final int mapsPerSong;
+
+	/** Average notes per second at the highest difficulty. */
+	private final float maxNps;
+
+	/** Number of distinct artists. */
+	private final int artistCount;
+
+	/**
+	 * Constructor.
+	 * @param seed the random seed
+	 * @param mapsPerSong the number of maps per song directory
+	 * @param maxNps the average notes per second at the highest difficulty
+	 * @param artistCount the number of distinct artists
+	 */
+	public MapGenerator(long seed, int mapsPerSong, float maxNps, int artistCount) {
+		this.random = new Random(seed);
+		this.mapsPerSong = mapsPerSong;
+		this.maxNps = maxNps;
+		this.artistCount = artistCount;
+	}
+
+	/**
+	 * Writes song directories into a root directory.
+	 * @param root the root directory
+	 * @param songs the number of song directories
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void generate(File root, int songs) throws IOException {
+		if (!root.isDirectory() && !root.mkdirs())
+			throw new IOException(String.format("Failed to create directory '%s'.", root.getAbsolutePath()));
+		for (int i = 0; i < songs; i++)
+			generateSong(new File(root, String.format("%06d", i)));
+	}
+
+	/**
+	 * Writes a song directory.
+	 * @param dir the directory
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void generateSong(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdir())
+			throw new IOException(String.format("Failed to create directory '%s'.", dir.getAbsolutePath()));
+
+		// stub audio file
+		String audio = "audio.mp3";
+		byte[] data = new byte[1024 + random.nextInt(4096)];
+		random.nextBytes(data);
+		try (FileOutputStream out = new FileOutputStream(new File(dir, audio))) {
+			out.write(data);
+		}
+
+		String artist = getArtist();
+		String title = getName(1 + random.nextInt(4));
+		int length = 60000 + random.nextInt(240000);
+		for (int i = 0; i < mapsPerSong; i++) {
+			String creator = getName(1);
+			int difficulty = Math.min(1 + (i * 10) / mapsPerSong + random.nextInt(2), 10);
+			File file = new File(dir, String.format("%s - %s [%d]%s", artist, title, i + 1, Options.MAP_FILE_EXT));
+			try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+				writeMap(out, audio, title, artist, creator, difficulty, length);
+			}
+		}
+	}
+
+	/**
+	 * Writes a map.
+	 */
+	private void writeMap(Writer out, String audio, String title, String artist, String creator,
+			int difficulty, int length) throws IOException {
+		out.write("[Metadata]\n");
+		out.write(String.format("AudioFilename: %s\n", audio));
+		out.write(String.format("Title: %s\n", title));
+		out.write(String.format("Artist: %s\n", artist));
+		out.write(String.format("Creator: %s\n", creator));
+		out.write(String.format("Difficulty: %d\n", difficulty));
+		out.write("\n[HitObjects]\n");
+
+		// notes: exponential gaps around the target density, with bursts
+		float nps = maxNps * difficulty / 10f;
+		int time = 1000 + random.nextInt(2000), position = random.nextInt(POSITIONS);
+		StringBuilder sb = new StringBuilder();
+		while (time < length) {
+			sb.setLength(0);
+			sb.append(time).append(',').append(position).append(',').append((random.nextInt(8) == 0) ? 1 : 0).append('\n');
+			out.write(sb.toString());
+
+			double gap = -Math.log(1 - random.nextDouble()) * 1000 / nps;
+			if (random.nextInt(16) == 0)
+				gap /= 4;  // burst
+			time += Math.max((int) gap, 30);
+			position = nextPosition(position);
+		}
+	}
+
+	/**
+	 * Returns the next grid position (usually adjacent to the current one).
+	 */
+	private int nextPosition(int position) {
+		if (random.nextInt(4) == 0)
+			return random.nextInt(POSITIONS);
+		int x = position % COLUMNS + random.nextInt(3) - 1;
+		int y = position / COLUMNS + random.nextInt(3) - 1;
+		x = Math.max(0, Math.min(COLUMNS - 1, x));
+		y = Math.max(0, Math.min(POSITIONS / COLUMNS - 1, y));
+		return y * COLUMNS + x;
+	}
+
+	/**
+	 * Returns an artist name (Zipf-like: low indices are much more likely).
+	 */
+	private String getArtist() {
+		int index = (int) Math.floor(Math.pow(artistCount + 1, random.nextDouble())) - 1;
+		Random r = new Random(index);
+		StringBuilder sb = new StringBuilder();
+		int words = 1 + r.nextInt(2);
+		for (int i = 0; i < words; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(getWord(r));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a random name.
+	 * @param words the number of words
+	 */
+	private String getName(int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(getWord(random));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a capitalized word of 1-3 syllables.
+	 */
+	private static String getWord(Random r) {
+		StringBuilder sb = new StringBuilder();
+		int syllables = 1 + r.nextInt(3);
+		for (int i = 0; i < syllables; i++)
+			sb.append(SYLLABLES[r.nextInt(SYLLABLES.length)]);
+		sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+		return sb.toString();
+	}
+
+	/**
+	 * Generates a synthetic map library.
+	 * @param args the root directory, the number of songs, and optionally
+	 *             the maps per song, highest average notes per second,
+	 *             number of artists, and random seed
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: MapGenerator <directory> <songs> [maps per song] [max nps] [artists] [seed]");
+			System.exit(1);
+		}
+
+		try {
+			File root = new File(args[0]);
+			int songs = Integer.parseInt(args[1]);
+			int mapsPerSong = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+			float maxNps = (args.length > 3) ? Float.parseFloat(args[3]) : 8f;
+			int artists = (args.length > 4) ? Integer.parseInt(args[4]) : Math.max(songs / 5, 1);
+			long seed = (args.length > 5) ? Long.parseLong(args[5]) : 0;
+			long startTime = System.currentTimeMillis();
+			new MapGenerator(seed, mapsPerSong, maxNps, artists).generate(root, songs);
+			System.out.printf("Generated %d songs (%d maps) in %d ms.%n",
+					songs, songs * mapsPerSong, System.currentTimeMillis() - startTime);
+		} catch (NumberFormatException | IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package itdelatrisu.windsong.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.newdawn.slick.util.Log;
+
+import itdelatrisu.windsong.Options;
+import itdelatrisu.windsong.Utils;
+
+/**
+ * Computes MD5 hashes of map and audio files.
+ * <p>
+ * Files are hashed on a bounded pool of worker threads (see
+ * {@link Options#getParserThreads()}), each with its own digest and large
+ * read buffer.  Hashes are cached on disk by absolute path, and are only
+ * valid if the file size and modification time are unchanged.  Only the
+ * entries looked up or added since launch are written back.
+ */
+public class MapHasher {
+	/** Cache file header. */
+	private static final int MAGIC = 0x57534843;  // "WSHC"
+
+	/** Cache format version (increment on any format change). */
+	private static final int VERSION = 1;
+
+	/** Read buffer size. */
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	/** Cache entry. */
+	private static class Entry {
+		/** The file size. */
+		public final long length;
+
+		/** The file modification time. */
+		public final long lastModified;
+
+		/** The MD5 hash. */
+		public final String hash;
+
+		/**
+		 * Constructor.
+		 * @param length the file size
+		 * @param lastModified the file modification time
+		 * @param hash the MD5 hash
+		 */
+		public Entry(long length, long lastModified, String hash) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	/** Entries read from the cache file. */
+	private static Map<String, Entry> entries;
+
+	/** Entries looked up or added since launch (to be written back). */
+	private static final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+
+	/** Whether any entries were added since the cache was last written. */
+	private static volatile boolean changed = false;
+
+	/** The worker pool (created when first needed). */
+	private static ExecutorService pool;
+
+	/** Message digests (one per thread). */
+	private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/** Read buffers (one per thread). */
+	private static final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() { return ByteBuffer.allocateDirect(BUFFER_SIZE); }
+	};
+
+	// This class should not be instantiated.
+	private MapHasher() {}
+
+	/**
+	 * Returns the MD5 hash of a file, computing it on the calling thread if not cached.
+	 * @param file the file
+	 * @return the hash in hex form, or null if the file could not be read
+	 */
+	public static String getHash(File file) {
+		Map<String, Entry> cached = getEntries();
+		String path = file.getAbsolutePath();
+		long length = file.length(), lastModified = file.lastModified();
+		Entry entry = current.get(path);
+		if (entry == null)
+			entry = cached.get(path);
+		if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+			current.put(path, entry);
+			return entry.hash;
+		}
+
+		String hash = computeHash(file);
+		if (hash != null) {
+			current.put(path, new Entry(length, lastModified, hash));
+			changed = true;
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns the MD5 hashes of files, computing them in parallel.
+	 * Stops early if the calling thread is interrupted (the interrupt
+	 * status is kept).
+	 * @param files the files
+	 * @return the hashes in hex form, by file (files that could not be read are omitted)
+	 */
+	public static Map<File, String> getHashes(Collection<File> files) {
+		Map<File, String> hashes = new HashMap<File, String>(files.size() * 2);
+		int threads = Options.getParserThreads();
+		if (threads <= 1 || files.size() <= 1) {
+			for (File file : files) {
+				if (Thread.currentThread().isInterrupted())
+					break;
+				String hash = getHash(file);
+				if (hash != null)
+					hashes.put(file, hash);
+			}
+			return hashes;
+		}
+
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>(files.size());
+		for (final File file : files) {
+			tasks.add(new Callable<String>() {
+				@Override
+				public String call() { return getHash(file); }
+			});
+		}
+		try {
+			List<Future<String>> results = getPool(threads).invokeAll(tasks);
+			int i = 0;
+			for (File file : files) {
+				String hash = results.get(i++).get();
+				if (hash != null)
+					hashes.put(file, hash);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.warn("Failed to hash files.", e.getCause());
+		}
+		return hashes;
+	}
+
+	/**
+	 * Writes all entries looked up or added since launch to the cache file,
+	 * if any entries were added.
+	 */
+	public static synchronized void save() {
+		if (!changed)
+			return;
+		changed = false;
+
+		File file = Options.HASH_CACHE_FILE;
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			List<Map.Entry<String, Entry>> list = new ArrayList<Map.Entry<String, Entry>>(current.entrySet());
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(list.size());
+			for (Map.Entry<String, Entry> e : list) {
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.length);
+				out.writeLong(entry.lastModified);
+				out.writeUTF(entry.hash);
+			}
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to write hash cache '%s'.", file.getAbsolutePath()), e);
+			tmp.delete();
+			return;
+		}
+
+		// replace the old cache file
+		if (file.isFile() && !file.delete())
+			Log.warn(String.format("Failed to delete old hash cache '%s'.", file.getAbsolutePath()));
+		if (!tmp.renameTo(file))
+			Log.warn(String.format("Failed to rename hash cache '%s'.", tmp.getAbsolutePath()));
+	}
+
+	/**
+	 * Computes the MD5 hash of a file.
+	 * @param file the file
+	 * @return the hash in hex form, or null if the file could not be read
+	 */
+	private static String computeHash(File file) {
+		MessageDigest md = digest.get();
+		md.reset();
+		try {
+			Utils.digest(file, md, buffer.get());
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to hash file '%s'.", file.getAbsolutePath()), e);
+			return null;
+		}
+		return Utils.toHexString(md.digest());
+	}
+
+	/**
+	 * Returns the worker pool, creating it if needed.
+	 * @param threads the number of threads
+	 */
+	private static synchronized ExecutorService getPool(int threads) {
+		if (pool == null) {
+			final AtomicInteger count = new AtomicInteger();
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, String.format("MapHasher-%d", count.incrementAndGet()));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns the entries read from the cache file, loading them if needed.
+	 * If the file does not exist, is out of date, or cannot be read,
+	 * no entries are returned.
+	 */
+	private static synchronized Map<String, Entry> getEntries() {
+		if (entries != null)
+			return entries;
+
+		entries = new HashMap<String, Entry>();
+		File file = Options.HASH_CACHE_FILE;
+		if (!file.isFile())
+			return entries;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.warn(String.format("Ignoring out-of-date hash cache '%s'.", file.getAbsolutePath()));
+				return entries;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				entries.put(path, new Entry(length, lastModified, in.readUTF()));
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.warn(String.format("Failed to read hash cache '%s'.", file.getAbsolutePath()), e);
+			entries.clear();
+		}
+		return entries;
+	}
+}
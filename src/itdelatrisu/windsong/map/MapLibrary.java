@@ -0,0 +1,321 @@
+package itdelatrisu.windsong.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sorted and filterable view of a map list.
+ * <p>
+ * When created, the map order for each {@link SortKey} is computed as a
+ * permutation of list indices, and for each {@link Filter} a bit set of
+ * list indices is computed for each of its bands.  Queries then only
+ * combine bit sets and walk a permutation, without comparing or
+ * inspecting any maps.
+ * <p>
+ * Instances are immutable (the map list must not be modified).
+ */
+public class MapLibrary {
+	/**
+	 * Map sort keys.
+	 * Maps are sorted by text (ignoring case) or by value; maps that are
+	 * equal are kept in the order of the map list.  Maps that are not
+	 * analyzed yet (see {@link MapStats}) come first for statistic keys.
+	 */
+	public enum SortKey {
+		ARTIST ("Artist"),  // map list order
+		TITLE ("Title") {
+			@Override
+			protected String getText(MapFile map) { return map.title.toLowerCase(); }
+		},
+		CREATOR ("Creator") {
+			@Override
+			protected String getText(MapFile map) { return map.creator.toLowerCase(); }
+		},
+		DIFFICULTY ("Difficulty") {
+			@Override
+			protected int getValue(MapFile map) { return map.difficulty; }
+		},
+		LENGTH ("Length") {
+			@Override
+			protected int getValue(MapFile map) { return map.getEndTime(); }
+		},
+		NOTES ("Notes") {
+			@Override
+			protected int getValue(MapFile map) { return map.getObjectCount(); }
+		},
+		PEAK_NPS ("Peak NPS") {
+			@Override
+			protected int getValue(MapFile map) {
+				MapStats stats = map.stats;
+				return (stats != null) ? stats.peakNps : -1;
+			}
+		},
+		STRAIN ("Strain") {
+			@Override
+			protected int getValue(MapFile map) {
+				MapStats stats = map.stats;
+				return (stats != null) ? (int) (stats.strain * 100) : -1;
+			}
+		};
+
+		/** The key name. */
+		private final String name;
+
+		/**
+		 * Constructor.
+		 * @param name the key name
+		 */
+		SortKey(String name) { this.name = name; }
+
+		/** Returns the text to sort a map by, or null to sort by {@link #getValue(MapFile)}. */
+		protected String getText(MapFile map) { return null; }
+
+		/** Returns the value to sort a map by. */
+		protected int getValue(MapFile map) { return 0; }
+
+		/** Returns the key name. */
+		public String getName() { return name; }
+
+		/** Returns the next sort key (wrapping around). */
+		public SortKey next() { return values()[(ordinal() + 1) % values().length]; }
+	}
+
+	/** Map filters, each dividing the maps into bands. */
+	public enum Filter {
+		DIFFICULTY ("Difficulty", new String[] { "Easy", "Standard", "Hard", "Insane" }) {
+			@Override
+			public int getBand(MapFile map) {
+				if      (map.difficulty <= 3) return 0;
+				else if (map.difficulty <= 5) return 1;
+				else if (map.difficulty <= 7) return 2;
+				else                          return 3;
+			}
+		},
+		LENGTH ("Length", new String[] { "Under 1:00", "1:00-2:00", "2:00-3:00", "3:00-5:00", "Over 5:00" }) {
+			@Override
+			public int getBand(MapFile map) {
+				int time = map.getEndTime();
+				if      (time < 60000)  return 0;
+				else if (time < 120000) return 1;
+				else if (time < 180000) return 2;
+				else if (time < 300000) return 3;
+				else                    return 4;
+			}
+		},
+		NOTES ("Notes", new String[] { "Under 250 notes", "250-499 notes", "500-999 notes", "1000+ notes" }) {
+			@Override
+			public int getBand(MapFile map) {
+				int count = map.getObjectCount();
+				if      (count < 250)  return 0;
+				else if (count < 500)  return 1;
+				else if (count < 1000) return 2;
+				else                   return 3;
+			}
+		},
+		ARTIST_INITIAL ("Artist", new String[] {
+			"A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K", "L", "M",
+			"N", "O", "P", "Q", "R", "S", "T", "U", "V", "W", "X", "Y", "Z", "#"
+		}) {
+			@Override
+			public int getBand(MapFile map) {
+				if (map.artist.isEmpty())
+					return 26;
+				char c = Character.toUpperCase(map.artist.charAt(0));
+				return (c >= 'A' && c <= 'Z') ? c - 'A' : 26;
+			}
+		},
+		DENSITY ("Density", new String[] { "Under 4 NPS", "4-7 NPS", "8-11 NPS", "12+ NPS" }) {
+			@Override
+			public int getBand(MapFile map) {
+				MapStats stats = map.stats;
+				if      (stats == null)       return -1;
+				else if (stats.peakNps < 4)   return 0;
+				else if (stats.peakNps < 8)   return 1;
+				else if (stats.peakNps < 12)  return 2;
+				else                          return 3;
+			}
+		};
+
+		/** The filter name. */
+		private final String name;
+
+		/** The band names. */
+		private final String[] bands;
+
+		/**
+		 * Constructor.
+		 * @param name the filter name
+		 * @param bands the band names
+		 */
+		Filter(String name, String[] bands) {
+			this.name = name;
+			this.bands = bands;
+		}
+
+		/** Returns the band index of a map, or -1 if the map is not in any band. */
+		public abstract int getBand(MapFile map);
+
+		/** Returns the filter name. */
+		public String getName() { return name; }
+
+		/** Returns the number of bands. */
+		public int getBandCount() { return bands.length; }
+
+		/**
+		 * Returns the name of a band.
+		 * @param band the band index
+		 */
+		public String getBandName(int band) { return bands[band]; }
+	}
+
+	/** The maps. */
+	private final List<MapFile> maps;
+
+	/** List indices in sorted order, by sort key. */
+	private final int[][] permutations;
+
+	/** List indices in each band, by filter. */
+	private final BitSet[][] bandSets;
+
+	/**
+	 * Constructor.
+	 * @param maps the map list (sorted by {@link MapFile#compareTo(MapFile)})
+	 */
+	public MapLibrary(List<MapFile> maps) {
+		this.maps = maps;
+		int size = maps.size();
+
+		// sorted permutations
+		SortKey[] keys = SortKey.values();
+		permutations = new int[keys.length][];
+		for (SortKey key : keys)
+			permutations[key.ordinal()] = sort(key);
+
+		// band bit sets
+		Filter[] filters = Filter.values();
+		bandSets = new BitSet[filters.length][];
+		for (Filter filter : filters) {
+			BitSet[] sets = new BitSet[filter.getBandCount()];
+			for (int i = 0; i < sets.length; i++)
+				sets[i] = new BitSet(size);
+			for (int i = 0; i < size; i++) {
+				int band = filter.getBand(maps.get(i));
+				if (band >= 0)
+					sets[band].set(i);
+			}
+			bandSets[filter.ordinal()] = sets;
+		}
+	}
+
+	/**
+	 * Returns the list indices of all maps, sorted by a key.
+	 * <p>
+	 * Each map is packed into a long (sort value in the high bits, list index
+	 * in the low bits), so a single primitive sort orders the maps by value
+	 * and then by list index.  Text is first replaced by its rank among all
+	 * distinct values.
+	 * @param key the sort key
+	 */
+	private int[] sort(SortKey key) {
+		int size = maps.size();
+		int[] permutation = new int[size];
+		if (key == SortKey.ARTIST || size == 0) {
+			for (int i = 0; i < size; i++)
+				permutation[i] = i;
+			return permutation;
+		}
+
+		// sort values
+		long[] packed = new long[size];
+		if (key.getText(maps.get(0)) != null) {
+			String[] text = new String[size];
+			for (int i = 0; i < size; i++)
+				text[i] = key.getText(maps.get(i));
+			String[] distinct = text.clone();
+			Arrays.sort(distinct);
+			int distinctCount = 0;
+			for (int i = 0; i < size; i++) {
+				if (i == 0 || !distinct[i].equals(distinct[distinctCount - 1]))
+					distinct[distinctCount++] = distinct[i];
+			}
+			for (int i = 0; i < size; i++)
+				packed[i] = ((long) Arrays.binarySearch(distinct, 0, distinctCount, text[i]) << 32) | i;
+		} else {
+			for (int i = 0; i < size; i++)
+				packed[i] = ((long) key.getValue(maps.get(i)) << 32) | i;
+		}
+		Arrays.sort(packed);
+		for (int i = 0; i < size; i++)
+			permutation[i] = (int) packed[i];
+		return permutation;
+	}
+
+	/**
+	 * Returns the map list (sorted by {@link MapFile#compareTo(MapFile)}).
+	 */
+	public List<MapFile> getMaps() { return maps; }
+
+	/**
+	 * Returns the number of maps.
+	 */
+	public int size() { return maps.size(); }
+
+	/**
+	 * Returns the list indices of all maps in the selected bands.
+	 * @param bands the selected band for each filter (indexed by {@link Filter#ordinal()}),
+	 *              or -1 to not filter by that attribute
+	 * @return the list indices, or null if no filter is selected (i.e. all maps)
+	 */
+	public BitSet getMask(int[] bands) {
+		BitSet mask = null;
+		for (int i = 0; i < bands.length; i++) {
+			if (bands[i] < 0)
+				continue;
+			BitSet set = bandSets[i][bands[i]];
+			if (mask == null)
+				mask = (BitSet) set.clone();
+			else
+				mask.and(set);
+		}
+		return mask;
+	}
+
+	/**
+	 * Returns the maps with the given list indices, in sorted order.
+	 * @param key the sort key
+	 * @param mask the list indices to include, or null to include all maps
+	 * @return the sorted maps
+	 */
+	public List<MapFile> query(SortKey key, BitSet mask) {
+		int[] permutation = permutations[key.ordinal()];
+		if (mask == null) {
+			if (key == SortKey.ARTIST)
+				return maps;
+			List<MapFile> results = new ArrayList<MapFile>(permutation.length);
+			for (int index : permutation)
+				results.add(maps.get(index));
+			return results;
+		}
+
+		int count = mask.cardinality();
+		if (count == 0)
+			return Collections.emptyList();
+		List<MapFile> results = new ArrayList<MapFile>(count);
+		if (key == SortKey.ARTIST) {
+			for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1))
+				results.add(maps.get(i));
+		} else {
+			for (int index : permutation) {
+				if (mask.get(index)) {
+					results.add(maps.get(index));
+					if (results.size() == count)
+						break;
+				}
+			}
+		}
+		return results;
+	}
+}
@@ -1,14 +1,23 @@
 package itdelatrisu.windsong.map;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.newdawn.slick.util.Log;
 
@@ -19,23 +28,132 @@ import itdelatrisu.windsong.Options;
  * Parser for maps.
  */
 public class MapParser {
-	/** List of all parsed maps. */
-	private static List<MapFile> mapList = new ArrayList<MapFile>();
+	/** List of all parsed maps, in sorted order (replaced, not modified, when the library changes). */
+	private static volatile List<MapFile> mapList = new ArrayList<MapFile>();
 
 	/** Returns the list of maps. */
 	public static List<MapFile> getMaps() { return mapList; }
 
+	/** Sorted and filterable view of the list of maps. */
+	private static volatile MapLibrary library = new MapLibrary(mapList);
+
+	/**
+	 * Returns the sorted and filterable view of the list of maps.
+	 * The view is replaced whenever the list of maps is.
+	 */
+	public static MapLibrary getLibrary() { return library; }
+
+	/** Search index for all parsed maps. */
+	private static volatile MapSearchIndex searchIndex = new MapSearchIndex();
+
+	/** Returns the search index for the list of maps. */
+	public static MapSearchIndex getSearchIndex() { return searchIndex; }
+
+	/** Duplicate maps and shared audio files in the list of maps. */
+	private static volatile MapDuplicates duplicates = MapDuplicates.find(mapList);
+
+	/**
+	 * Returns the duplicate maps and shared audio files in the list of maps.
+	 * These are replaced whenever the list of maps is.
+	 */
+	public static MapDuplicates getDuplicates() { return duplicates; }
+
 	/** The string lookup database. */
-	private static HashMap<String, String> stringdb = new HashMap<String, String>();
+	private static ConcurrentHashMap<String, String> stringdb = new ConcurrentHashMap<String, String>();
 
 	/** The current file being parsed. */
-	private static File currentFile;
+	private static volatile File currentFile;
 
 	/** The current directory number while parsing. */
-	private static int currentDirectoryIndex = -1;
+	private static final AtomicInteger currentDirectoryIndex = new AtomicInteger(-1);
 
 	/** The total number of directories to parse. */
-	private static int totalDirectories = -1;
+	private static volatile int totalDirectories = -1;
+
+	/** Whether the current parse has been interrupted. */
+	private static volatile boolean parseInterrupted = false;
+
+	/** The map cache used during the current parse (or null if not caching). */
+	private static volatile MapCache cache;
+
+	/** Section headers and metadata tags, as bytes. */
+	private static final byte[]
+		SECTION_METADATA = ascii("[Metadata]"), SECTION_HIT_OBJECTS = ascii("[HitObjects]"),
+		TAG_AUDIO_FILENAME = ascii("AudioFilename"), TAG_TITLE = ascii("Title"),
+		TAG_ARTIST = ascii("Artist"), TAG_CREATOR = ascii("Creator"), TAG_DIFFICULTY = ascii("Difficulty");
+
+	/** Map file readers (one per parser thread). */
+	private static final ThreadLocal<MapReader> reader = new ThreadLocal<MapReader>() {
+		@Override
+		protected MapReader initialValue() { return new MapReader(); }
+	};
+
+	/** Maximum number of maps to keep hit objects loaded for (if loaded on demand). */
+	private static final int LOADED_MAPS_MAX = 8;
+
+	/** Maps with hit objects loaded on demand, in access order. */
+	private static final LinkedHashMap<MapFile, Boolean> loadedMaps = new LinkedHashMap<MapFile, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<MapFile, Boolean> eldest) {
+			if (size() <= LOADED_MAPS_MAX)
+				return false;
+			eldest.getKey().objects = null;
+			return true;
+		}
+	};
+
+	/** Number of directories in the first batch to parse (each further batch is twice as large). */
+	private static final int FIRST_BATCH_DIRECTORIES = 64;
+
+	/** Maximum number of directories parsed by a single fork/join task. */
+	private static final int DIRECTORIES_PER_TASK = 4;
+
+	/**
+	 * Fork/join task that parses a range of directories.
+	 */
+	private static class ParseTask extends RecursiveTask<List<MapFile>> {
+		private static final long serialVersionUID = 1L;
+
+		/** The directories. */
+		private final File[] dirs;
+
+		/** The range of directories to parse: [start, end). */
+		private final int start, end;
+
+		/**
+		 * Constructor.
+		 * @param dirs the array of directories
+		 * @param start the first index to parse (inclusive)
+		 * @param end the last index to parse (exclusive)
+		 */
+		public ParseTask(File[] dirs, int start, int end) {
+			this.dirs = dirs;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected List<MapFile> compute() {
+			if (end - start <= DIRECTORIES_PER_TASK) {
+				List<MapFile> maps = new ArrayList<MapFile>();
+				for (int i = start; i < end && !parseInterrupted; i++)
+					parseDirectory(dirs[i], maps);
+				return maps;
+			}
+
+			// split the range in half (left half keeps its original order)
+			int mid = (start + end) >>> 1;
+			ParseTask left = new ParseTask(dirs, start, mid);
+			ParseTask right = new ParseTask(dirs, mid, end);
+			left.fork();
+			List<MapFile> maps = right.compute();
+			List<MapFile> leftMaps = left.join();
+			leftMaps.addAll(maps);
+			return leftMaps;
+		}
+	}
 
 	// This class should not be instantiated.
 	private MapParser() {}
@@ -44,9 +162,11 @@ public class MapParser {
 	 * Invokes parser for each map file in a root directory.
 	 * @param root the root directory (search has depth 1)
 	 */
-	public static void parseAllFiles(File root) {
+	public static synchronized void parseAllFiles(File root) {
 		// create a new map list
 		mapList = new ArrayList<MapFile>();
+		library = new MapLibrary(mapList);
+		searchIndex = new MapSearchIndex();
 
 		// parse all directories
 		parseDirectories(root.listFiles());
@@ -55,144 +175,310 @@ public class MapParser {
 	/**
 	 * Invokes parser for each directory in the given array and
 	 * adds the maps to the existing map list.
+	 * <p>
+	 * Directories are parsed in batches of increasing size, and a new sorted
+	 * map list (and library) is published after each batch, so the maps
+	 * parsed so far can be used while parsing continues.  Within a batch,
+	 * directories are parsed in parallel if more than one parser thread
+	 * is configured (see {@link Options#getParserThreads()}).
+	 * Parsing stops early if the calling thread is interrupted.
 	 * @param dirs the array of directories to parse
 	 */
-	public static void parseDirectories(File[] dirs) {
+	public static synchronized void parseDirectories(File[] dirs) {
 		if (dirs == null)
 			return;
 
 		// progress tracking
-		currentDirectoryIndex = 0;
+		currentDirectoryIndex.set(0);
 		totalDirectories = dirs.length;
+		parseInterrupted = false;
+		long startTime = System.currentTimeMillis();
+
+		// load cached map data
+		cache = MapCache.load(Options.MAP_CACHE_FILE);
 
-		// parse directories
+		// parse directories in batches, publishing the maps after each batch
+		int batchSize = FIRST_BATCH_DIRECTORIES;
+		for (int start = 0; start < dirs.length && !parseInterrupted; start += batchSize, batchSize *= 2) {
+			List<MapFile> maps = parse(Arrays.copyOfRange(dirs, start, Math.min(start + batchSize, dirs.length)));
+			Collections.sort(maps);
+
+			// index maps for searching, sorting, and filtering
+			searchIndex.addAll(maps);
+			List<MapFile> newList = merge(mapList, maps);
+			MapLibrary newLibrary = new MapLibrary(newList);
+			mapList = newList;
+			library = newLibrary;
+		}
+
+		// find duplicate files
+		duplicates = MapDuplicates.find(mapList);
+		MapHasher.save();
+
+		// write the updated cache (keeping the maps not scanned, if interrupted)
+		Log.info(String.format("Loaded %d maps (%d cached) in %dms.",
+				mapList.size(), cache.getHitCount(), System.currentTimeMillis() - startTime));
+		if (parseInterrupted)
+			cache.keepUnseen();
+		cache.save();
+		cache = null;
+
+		// compute map statistics and convert maps in the background
+		MapAnalyzer.analyze(mapList);
+		MapConverter.convert(mapList);
+
+		// clear string DB
+		stringdb = new ConcurrentHashMap<String, String>();
+
+		currentFile = null;
+		currentDirectoryIndex.set(-1);
+		totalDirectories = -1;
+	}
+
+	/**
+	 * Re-parses the given directories and publishes a new map list.
+	 * <p>
+	 * All maps in these directories are replaced by the newly parsed maps
+	 * (directories that no longer exist are removed).  The current map list
+	 * is not modified; the new list replaces it once it is complete, so
+	 * {@link #getMaps()} can be called from other threads at any time.
+	 * The map cache is not used, so new or changed maps are parsed again
+	 * (and cached) on the next launch.  Nothing is published if the
+	 * calling thread is interrupted.
+	 * @param dirs the directories to update
+	 * @return true if a new map list was published
+	 */
+	public static synchronized boolean updateDirectories(Collection<File> dirs) {
+		parseInterrupted = false;
+		long startTime = System.currentTimeMillis();
+
+		// keep all maps outside of the changed directories
+		Set<File> changed = new HashSet<File>();
+		List<File> parseDirs = new ArrayList<File>(dirs.size());
 		for (File dir : dirs) {
-			currentDirectoryIndex++;
-			if (!dir.isDirectory())
-				continue;
+			if (changed.add(dir.getAbsoluteFile()))
+				parseDirs.add(dir);
+		}
+		List<MapFile> oldList = mapList;
+		List<MapFile> maps = new ArrayList<MapFile>(oldList.size());
+		List<MapFile> removed = new ArrayList<MapFile>();
+		for (MapFile map : oldList) {
+			if (changed.contains(map.getFile().getAbsoluteFile().getParentFile()))
+				removed.add(map);
+			else
+				maps.add(map);
+		}
+
+		// parse changed directories
+		List<MapFile> newMaps = parse(parseDirs.toArray(new File[parseDirs.size()]));
+		stringdb = new ConcurrentHashMap<String, String>();
+		currentFile = null;
+		currentDirectoryIndex.set(-1);
+		if (parseInterrupted)
+			return false;
+
+		// update the search index and publish the new list
+		searchIndex.removeAll(removed);
+		searchIndex.addAll(newMaps);
+		maps.addAll(newMaps);
+		Collections.sort(maps);
+		MapLibrary newLibrary = new MapLibrary(maps);
+		MapDuplicates newDuplicates = MapDuplicates.find(maps);
+		mapList = maps;
+		library = newLibrary;
+		duplicates = newDuplicates;
+		MapHasher.save();
+		Log.info(String.format("Updated %d directories (%d maps removed, %d added) in %dms.",
+				changed.size(), removed.size(), newMaps.size(), System.currentTimeMillis() - startTime));
+		MapAnalyzer.analyze(newMaps);
+		MapConverter.convert(newMaps);
+		return true;
+	}
+
+	/**
+	 * Merges two sorted map lists into a new list.
+	 * Maps in the first list come first among equal maps.
+	 * @param a the first list
+	 * @param b the second list
+	 */
+	private static List<MapFile> merge(List<MapFile> a, List<MapFile> b) {
+		List<MapFile> list = new ArrayList<MapFile>(a.size() + b.size());
+		int i = 0, j = 0;
+		while (i < a.size() && j < b.size())
+			list.add((b.get(j).compareTo(a.get(i)) < 0) ? b.get(j++) : a.get(i++));
+		list.addAll(a.subList(i, a.size()));
+		list.addAll(b.subList(j, b.size()));
+		return list;
+	}
+
+	/**
+	 * Publishes a new library for the current map list, e.g. after map
+	 * statistics used for sorting and filtering have changed.
+	 */
+	public static synchronized void refreshLibrary() {
+		library = new MapLibrary(mapList);
+	}
+
+	/**
+	 * Parses all map files in the given directories.
+	 * @param dirs the directories to parse
+	 * @return the parsed maps
+	 */
+	private static List<MapFile> parse(File[] dirs) {
+		List<MapFile> maps = new ArrayList<MapFile>();
+		int threads = Math.min(Options.getParserThreads(), Math.max(dirs.length, 1));
+		if (threads <= 1) {
+			for (File dir : dirs) {
+				parseDirectory(dir, maps);
 
-			// find all map files
-			File[] files = dir.listFiles(new FilenameFilter() {
-				@Override
-				public boolean accept(File dir, String name) {
-					return name.toLowerCase().endsWith(Options.MAP_FILE_EXT);
+				// stop parsing files (interrupted)
+				if (Thread.interrupted()) {
+					parseInterrupted = true;
+					break;
 				}
-			});
-			if (files == null || files.length < 1)
-				continue;
+			}
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			ForkJoinTask<List<MapFile>> task = pool.submit(new ParseTask(dirs, 0, dirs.length));
+			try {
+				maps = task.get();
+			} catch (InterruptedException e) {
+				// stop parsing files, but keep everything parsed so far
+				parseInterrupted = true;
+				maps = task.join();
+			} catch (ExecutionException e) {
+				ErrorHandler.error("Failed to parse maps.", e.getCause(), true);
+			} finally {
+				pool.shutdown();
+			}
+		}
+		return maps;
+	}
+
+	/**
+	 * Parses all map files in a directory.
+	 * @param dir the directory
+	 * @param maps the list to add parsed maps to
+	 */
+	private static void parseDirectory(File dir, List<MapFile> maps) {
+		try {
+			if (!dir.isDirectory())
+				return;
+
+			// find all map files (the listing is shared by all maps in the directory)
+			DirectoryListing listing = new DirectoryListing(dir);
+			File[] files = listing.getFiles(Options.MAP_FILE_EXT, Options.MAP_BINARY_FILE_EXT);
+			if (files.length < 1)
+				return;
 
 			// create a new group entry
+			boolean lazy = Options.isLazyHitObjectsEnabled();
 			for (File file : files) {
+				if (isSuperseded(file, files))
+					continue;
 				currentFile = file;
-				MapFile map = parseFile(file, dir);
+				long length = file.length(), lastModified = file.lastModified();
+				MapFile map = (cache != null) ? cache.get(file, length, lastModified, lazy, listing) : null;
+				if (map == null) {
+					map = (MapBinary.isBinaryMap(file)) ? MapBinary.read(file, listing, lazy) : parseFile(file, listing, lazy);
+					if (map != null && cache != null)
+						cache.put(file, length, lastModified, map);
+				}
 				if (map != null)
-					mapList.add(map);
+					maps.add(map);
 			}
-
-			// stop parsing files (interrupted)
-			if (Thread.interrupted())
-				break;
+		} finally {
+			currentDirectoryIndex.incrementAndGet();
 		}
+	}
 
-		// sort list
-		Collections.sort(mapList);
-
-		// clear string DB
-		stringdb = new HashMap<String, String>();
-
-		currentFile = null;
-		currentDirectoryIndex = -1;
-		totalDirectories = -1;
+	/**
+	 * Returns whether a map file should be skipped because the same map
+	 * also exists in the other format and that file is newer.
+	 * Binary maps are preferred if both files have the same modification time.
+	 * @param file the map file
+	 * @param files all map files in the directory
+	 */
+	private static boolean isSuperseded(File file, File[] files) {
+		boolean binary = MapBinary.isBinaryMap(file);
+		File other = (binary) ? null : MapBinary.getBinaryFile(file);
+		for (File f : files) {
+			if (f == file || MapBinary.isBinaryMap(f) == binary)
+				continue;
+			if (binary ? MapBinary.getBinaryFile(f).getName().equalsIgnoreCase(file.getName())
+			           : f.getName().equalsIgnoreCase(other.getName()))
+				return (binary) ? f.lastModified() > file.lastModified() : f.lastModified() >= file.lastModified();
+		}
+		return false;
 	}
 
 	/**
-	 * Parses a map.
+	 * Parses a text map file.
 	 * @param file the file to parse
-	 * @param dir the directory containing the map
+	 * @param dir the listing of the directory containing the map
+	 * @param lazy if true, only record the hit object offset (see {@link MapFile#objectsOffset})
 	 * @return the new map
 	 */
-	private static MapFile parseFile(File file, File dir) {
+	static MapFile parseFile(File file, DirectoryListing dir, boolean lazy) {
 		MapFile map = new MapFile(file);
-		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-			String line = in.readLine();
-			String tokens[] = null;
-			while (line != null) {
-				line = line.trim();
-				if (!isValidLine(line)) {
-					line = in.readLine();
+		MapReader in = reader.get();
+		try {
+			in.open(file, 0);
+			boolean hasLine = in.nextLine();
+			while (hasLine) {
+				if (!in.isValidLine() || !in.isSectionHeader()) {
+					hasLine = in.nextLine();
 					continue;
 				}
-				switch (line) {
-				case "[Metadata]":
-					while ((line = in.readLine()) != null) {
-						line = line.trim();
-						if (!isValidLine(line))
+				if (in.lineEquals(SECTION_METADATA)) {
+					while ((hasLine = in.nextLine())) {
+						if (!in.isValidLine())
 							continue;
-						if (line.charAt(0) == '[')
+						if (in.isSectionHeader())
 							break;
-						if ((tokens = tokenize(line)) == null)
+						int separator = in.indexOf(':');
+						if (separator == -1) {
+							Log.debug(String.format("Failed to tokenize line: '%s'.", in.getLine()));
 							continue;
+						}
 						try {
-							switch (tokens[0]) {
-							case "AudioFilename":
-								File audioFileName = new File(dir, tokens[1]);
-								if (!audioFileName.isFile()) {
-									// try to find the file with a case-insensitive match
-									boolean match = false;
-									for (String s : dir.list()) {
-										if (s.equalsIgnoreCase(tokens[1])) {
-											audioFileName = new File(dir, s);
-											match = true;
-											break;
-										}
-									}
-									if (!match) {
-										Log.error(String.format("Audio file '%s' not found in directory '%s'.", tokens[1], dir.getName()));
-										return null;
-									}
+							if (in.tagEquals(separator, TAG_AUDIO_FILENAME)) {
+								String value = in.getValue(separator);
+								// try to find the file with a case-insensitive match
+								File audioFileName = dir.find(value);
+								if (audioFileName == null) {
+									Log.error(String.format("Audio file '%s' not found in directory '%s'.", value, dir.getDirectory().getName()));
+									return null;
 								}
 								map.audioFilename = audioFileName;
-								break;
-							case "Title":
-								map.title = getDBString(tokens[1]);
-								break;
-							case "Artist":
-								map.artist = getDBString(tokens[1]);
-								break;
-							case "Creator":
-								map.creator = getDBString(tokens[1]);
-								break;
-							case "Difficulty":
-								map.difficulty = Integer.parseInt(tokens[1]);
-								break;
-							}
+							} else if (in.tagEquals(separator, TAG_TITLE))
+								map.title = getDBString(in.getValue(separator));
+							else if (in.tagEquals(separator, TAG_ARTIST))
+								map.artist = getDBString(in.getValue(separator));
+							else if (in.tagEquals(separator, TAG_CREATOR))
+								map.creator = getDBString(in.getValue(separator));
+							else if (in.tagEquals(separator, TAG_DIFFICULTY))
+								map.difficulty = in.getIntValue(separator);
 						} catch (Exception e) {
 							Log.warn(String.format("Failed to read metadata '%s' for file '%s'.",
-									line, file.getAbsolutePath()), e);
+									in.getLine(), file.getAbsolutePath()), e);
 						}
 					}
-					break;
-				case "[HitObjects]":
-					List<HitObject> hitObjects = new ArrayList<HitObject>();
-					while ((line = in.readLine()) != null) {
-						line = line.trim();
-						if (!isValidLine(line))
-							continue;
-						if (line.charAt(0) == '[')
-							break;
-						try {
-							hitObjects.add(new HitObject(line));
-						} catch (Exception e) {
-							Log.warn(String.format("Failed to read hit object '%s' for file '%s'.",
-									line, file.getAbsolutePath()), e);
-						}
+				} else if (in.lineEquals(SECTION_HIT_OBJECTS)) {
+					if (lazy) {
+						// only record where the hit objects are and when the last one starts
+						map.objectsOffset = in.getNextLineOffset();
+						skipHitObjects(in, map);
+						hasLine = !in.isEndOfFile();
+						continue;
 					}
-					map.objects = hitObjects.toArray(new HitObject[hitObjects.size()]);
-					break;
-				default:
-					line = in.readLine();
-					break;
-				}
+					HitObjectList hitObjects = new HitObjectList();
+					readHitObjects(in, file, hitObjects);
+					hitObjects.trimToSize();
+					map.objects = hitObjects;
+					hasLine = !in.isEndOfFile();
+				} else
+					hasLine = in.nextLine();
 			}
 		} catch (IOException e) {
 			ErrorHandler.error(String.format("Failed to read file '%s'.", file.getAbsolutePath()), e, false);
@@ -201,7 +487,7 @@ public class MapParser {
 		// sanity checks
 		if (map.audioFilename == null)
 			return null;
-		if (map.objects == null) {
+		if (map.objects == null && map.objectsOffset < 0) {
 			Log.warn(String.format("No hit objects found in MapFile '%s'.", map.toString()));
 			return null;
 		}
@@ -210,34 +496,133 @@ public class MapParser {
 	}
 
 	/**
-	 * Returns false if the line is too short or commented.
+	 * Reads hit object lines until the end of the section.
+	 * The reader is left on the line starting the next section (if any).
+	 * @param in the reader, positioned on the [HitObjects] header
+	 * @param file the file being read (for logging)
+	 * @param hitObjects the list to add the hit objects to
 	 */
-	private static boolean isValidLine(String line) {
-		return (line.length() > 1 && !line.startsWith("//"));
+	private static void readHitObjects(MapReader in, File file, HitObjectList hitObjects) {
+		while (in.nextLine()) {
+			if (!in.isValidLine())
+				continue;
+			if (in.isSectionHeader())
+				break;
+			try {
+				in.readHitObject();
+				hitObjects.add(in.getTime(), in.getPosition(), in.getSound());
+			} catch (Exception e) {
+				Log.warn(String.format("Failed to read hit object '%s' for file '%s'.",
+						in.getLine(), file.getAbsolutePath()), e);
+			}
+		}
 	}
 
 	/**
-	 * Splits line into two strings: tag, value.
-	 * If no ':' character is present, null will be returned.
+	 * Skips hit object lines until the end of the section without storing them,
+	 * and records the end time (from the last valid line) and number of hit
+	 * objects in the map.  Lines are only checked (see {@link MapReader#isHitObject()}),
+	 * so the results are the same as {@link #readHitObjects(MapReader, File, HitObjectList)}
+	 * without creating any objects.
+	 * The reader is left on the line starting the next section (if any).
+	 * @param in the reader, positioned on the [HitObjects] header
+	 * @param map the map
 	 */
-	private static String[] tokenize(String line) {
-		int index = line.indexOf(':');
-		if (index == -1) {
-			Log.debug(String.format("Failed to tokenize line: '%s'.", line));
-			return null;
+	private static void skipHitObjects(MapReader in, MapFile map) {
+		int endTime = -1, count = 0;
+		while (in.nextLine()) {
+			if (!in.isValidLine())
+				continue;
+			if (in.isSectionHeader())
+				break;
+			if (in.isHitObject()) {
+				in.mark();
+				count++;
+			}
 		}
+		if (count > 0) {
+			in.readMarkedHitObject();
+			endTime = in.getTime();
+		}
+		map.endTime = endTime;
+		map.objectCount = count;
+	}
+
+	/**
+	 * Parses the hit objects of a text map file, starting at the given offset.
+	 * @param file the map file
+	 * @param offset the hit object offset (see {@link MapFile#objectsOffset})
+	 * @return the hit objects
+	 * @throws IOException if an I/O error occurs
+	 */
+	static HitObjectList readHitObjects(File file, long offset) throws IOException {
+		MapReader in = reader.get();
+		in.open(file, offset);
+		HitObjectList hitObjects = new HitObjectList();
+		readHitObjects(in, file, hitObjects);
+		hitObjects.trimToSize();
+		return hitObjects;
+	}
+
+	/**
+	 * Reads the hit objects of a map from its map file, without keeping them
+	 * loaded (see {@link #loadHitObjects(MapFile)}).
+	 * @param map the map (with a recorded hit object offset)
+	 * @return the hit objects
+	 * @throws IOException if an I/O error occurs
+	 */
+	static HitObjectList readHitObjects(MapFile map) throws IOException {
+		File file = map.getFile();
+		return (MapBinary.isBinaryMap(file)) ?
+			MapBinary.readHitObjects(file, map.objectsOffset) : readHitObjects(file, map.objectsOffset);
+	}
+
+	/**
+	 * Returns the hit objects for a map, loading them from the map file if needed.
+	 * <p>
+	 * Maps loaded on demand are kept in a small cache of recently used maps;
+	 * the hit objects of the least recently used map are released once the
+	 * cache is full.
+	 * @param map the map
+	 * @return the hit objects, or null if they could not be loaded
+	 */
+	public static HitObjectList loadHitObjects(MapFile map) {
+		synchronized (loadedMaps) {
+			if (map.objects != null) {
+				if (map.objectsOffset >= 0)
+					loadedMaps.put(map, Boolean.TRUE);  // mark as recently used
+				return map.objects;
+			}
+			if (map.objectsOffset < 0)
+				return null;
 
-		String[] tokens = new String[2];
-		tokens[0] = line.substring(0, index).trim();
-		tokens[1] = line.substring(index + 1).trim();
-		return tokens;
+			try {
+				HitObjectList objects = readHitObjects(map);
+				if (objects.size() == 0) {
+					Log.warn(String.format("No hit objects found in MapFile '%s'.", map.toString()));
+					return null;
+				}
+				map.objects = objects;
+				loadedMaps.put(map, Boolean.TRUE);
+				return objects;
+			} catch (IOException e) {
+				ErrorHandler.error(String.format("Failed to read file '%s'.", map.getFile().getAbsolutePath()), e, false);
+				return null;
+			}
+		}
 	}
 
+	/**
+	 * Returns the bytes of an ASCII string.
+	 */
+	private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+
 	/**
 	 * Returns the name of the current file being parsed, or null if none.
 	 */
 	public static String getCurrentFileName() {
-		return (currentFile != null) ? currentFile.getName() : null;
+		File file = currentFile;
+		return (file != null) ? file.getName() : null;
 	}
 
 	/**
@@ -245,10 +630,11 @@ public class MapParser {
 	 * @return the completion percent [0, 100] or -1
 	 */
 	public static int getParserProgress() {
-		if (currentDirectoryIndex == -1 || totalDirectories == -1)
+		int index = currentDirectoryIndex.get(), total = totalDirectories;
+		if (index == -1 || total == -1)
 			return -1;
 
-		return currentDirectoryIndex * 100 / totalDirectories;
+		return index * 100 / total;
 	}
 
 	/**
@@ -258,11 +644,7 @@ public class MapParser {
 	 * @return the string object
 	 */
 	public static String getDBString(String s) {
-		String DBString = stringdb.get(s);
-		if (DBString == null) {
-			stringdb.put(s, s);
-			return s;
-		} else
-			return DBString;
+		String DBString = stringdb.putIfAbsent(s, s);
+		return (DBString == null) ? s : DBString;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,330 @@
+package itdelatrisu.windsong.map;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import itdelatrisu.windsong.Options;
+
+/**
+ * Differential check of the map file parser.
+ * <p>
+ * Each map file is parsed by {@link MapParser#parseFile(File, DirectoryListing, boolean)}
+ * both eagerly and lazily (then loading the hit objects), and by a reference
+ * parser: the line-based parser that {@link MapReader} replaced.  All three
+ * must agree on the metadata, hit objects, note count, and end time.  The
+ * only intended difference from the reference parser is that hit objects
+ * that cannot be stored (see {@link HitObjectList#isValid(int, int)}) are
+ * skipped, so the reference parser skips them as well.
+ * <p>
+ * Built-in fixtures cover line endings, a missing trailing newline,
+ * sections after [HitObjects], and malformed lines; map files or song
+ * directories can also be given on the command line.
+ */
+public class MapParserCheck {
+	/** Metadata lines of the fixtures. */
+	private static final String METADATA =
+		"[Metadata]\nAudioFilename: audio.mp3\nTitle: Title\nArtist: Artist\nCreator: Creator\nDifficulty: 3\n";
+
+	/** Built-in fixtures: name, then file contents (with '\n' line endings). */
+	private static final String[][] FIXTURES = {
+		{ "basic", METADATA + "\n[HitObjects]\n100,1,0\n200,2,1\n300,8,0\n" },
+		{ "no trailing newline", METADATA + "\n[HitObjects]\n100,1,0\n200,2,1\n300,8,0" },
+		{ "section after hit objects", "[Metadata]\nAudioFilename: audio.mp3\n[HitObjects]\n100,1,0\n200,2,0\n[Metadata]\nTitle: Later\nDifficulty: 5\n[Other]\n300,3,0\n" },
+		{ "hit objects first", "[HitObjects]\n100,1,0\n200,2,0\n\n" + METADATA },
+		{ "empty hit objects", METADATA + "[HitObjects]\n\n" },
+		{ "no hit objects", METADATA },
+		{ "malformed last line", METADATA + "[HitObjects]\n100,1,0\n200,2,0\n300,x,0\n" },
+		{ "malformed lines", METADATA + "[HitObjects]\n" +
+			"// comment\n100,1,0\n \t \nx\n100\n100,1\n100,1,\n,1,0\n1 00,1,0\n100, 1,0\n" +
+			"+150,+2,+0\n-50,3,0\n2147483647,4,0\n2147483648,4,0\n-2147483648,5,0\n" +
+			"200,2,0,extra\n250,-1,0\n260,99,0\n270,1,99\n  300,3,1  \n\t400,4,0\t\n--1,1,0\n+,1,0\n" },
+		{ "malformed metadata", "[Metadata]\nAudioFilename: AUDIO.MP3\nTitle\nDifficulty: hard\n  Artist  :  Spaced  \nCreator:\n" +
+			"[HitObjects]\n100,1,0\n" },
+		{ "unicode", "[Metadata]\nAudioFilename: audio.mp3\nTitle: \u3042\u3044\u3046\nArtist: Caf\u00e9\n[HitObjects]\n100,1,0\n" },
+		{ "missing audio", "[Metadata]\nAudioFilename: missing.mp3\n[HitObjects]\n100,1,0\n" },
+	};
+
+	/** Line endings to write each fixture with. */
+	private static final String[] LINE_ENDINGS = { "\n", "\r\n", "\r" };
+
+	/** A map parsed by the reference parser. */
+	static class ReferenceMap {
+		/** The audio file name (or null). */
+		public String audioFilename;
+
+		/** The metadata (with the same defaults as {@link MapFile}). */
+		public String title = "", artist = "", creator = "";
+
+		/** The difficulty. */
+		public int difficulty = 1;
+
+		/** The hit objects (or null if there was no [HitObjects] section). */
+		public HitObjectList objects;
+	}
+
+	// This class should not be instantiated.
+	private MapParserCheck() {}
+
+	/**
+	 * Runs the check on the built-in fixtures and the given map files.
+	 * @param args song directories, map directories, or map files to also check
+	 */
+	public static void main(String[] args) {
+		List<File> files = new ArrayList<File>();
+		File fixtureDir = null;
+		try {
+			fixtureDir = writeFixtures(files);
+		} catch (IOException e) {
+			System.err.printf("Failed to write fixtures: %s%n", e.getMessage());
+			System.exit(1);
+		}
+		for (String arg : args)
+			findMapFiles(new File(arg), 2, files);
+
+		int failed = 0;
+		for (File file : files) {
+			String error;
+			try {
+				error = check(file);
+			} catch (Exception e) {
+				error = e.toString();
+			}
+			if (error != null) {
+				System.err.printf("Check failed: %s: %s%n", file.getPath(), error);
+				failed++;
+			}
+		}
+		deleteAll(fixtureDir);
+
+		System.out.printf("Checked %d map(s), %d failed.%n", files.size(), failed);
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Checks a map file.
+	 * @param file the map file
+	 * @return a description of the first difference, or null if none
+	 * @throws IOException if the file could not be read
+	 */
+	private static String check(File file) throws IOException {
+		ReferenceMap ref = parseReference(file);
+		MapFile eager = MapParser.parseFile(file, new DirectoryListing(file.getParentFile()), false);
+		MapFile lazy = MapParser.parseFile(file, new DirectoryListing(file.getParentFile()), true);
+		if (ref == null || eager == null || lazy == null) {
+			if (ref == null && eager == null && lazy == null)
+				return null;
+			return String.format("map rejected (reference: %b, eager: %b, lazy: %b)", ref == null, eager == null, lazy == null);
+		}
+
+		// metadata
+		String error = compareMetadata(ref, eager, "eager");
+		if (error == null)
+			error = compareMetadata(ref, lazy, "lazy");
+		if (error != null)
+			return error;
+
+		// hit objects
+		error = compareObjects(ref.objects, eager.objects, "eager");
+		if (error != null)
+			return error;
+		if (lazy.objects != null)
+			return "lazy map has hit objects loaded";
+		if (lazy.getObjectCount() != ref.objects.size() || lazy.getEndTime() != ref.objects.getEndTime())
+			return String.format("lazy note count/end time %d/%d, expected %d/%d",
+					lazy.getObjectCount(), lazy.getEndTime(), ref.objects.size(), ref.objects.getEndTime());
+		return compareObjects(ref.objects, MapParser.readHitObjects(lazy), "lazy");
+	}
+
+	/**
+	 * Compares the metadata of a map with the reference map.
+	 * @return a description of the first difference, or null if none
+	 */
+	private static String compareMetadata(ReferenceMap ref, MapFile map, String mode) {
+		String audio = (map.audioFilename != null) ? map.audioFilename.getName() : null;
+		if (!equals(ref.audioFilename, audio))
+			return String.format("%s audio file '%s', expected '%s'", mode, audio, ref.audioFilename);
+		if (!equals(ref.title, map.title) || !equals(ref.artist, map.artist) ||
+		    !equals(ref.creator, map.creator) || ref.difficulty != map.difficulty)
+			return String.format("%s metadata '%s|%s|%s|%d', expected '%s|%s|%s|%d'", mode,
+					map.title, map.artist, map.creator, map.difficulty,
+					ref.title, ref.artist, ref.creator, ref.difficulty);
+		return null;
+	}
+
+	/**
+	 * Compares hit objects with the reference hit objects.
+	 * @return a description of the first difference, or null if none
+	 */
+	private static String compareObjects(HitObjectList ref, HitObjectList objects, String mode) {
+		if (objects == null)
+			return String.format("%s hit objects missing", mode);
+		for (int i = 0, n = Math.max(ref.size(), objects.size()); i < n; i++) {
+			if (i >= ref.size() || i >= objects.size())
+				return String.format("%s has %d hit objects, expected %d", mode, objects.size(), ref.size());
+			if (ref.getTime(i) != objects.getTime(i) || ref.getPosition(i) != objects.getPosition(i) ||
+			    ref.getSound(i) != objects.getSound(i))
+				return String.format("%s hit object %d is %d,%d,%d, expected %d,%d,%d", mode, i,
+						objects.getTime(i), objects.getPosition(i), objects.getSound(i),
+						ref.getTime(i), ref.getPosition(i), ref.getSound(i));
+		}
+		return null;
+	}
+
+	/** Returns whether two strings are both null or equal. */
+	private static boolean equals(String a, String b) { return (a == null) ? b == null : a.equals(b); }
+
+	/**
+	 * Parses a map file with the reference (line-based) parser.
+	 * @param file the map file
+	 * @return the map, or null if it has no audio file or no hit objects
+	 * @throws IOException if the file could not be read
+	 */
+	static ReferenceMap parseReference(File file) throws IOException {
+		ReferenceMap map = new ReferenceMap();
+		File dir = file.getParentFile();
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String line = in.readLine();
+			while (line != null) {
+				line = line.trim();
+				if (!isValidLine(line)) {
+					line = in.readLine();
+					continue;
+				}
+				switch (line) {
+				case "[Metadata]":
+					while ((line = in.readLine()) != null) {
+						line = line.trim();
+						if (!isValidLine(line))
+							continue;
+						if (line.charAt(0) == '[')
+							break;
+						int index = line.indexOf(':');
+						if (index == -1)
+							continue;
+						String tag = line.substring(0, index).trim(), value = line.substring(index + 1).trim();
+						try {
+							switch (tag) {
+							case "AudioFilename":
+								String name = null;
+								for (String s : dir.list()) {
+									if (s.equals(value) || (name == null && s.equalsIgnoreCase(value)))
+										name = s;
+								}
+								if (name == null)
+									return null;
+								map.audioFilename = name;
+								break;
+							case "Title":
+								map.title = value;
+								break;
+							case "Artist":
+								map.artist = value;
+								break;
+							case "Creator":
+								map.creator = value;
+								break;
+							case "Difficulty":
+								map.difficulty = Integer.parseInt(value);
+								break;
+							}
+						} catch (Exception e) {}
+					}
+					break;
+				case "[HitObjects]":
+					HitObjectList objects = new HitObjectList();
+					while ((line = in.readLine()) != null) {
+						line = line.trim();
+						if (!isValidLine(line))
+							continue;
+						if (line.charAt(0) == '[')
+							break;
+						try {
+							String[] tokens = line.split(",");
+							int time = Integer.parseInt(tokens[0]);
+							int position = Integer.parseInt(tokens[1]);
+							int sound = Integer.parseInt(tokens[2]);
+							if (HitObjectList.isValid(position, sound))
+								objects.add(time, position, sound);
+						} catch (Exception e) {}
+					}
+					map.objects = objects;
+					break;
+				default:
+					line = in.readLine();
+					break;
+				}
+			}
+		}
+		return (map.audioFilename == null || map.objects == null) ? null : map;
+	}
+
+	/**
+	 * Returns false if the line is too short or commented.
+	 */
+	private static boolean isValidLine(String line) {
+		return (line.length() > 1 && !line.startsWith("//"));
+	}
+
+	/**
+	 * Writes the built-in fixtures (with each line ending) to a temporary directory.
+	 * @param files the list to add the fixture files to
+	 * @return the temporary directory
+	 * @throws IOException if a fixture could not be written
+	 */
+	private static File writeFixtures(List<File> files) throws IOException {
+		File dir = File.createTempFile("windsong", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException(String.format("Failed to create directory '%s'.", dir.getAbsolutePath()));
+		new FileOutputStream(new File(dir, "audio.mp3")).close();
+		Charset charset = Charset.defaultCharset();
+		for (int i = 0; i < FIXTURES.length; i++) {
+			for (int j = 0; j < LINE_ENDINGS.length; j++) {
+				File file = new File(dir, String.format("fixture%02d-%d%s", i, j, Options.MAP_FILE_EXT));
+				try (OutputStream out = new FileOutputStream(file)) {
+					out.write(FIXTURES[i][1].replace("\n", LINE_ENDINGS[j]).getBytes(charset));
+				}
+				files.add(file);
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Adds all text map files in a directory (or the file itself) to a list.
+	 * @param file the file or directory
+	 * @param depth the maximum directory depth to search
+	 * @param files the list to add files to
+	 */
+	static void findMapFiles(File file, int depth, List<File> files) {
+		if (file.isFile()) {
+			if (file.getName().toLowerCase().endsWith(Options.MAP_FILE_EXT))
+				files.add(file);
+		} else if (file.isDirectory() && depth > 0) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children)
+					findMapFiles(child, depth - 1, files);
+			}
+		}
+	}
+
+	/**
+	 * Deletes a directory and the files in it.
+	 */
+	private static void deleteAll(File dir) {
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children)
+				child.delete();
+		}
+		dir.delete();
+	}
+}
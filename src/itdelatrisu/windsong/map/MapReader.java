@@ -0,0 +1,372 @@
+package itdelatrisu.windsong.map;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Line reader for map files that works directly on the file bytes.
+ * <p>
+ * The file is read into a reusable buffer with a single channel read, and
+ * lines, section headers and integers are decoded in place; strings are only
+ * created for metadata values.  Lines are split and trimmed the same way as
+ * {@link java.io.BufferedReader#readLine()} and {@link String#trim()}.
+ */
+public class MapReader {
+	/** Initial buffer size. */
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	/** Maximum buffer size to keep for reuse. */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+	/** Charset for decoding strings (same as {@link java.io.FileReader}). */
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	/** The file contents. */
+	private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+
+	/** Number of bytes in the buffer. */
+	private int limit = 0;
+
+	/** File offset of the first byte in the buffer. */
+	private long baseOffset = 0;
+
+	/** Buffer position of the next line. */
+	private int pos = 0;
+
+	/** Bounds of the current (trimmed) line: [start, end). */
+	private int start = 0, end = 0;
+
+	/** Bounds of the line marked by {@link #mark()}: [start, end). */
+	private int markStart = 0, markEnd = 0;
+
+	/** Whether the end of the file was reached. */
+	private boolean eof = false;
+
+	/** The last hit object read by {@link #readHitObject()}. */
+	private int time, position, sound;
+
+	/**
+	 * Reads a file into the buffer, starting at the given offset.
+	 * @param file the file to read
+	 * @param offset the file offset to start reading from
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void open(File file, long offset) throws IOException {
+		try (FileInputStream in = new FileInputStream(file)) {
+			FileChannel channel = in.getChannel();
+			long size = Math.max(channel.size() - offset, 0);
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(String.format("File '%s' is too large.", file.getName()));
+			if (size > buf.length)
+				buf = new byte[(int) size];
+			else if (buf.length > MAX_RETAINED_BUFFER_SIZE && size <= INITIAL_BUFFER_SIZE)
+				buf = new byte[INITIAL_BUFFER_SIZE];
+
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int) size);
+			while (bb.hasRemaining()) {
+				if (channel.read(bb, offset + bb.position()) < 0)
+					break;
+			}
+			limit = bb.position();
+		}
+		baseOffset = offset;
+		pos = start = end = 0;
+		eof = false;
+	}
+
+	/**
+	 * Advances to the next line.
+	 * @return true if a line was read, false if the end of the file was reached
+	 */
+	public boolean nextLine() {
+		if (pos >= limit) {
+			start = end = limit;
+			eof = true;
+			return false;
+		}
+
+		// find the line terminator ('\n', '\r', or "\r\n")
+		int lineStart = pos, lineEnd = pos;
+		while (lineEnd < limit && buf[lineEnd] != '\n' && buf[lineEnd] != '\r')
+			lineEnd++;
+		pos = lineEnd;
+		if (pos < limit) {
+			if (buf[pos] == '\r' && pos + 1 < limit && buf[pos + 1] == '\n')
+				pos++;
+			pos++;
+		}
+
+		// trim
+		start = trimStart(lineStart, lineEnd);
+		end = trimEnd(start, lineEnd);
+		return true;
+	}
+
+	/**
+	 * Returns whether the end of the file was reached by {@link #nextLine()}.
+	 */
+	public boolean isEndOfFile() { return eof; }
+
+	/**
+	 * Returns the file offset of the line following the current line.
+	 */
+	public long getNextLineOffset() { return baseOffset + pos; }
+
+	/**
+	 * Returns false if the current line is too short or commented.
+	 */
+	public boolean isValidLine() {
+		if (end - start < 2)
+			return false;
+		if (buf[start] == '/' && buf[start + 1] == '/')
+			return false;
+
+		// a single multi-byte character is also too short
+		int b = buf[start] & 0xFF;
+		int charBytes = (b >= 0xF0) ? 4 : (b >= 0xE0) ? 3 : (b >= 0xC0) ? 2 : 1;
+		return (end - start > charBytes);
+	}
+
+	/**
+	 * Returns whether the current line is a section header.
+	 * Should only be called on valid lines.
+	 */
+	public boolean isSectionHeader() { return (buf[start] == '['); }
+
+	/**
+	 * Returns whether the current line is equal to the given ASCII bytes.
+	 * @param s the bytes to compare against
+	 */
+	public boolean lineEquals(byte[] s) { return regionEquals(start, end, s); }
+
+	/**
+	 * Returns the index of a character in the current line, or -1 if not found.
+	 * @param c the ASCII character
+	 */
+	public int indexOf(char c) {
+		for (int i = start; i < end; i++) {
+			if (buf[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns whether the (trimmed) tag before a separator is equal to the given ASCII bytes.
+	 * @param separator the separator index (see {@link #indexOf(char)})
+	 * @param s the bytes to compare against
+	 */
+	public boolean tagEquals(int separator, byte[] s) {
+		return regionEquals(start, trimEnd(start, separator), s);
+	}
+
+	/**
+	 * Returns the (trimmed) value after a separator as a string.
+	 * @param separator the separator index (see {@link #indexOf(char)})
+	 */
+	public String getValue(int separator) {
+		int valueStart = trimStart(separator + 1, end);
+		return new String(buf, valueStart, end - valueStart, CHARSET);
+	}
+
+	/**
+	 * Returns the (trimmed) value after a separator as an integer.
+	 * @param separator the separator index (see {@link #indexOf(char)})
+	 * @throws NumberFormatException if the value is not an integer
+	 */
+	public int getIntValue(int separator) {
+		int valueStart = trimStart(separator + 1, end);
+		return parseInt(valueStart, end);
+	}
+
+	/**
+	 * Returns the current line as a string.
+	 */
+	public String getLine() { return new String(buf, start, end - start, CHARSET); }
+
+	/**
+	 * Parses the current line as a hit object ("time,position,sound").
+	 * The values can then be retrieved with {@link #getTime()},
+	 * {@link #getPosition()}, and {@link #getSound()}.
+	 * @throws NumberFormatException if the line is malformed
+	 * @throws IllegalArgumentException if a value is out of range
+	 */
+	public void readHitObject() {
+		int i = start;
+		int j = fieldEnd(i);
+		time = parseInt(i, j);
+		if (j >= end)
+			throw new NumberFormatException(String.format("Missing hit object position: '%s'", getLine()));
+		i = j + 1;
+		j = fieldEnd(i);
+		position = parseInt(i, j);
+		if (j >= end)
+			throw new NumberFormatException(String.format("Missing hit object sound: '%s'", getLine()));
+		i = j + 1;
+		j = fieldEnd(i);
+		sound = parseInt(i, j);
+		if (!HitObjectList.isValid(position, sound))
+			throw new IllegalArgumentException(String.format("Invalid hit object: '%s'", getLine()));
+	}
+
+	/**
+	 * Returns whether the current line would be parsed as a hit object by
+	 * {@link #readHitObject()}, without parsing it or throwing exceptions.
+	 */
+	public boolean isHitObject() {
+		int i = start;
+		int j = fieldEnd(i);
+		if (!isInt(i, j) || j >= end)
+			return false;
+		i = j + 1;
+		j = fieldEnd(i);
+		if (!isInt(i, j) || j >= end)
+			return false;
+		int p = parseInt(i, j);
+		i = j + 1;
+		j = fieldEnd(i);
+		return isInt(i, j) && HitObjectList.isValid(p, parseInt(i, j));
+	}
+
+	/**
+	 * Marks the current line, to be parsed later by {@link #readMarkedHitObject()}.
+	 * The mark is valid until the next {@link #open(File, long)}.
+	 */
+	public void mark() {
+		markStart = start;
+		markEnd = end;
+	}
+
+	/**
+	 * Parses the marked line as a hit object (see {@link #readHitObject()}).
+	 * The current line is not changed.
+	 * @throws NumberFormatException if the line is malformed
+	 * @throws IllegalArgumentException if a value is out of range
+	 */
+	public void readMarkedHitObject() {
+		int lineStart = start, lineEnd = end;
+		start = markStart;
+		end = markEnd;
+		try {
+			readHitObject();
+		} finally {
+			start = lineStart;
+			end = lineEnd;
+		}
+	}
+
+	/** Returns the time of the last hit object read. */
+	public int getTime() { return time; }
+
+	/** Returns the position of the last hit object read. */
+	public int getPosition() { return position; }
+
+	/** Returns the hit sound type of the last hit object read. */
+	public int getSound() { return sound; }
+
+	/**
+	 * Returns the index of the next ',' in the current line, or the line end.
+	 * @param from the index to start searching from
+	 */
+	private int fieldEnd(int from) {
+		int i = from;
+		while (i < end && buf[i] != ',')
+			i++;
+		return i;
+	}
+
+	/**
+	 * Parses a decimal integer from the buffer (same rules as {@link Integer#parseInt(String)}).
+	 * @param from the start index (inclusive)
+	 * @param to the end index (exclusive)
+	 * @throws NumberFormatException if the bytes are not a valid integer
+	 */
+	private int parseInt(int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+			negative = (buf[i] == '-');
+			i++;
+		}
+		if (i >= to)
+			throw new NumberFormatException(String.format("Invalid integer in line: '%s'", getLine()));
+
+		long max = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException(String.format("Invalid integer in line: '%s'", getLine()));
+			value = value * 10 + digit;
+			if (value > max)
+				throw new NumberFormatException(String.format("Integer out of range in line: '%s'", getLine()));
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * Returns whether the buffer region is a valid decimal integer (see {@link #parseInt(int, int)}).
+	 * @param from the start index (inclusive)
+	 * @param to the end index (exclusive)
+	 */
+	private boolean isInt(int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+			negative = (buf[i] == '-');
+			i++;
+		}
+		if (i >= to)
+			return false;
+
+		long max = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9)
+				return false;
+			value = value * 10 + digit;
+			if (value > max)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the buffer region is equal to the given ASCII bytes.
+	 * @param from the start index (inclusive)
+	 * @param to the end index (exclusive)
+	 * @param s the bytes to compare against
+	 */
+	private boolean regionEquals(int from, int to, byte[] s) {
+		if (to - from != s.length)
+			return false;
+		for (int i = 0; i < s.length; i++) {
+			if (buf[from + i] != s[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the first index in [from, to) that is not whitespace, or {@code to}.
+	 */
+	private int trimStart(int from, int to) {
+		while (from < to && (buf[from] & 0xFF) <= ' ')
+			from++;
+		return from;
+	}
+
+	/**
+	 * Returns the index after the last byte in [from, to) that is not whitespace, or {@code from}.
+	 */
+	private int trimEnd(int from, int to) {
+		while (to > from && (buf[to - 1] & 0xFF) <= ' ')
+			to--;
+		return to;
+	}
+}
@@ -0,0 +1,316 @@
+package itdelatrisu.windsong.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory trigram index for searching maps by artist, title, and creator.
+ * <p>
+ * Maps with the same search text (e.g. difficulties of the same song) share
+ * a document.  Each document is assigned an increasing id, and the index
+ * stores a sorted posting list of document ids for each trigram.  A query
+ * term of 3 or more characters is matched by intersecting the posting lists
+ * of its trigrams, and all candidates are then verified with a substring
+ * check, so shorter terms are matched by scanning the candidates.
+ * <p>
+ * Removed documents are only marked as deleted; the index is rebuilt once
+ * more than half of the documents are deleted.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class MapSearchIndex {
+	/** Trigram length. */
+	private static final int GRAM_LENGTH = 3;
+
+	/** Indexed document. */
+	private static class Document {
+		/** The document id. */
+		public final int id;
+
+		/** The search text (lowercase). */
+		public final String text;
+
+		/** Number of maps with this text (0 if deleted). */
+		public int count = 0;
+
+		/**
+		 * Constructor.
+		 * @param id the document id
+		 * @param text the search text
+		 */
+		public Document(int id, String text) {
+			this.id = id;
+			this.text = text;
+		}
+	}
+
+	/** Growable sorted list of document ids. */
+	private static class Postings {
+		/** The ids. */
+		public int[] ids = new int[4];
+
+		/** Number of ids. */
+		public int size = 0;
+
+		/** Appends an id (must be greater than all ids in the list). */
+		public void add(int id) {
+			if (size > 0 && ids[size - 1] == id)
+				return;
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+	}
+
+	/** All documents, by id (null if deleted). */
+	private final List<Document> documents = new ArrayList<Document>();
+
+	/** Documents by search text. */
+	private final Map<String, Document> textIndex = new HashMap<String, Document>();
+
+	/** Document for each indexed map. */
+	private final IdentityHashMap<MapFile, Document> mapIndex = new IdentityHashMap<MapFile, Document>();
+
+	/** Posting lists, by trigram. */
+	private final Map<Long, Postings> postings = new HashMap<Long, Postings>();
+
+	/** Number of deleted documents. */
+	private int deleted = 0;
+
+	/** The list of maps last searched. */
+	private List<MapFile> lastMaps;
+
+	/** The document id of each map in {@link #lastMaps} (or -1 if not indexed). */
+	private int[] lastMapDocuments;
+
+	/**
+	 * Adds maps to the index.
+	 * @param maps the maps to add
+	 */
+	public synchronized void addAll(Collection<MapFile> maps) {
+		for (MapFile map : maps)
+			add(map);
+	}
+
+	/**
+	 * Adds a map to the index (if not already indexed).
+	 * @param map the map to add
+	 */
+	public synchronized void add(MapFile map) {
+		if (mapIndex.containsKey(map))
+			return;
+
+		String text = getSearchText(map);
+		Document doc = textIndex.get(text);
+		if (doc == null) {
+			doc = new Document(documents.size(), text);
+			documents.add(doc);
+			textIndex.put(text, doc);
+			for (int i = 0, n = text.length() - GRAM_LENGTH; i <= n; i++) {
+				Long gram = getGram(text, i);
+				Postings p = postings.get(gram);
+				if (p == null) {
+					p = new Postings();
+					postings.put(gram, p);
+				}
+				p.add(doc.id);
+			}
+		}
+		doc.count++;
+		mapIndex.put(map, doc);
+		lastMaps = null;
+	}
+
+	/**
+	 * Removes maps from the index.
+	 * @param maps the maps to remove
+	 */
+	public synchronized void removeAll(Collection<MapFile> maps) {
+		for (MapFile map : maps)
+			remove(map);
+		if (deleted > documents.size() / 2)
+			rebuild();
+	}
+
+	/**
+	 * Removes a map from the index.
+	 * @param map the map to remove
+	 */
+	private void remove(MapFile map) {
+		Document doc = mapIndex.remove(map);
+		if (doc == null)
+			return;
+		lastMaps = null;
+		if (--doc.count > 0)
+			return;
+
+		// mark the document as deleted
+		documents.set(doc.id, null);
+		textIndex.remove(doc.text);
+		deleted++;
+	}
+
+	/**
+	 * Rebuilds the index without the deleted documents.
+	 */
+	private void rebuild() {
+		List<MapFile> maps = new ArrayList<MapFile>(mapIndex.keySet());
+		documents.clear();
+		textIndex.clear();
+		mapIndex.clear();
+		postings.clear();
+		deleted = 0;
+		for (MapFile map : maps)
+			add(map);
+	}
+
+	/**
+	 * Returns the maps in a list that match a query, in the same order.
+	 * <p>
+	 * The query is split into terms at whitespace, and a map matches if its
+	 * artist, title, or creator contains every term (ignoring case).
+	 * Maps that are not indexed never match.  The list must not be modified
+	 * after being passed to this method, since per-list data is reused
+	 * when the same list is searched again.
+	 * @param query the search query
+	 * @param maps the maps to filter
+	 * @return the matching maps
+	 */
+	public synchronized List<MapFile> search(String query, List<MapFile> maps) {
+		BitSet mask = getMask(query, maps);
+		List<MapFile> results = new ArrayList<MapFile>(mask.cardinality());
+		for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1))
+			results.add(maps.get(i));
+		return results;
+	}
+
+	/**
+	 * Returns the indices of the maps in a list that match a query.
+	 * @param query the search query
+	 * @param maps the maps to filter
+	 * @return the list indices of the matching maps
+	 * @see #search(String, List)
+	 */
+	public synchronized BitSet getMask(String query, List<MapFile> maps) {
+		BitSet matches = getMatches(query);
+		BitSet mask = new BitSet(maps.size());
+		if (matches.isEmpty())
+			return mask;
+
+		// look up the document for each map (only once per list)
+		if (maps != lastMaps) {
+			int[] mapDocuments = new int[maps.size()];
+			for (int i = 0; i < mapDocuments.length; i++) {
+				Document doc = mapIndex.get(maps.get(i));
+				mapDocuments[i] = (doc != null) ? doc.id : -1;
+			}
+			lastMaps = maps;
+			lastMapDocuments = mapDocuments;
+		}
+
+		for (int i = 0; i < lastMapDocuments.length; i++) {
+			int id = lastMapDocuments[i];
+			if (id != -1 && matches.get(id))
+				mask.set(i);
+		}
+		return mask;
+	}
+
+	/**
+	 * Returns the ids of all documents that match a query.
+	 * @param query the search query
+	 */
+	private BitSet getMatches(String query) {
+		String[] terms = query.toLowerCase().trim().split("\\s+");
+		BitSet matches = new BitSet(documents.size());
+
+		// intersect the posting lists of all trigrams
+		int[] candidates = null;
+		int candidateCount = 0;
+		for (String term : terms) {
+			for (int i = 0, n = term.length() - GRAM_LENGTH; i <= n; i++) {
+				Postings p = postings.get(getGram(term, i));
+				if (p == null)
+					return matches;  // no document contains this trigram
+				if (candidates == null) {
+					candidates = Arrays.copyOf(p.ids, p.size);
+					candidateCount = p.size;
+				} else
+					candidateCount = intersect(candidates, candidateCount, p);
+				if (candidateCount == 0)
+					return matches;
+			}
+		}
+
+		// verify candidates (or scan all documents if no term was long enough)
+		if (candidates == null) {
+			for (Document doc : documents) {
+				if (doc != null && containsAll(doc.text, terms))
+					matches.set(doc.id);
+			}
+		} else {
+			for (int i = 0; i < candidateCount; i++) {
+				Document doc = documents.get(candidates[i]);
+				if (doc != null && containsAll(doc.text, terms))
+					matches.set(doc.id);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Intersects a sorted array of ids with a posting list, in place.
+	 * @param ids the ids
+	 * @param size the number of ids
+	 * @param p the posting list
+	 * @return the new number of ids
+	 */
+	private static int intersect(int[] ids, int size, Postings p) {
+		int count = 0;
+		for (int i = 0, j = 0; i < size && j < p.size; ) {
+			int a = ids[i], b = p.ids[j];
+			if (a < b)
+				i++;
+			else if (a > b)
+				j++;
+			else {
+				ids[count++] = a;
+				i++;
+				j++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns whether a string contains all terms.
+	 */
+	private static boolean containsAll(String text, String[] terms) {
+		for (String term : terms) {
+			if (!text.contains(term))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the trigram starting at an index in a string.
+	 */
+	private static Long getGram(String s, int index) {
+		return ((long) s.charAt(index) << 32) | ((long) s.charAt(index + 1) << 16) | s.charAt(index + 2);
+	}
+
+	/**
+	 * Returns the lowercase search text for a map.
+	 * Fields are separated by a newline, so terms never match across fields.
+	 */
+	private static String getSearchText(MapFile map) {
+		return String.format("%s\n%s\n%s", map.artist, map.title, map.creator).toLowerCase();
+	}
+}
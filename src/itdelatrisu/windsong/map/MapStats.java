@@ -0,0 +1,145 @@
+package itdelatrisu.windsong.map;
+
+import java.util.Arrays;
+
+/**
+ * Statistics computed from the hit objects of a map (see {@link MapAnalyzer}).
+ */
+public class MapStats {
+	/** Length of a density curve interval (in ms). */
+	public static final int DENSITY_INTERVAL = 1000;
+
+	/** Maximum number of density curve intervals (later notes are counted in the last interval). */
+	private static final int DENSITY_MAX_LENGTH = 3600;
+
+	/** Number of columns in the gamepad grid. */
+	private static final int GRID_COLUMNS = 3;
+
+	/** Minimum time between hit objects used for strain (in ms), so chords do not dominate. */
+	private static final int STRAIN_MIN_DELTA = 50;
+
+	/** Fraction of the strain remaining after one second. */
+	private static final double STRAIN_DECAY = 0.3;
+
+	/** Length of a strain section (in ms). */
+	private static final int STRAIN_SECTION = 400;
+
+	/** Weight of each section peak, relative to the next highest. */
+	private static final double STRAIN_WEIGHT = 0.9;
+
+	/** Time between the first and last hit objects (in ms). */
+	public final int duration;
+
+	/** Average number of notes per second. */
+	public final float averageNps;
+
+	/** Highest number of notes in any one-second window. */
+	public final int peakNps;
+
+	/** Lane travel strain rating (higher is harder). */
+	public final float strain;
+
+	/** Number of notes in each {@link #DENSITY_INTERVAL}, starting at time 0. */
+	private final short[] density;
+
+	/**
+	 * Constructor.
+	 * @param duration the time between the first and last hit objects (in ms)
+	 * @param averageNps the average number of notes per second
+	 * @param peakNps the highest number of notes in any one-second window
+	 * @param strain the lane travel strain rating
+	 * @param density the number of notes in each density interval
+	 */
+	public MapStats(int duration, float averageNps, int peakNps, float strain, short[] density) {
+		this.duration = duration;
+		this.averageNps = averageNps;
+		this.peakNps = peakNps;
+		this.strain = strain;
+		this.density = density;
+	}
+
+	/**
+	 * Computes the statistics for a list of hit objects.
+	 * @param objects the hit objects (in time order)
+	 */
+	public static MapStats compute(HitObjectList objects) {
+		int size = objects.size();
+		if (size == 0)
+			return new MapStats(0, 0f, 0, 0f, new short[0]);
+
+		int startTime = objects.getTime(0), endTime = objects.getTime(size - 1);
+		int duration = endTime - startTime;
+		float averageNps = (duration > 0) ? size * 1000f / duration : size;
+
+		// density curve
+		int maxTime = 0;
+		for (int i = 0; i < size; i++)
+			maxTime = Math.max(maxTime, objects.getTime(i));
+		short[] density = new short[Math.min(maxTime / DENSITY_INTERVAL + 1, DENSITY_MAX_LENGTH)];
+		for (int i = 0; i < size; i++) {
+			int interval = Math.min(Math.max(objects.getTime(i), 0) / DENSITY_INTERVAL, density.length - 1);
+			if (density[interval] < Short.MAX_VALUE)
+				density[interval]++;
+		}
+
+		// peak notes per second (sliding window)
+		int peakNps = 0;
+		for (int i = 0, j = 0; i < size; i++) {
+			while (objects.getTime(i) - objects.getTime(j) >= 1000)
+				j++;
+			peakNps = Math.max(peakNps, i - j + 1);
+		}
+
+		return new MapStats(duration, averageNps, peakNps, computeStrain(objects), density);
+	}
+
+	/**
+	 * Computes the lane travel strain of a list of hit objects.
+	 * <p>
+	 * Each note adds strain proportional to the distance moved on the grid
+	 * (plus one) divided by the time since the previous note, and strain
+	 * decays exponentially over time.  The peak strain of each section is
+	 * recorded, and the rating is the weighted sum of the section peaks
+	 * in decreasing order, so short hard sections count less than long ones.
+	 */
+	private static float computeStrain(HitObjectList objects) {
+		int size = objects.size();
+		int firstSection = objects.getTime(0) / STRAIN_SECTION;
+		double[] peaks = new double[Math.max(objects.getEndTime() / STRAIN_SECTION - firstSection, 0) + 1];
+		double strain = 0;
+		for (int i = 1; i < size; i++) {
+			int delta = Math.max(objects.getTime(i) - objects.getTime(i - 1), STRAIN_MIN_DELTA);
+			int from = objects.getPosition(i - 1), to = objects.getPosition(i);
+			double dx = (to % GRID_COLUMNS) - (from % GRID_COLUMNS), dy = (to / GRID_COLUMNS) - (from / GRID_COLUMNS);
+			double travel = Math.sqrt(dx * dx + dy * dy);
+			strain = strain * Math.pow(STRAIN_DECAY, delta / 1000.0) + (1 + travel) * 100.0 / delta;
+			int section = Math.min(Math.max(objects.getTime(i) / STRAIN_SECTION - firstSection, 0), peaks.length - 1);
+			peaks[section] = Math.max(peaks[section], strain);
+		}
+
+		Arrays.sort(peaks);
+		double rating = 0, weight = 1;
+		for (int i = peaks.length - 1; i >= 0 && peaks[i] > 0; i--) {
+			rating += peaks[i] * weight;
+			weight *= STRAIN_WEIGHT;
+		}
+		return (float) (rating * (1 - STRAIN_WEIGHT));
+	}
+
+	/**
+	 * Returns the number of density curve intervals.
+	 */
+	public int getDensityLength() { return density.length; }
+
+	/**
+	 * Returns the number of notes in a density curve interval.
+	 * @param index the interval index (see {@link #DENSITY_INTERVAL})
+	 */
+	public int getDensity(int index) { return density[index]; }
+
+	@Override
+	public String toString() {
+		return String.format("duration=%d, averageNps=%.2f, peakNps=%d, strain=%.2f",
+				duration, averageNps, peakNps, strain);
+	}
+}
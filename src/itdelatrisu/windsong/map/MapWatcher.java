@@ -0,0 +1,218 @@
+package itdelatrisu.windsong.map;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.newdawn.slick.util.Log;
+
+import itdelatrisu.windsong.ErrorHandler;
+
+/**
+ * Watches the map directory for changes and updates the map list in the background.
+ * <p>
+ * The root directory and each map directory in it are watched.  Changes are
+ * collected until no events arrive for {@link #QUIET_PERIOD} ms (or for at most
+ * {@link #MAX_DELAY} ms), and then only the changed map directories are parsed
+ * (see {@link MapParser#updateDirectories(java.util.Collection)}), so copying in
+ * a large song pack results in a few batched updates.
+ */
+public class MapWatcher {
+	/** Time without events (in ms) after which collected changes are applied. */
+	private static final int QUIET_PERIOD = 1000;
+
+	/** Maximum time (in ms) to keep collecting changes before applying them. */
+	private static final int MAX_DELAY = 10000;
+
+	/** The watcher thread. */
+	private static Thread thread;
+
+	/** The watch service. */
+	private static WatchService watcher;
+
+	/** Whether the watcher is running. */
+	private static volatile boolean running = false;
+
+	// This class should not be instantiated.
+	private MapWatcher() {}
+
+	/**
+	 * Starts watching a map directory.
+	 * Does nothing if the watcher is already running.
+	 * @param root the root map directory
+	 */
+	public static synchronized void start(final File root) {
+		if (thread != null)
+			return;
+
+		final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+		final Path rootPath = root.toPath();
+		try {
+			watcher = rootPath.getFileSystem().newWatchService();
+			keys.put(rootPath.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), rootPath);
+			registerAll(watcher, rootPath, keys);
+		} catch (IOException e) {
+			ErrorHandler.error(String.format("Failed to watch map directory '%s'.", root.getAbsolutePath()), e, false);
+			close();
+			return;
+		}
+
+		running = true;
+		final WatchService ws = watcher;
+		thread = new Thread("MapWatcher") {
+			@Override
+			public void run() { watch(ws, rootPath, keys); }
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the map directory.
+	 */
+	public static synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		close();
+	}
+
+	/**
+	 * Watches for events until stopped.
+	 * @param watcher the watch service
+	 * @param root the root map directory
+	 * @param keys the registered directories
+	 */
+	private static void watch(WatchService watcher, Path root, Map<WatchKey, Path> keys) {
+		Set<File> changed = new HashSet<File>();
+		long firstChangeTime = 0;
+		try {
+			while (running) {
+				// wait for events (or for the quiet period to end)
+				WatchKey key = (changed.isEmpty()) ? watcher.take() : watcher.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					Path dir = keys.get(key);
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == OVERFLOW) {
+							// events were lost: update everything
+							registerAll(watcher, root, keys);
+							changed.addAll(getAllDirectories(root));
+							continue;
+						}
+						if (dir == null)
+							continue;
+						Path child = dir.resolve((Path) event.context());
+						if (dir.equals(root)) {
+							// a map directory was added, removed, or renamed
+							changed.add(child.toFile());
+							if (event.kind() == ENTRY_CREATE && Files.isDirectory(child))
+								register(watcher, child, keys);
+						} else
+							changed.add(dir.toFile());
+					}
+					if (!key.reset())
+						keys.remove(key);  // directory is gone
+
+					// keep collecting events
+					long time = System.currentTimeMillis();
+					if (!changed.isEmpty() && firstChangeTime == 0)
+						firstChangeTime = time;
+					if (time - firstChangeTime < MAX_DELAY)
+						continue;
+				}
+
+				// apply changes
+				if (!changed.isEmpty()) {
+					if (!MapParser.updateDirectories(changed))
+						break;
+					changed.clear();
+				}
+				firstChangeTime = 0;
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Registers a directory with the watch service.
+	 * Directories that cannot be registered (e.g. already deleted) are skipped.
+	 * @param watcher the watch service
+	 * @param dir the directory
+	 * @param keys the registered directories
+	 */
+	private static void register(WatchService watcher, Path dir, Map<WatchKey, Path> keys) {
+		try {
+			keys.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+		} catch (IOException e) {
+			Log.warn(String.format("Failed to watch directory '%s'.", dir), e);
+		}
+	}
+
+	/**
+	 * Registers all map directories in the root directory that are not registered yet.
+	 * @param watcher the watch service
+	 * @param root the root map directory
+	 * @param keys the registered directories
+	 */
+	private static void registerAll(WatchService watcher, Path root, Map<WatchKey, Path> keys) {
+		File[] dirs = root.toFile().listFiles();
+		if (dirs == null)
+			return;
+		for (File dir : dirs) {
+			Path path = dir.toPath();
+			if (dir.isDirectory() && !keys.containsValue(path))
+				register(watcher, path, keys);
+		}
+	}
+
+	/**
+	 * Returns all map directories: those in the root directory and
+	 * those containing maps in the current map list.
+	 * @param root the root map directory
+	 */
+	private static Set<File> getAllDirectories(Path root) {
+		Set<File> dirs = new HashSet<File>();
+		File[] files = root.toFile().listFiles();
+		if (files != null) {
+			for (File dir : files) {
+				if (dir.isDirectory())
+					dirs.add(dir);
+			}
+		}
+		for (MapFile map : MapParser.getMaps())
+			dirs.add(map.getFile().getParentFile());
+		return dirs;
+	}
+
+	/**
+	 * Closes the watch service.
+	 */
+	private static void close() {
+		if (watcher == null)
+			return;
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			Log.warn("Failed to close map directory watcher.", e);
+		}
+		watcher = null;
+	}
+}
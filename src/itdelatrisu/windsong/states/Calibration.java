@@ -0,0 +1,402 @@
+package itdelatrisu.windsong.states;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.lwjgl.input.Keyboard;
+import org.newdawn.slick.Color;
+import org.newdawn.slick.GameContainer;
+import org.newdawn.slick.Graphics;
+import org.newdawn.slick.Input;
+import org.newdawn.slick.SlickException;
+import org.newdawn.slick.state.BasicGameState;
+import org.newdawn.slick.state.StateBasedGame;
+import org.newdawn.slick.state.transition.EasedFadeOutTransition;
+import org.newdawn.slick.state.transition.FadeInTransition;
+
+import itdelatrisu.windsong.App;
+import itdelatrisu.windsong.ErrorHandler;
+import itdelatrisu.windsong.GameImage;
+import itdelatrisu.windsong.HitStatistics;
+import itdelatrisu.windsong.Options;
+import itdelatrisu.windsong.Utils;
+import itdelatrisu.windsong.audio.MusicController;
+import itdelatrisu.windsong.audio.OffsetCalibrator;
+import itdelatrisu.windsong.audio.SoundController;
+import itdelatrisu.windsong.audio.SoundEffect;
+import itdelatrisu.windsong.leap.HitEventQueue;
+import itdelatrisu.windsong.leap.LeapController;
+import itdelatrisu.windsong.leap.LeapListener;
+import itdelatrisu.windsong.map.MapFile;
+import itdelatrisu.windsong.ui.Fonts;
+import itdelatrisu.windsong.ui.UI;
+
+/**
+ * "Calibration" state.
+ * <p>
+ * Plays a click track at a fixed tempo through the music player, and
+ * measures the latency (mean tap error) and jitter (standard deviation)
+ * of keyboard and Leap Motion taps separately.  The keyboard latency gives
+ * the music offset, and the extra latency of Leap Motion taps gives the
+ * Leap Motion offset.  Taps are handled without creating any objects.
+ * <p>
+ * Keyboard taps are timed by their input events rather than when they are
+ * dispatched (at the start of a frame).  Event times are not from
+ * {@link System#nanoTime()}, so the difference between the clocks is
+ * estimated from the taps (see {@link #addKeyTap()}).
+ */
+public class Calibration extends BasicGameState implements LeapListener {
+	/** Click track beat length, in ms (120 BPM). */
+	private static final int BEAT_LENGTH = 500;
+
+	/** Number of beats in the click track (looped). */
+	private static final int BEAT_COUNT = 16;
+
+	/** Number of beats in a bar (the first beat is accented). */
+	private static final int BEATS_PER_BAR = 4;
+
+	/** Click track sample rate, in Hz. */
+	private static final int SAMPLE_RATE = 44100;
+
+	/** Click length, in ms. */
+	private static final int CLICK_LENGTH = 40;
+
+	/** Minimum number of taps to suggest an offset for an input. */
+	private static final int MIN_TAPS = 16;
+
+	/** Fraction of taps ignored at each end when finding the latency. */
+	private static final float TRIM = 0.1f;
+
+	/** The click track map. */
+	private final MapFile clickTrack = new MapFile(null);
+
+	/**
+	 * Keyboard tap errors, with each tap timed at its event time plus the
+	 * dispatch delay of the first tap (see {@link #getKeyShift()}).
+	 */
+	private HitStatistics keyTaps = new HitStatistics();
+
+	/** Dispatch delays of the first keyboard tap and the smallest so far, in ns (see {@link #addKeyTap()}). */
+	private long firstKeyDelay, minKeyDelay;
+
+	/** Whether keyboard event times are unavailable (keyboard taps are then timed at dispatch). */
+	private boolean keyTimesUnavailable = false;
+
+	/** Leap Motion tap errors. */
+	private HitStatistics leapTaps = new HitStatistics();
+
+	/** Leap Motion taps captured since the last update. */
+	private final HitEventQueue leapHits = new HitEventQueue();
+
+	/** The map playing before calibration (or null if none). */
+	private MapFile previousMap;
+
+	/** Suggested offsets (valid if {@link #hasSuggestion}). */
+	private int musicOffset, leapOffset;
+
+	/** Whether offsets can be suggested. */
+	private boolean hasSuggestion = false;
+
+	/** Input and suggestion text (rebuilt when the tap counts change). */
+	private String keyText, leapText, suggestionText;
+
+	/** The tap counts when the text was built. */
+	private int keyTextCount = -1, leapTextCount = -1;
+
+	// game-related variables
+	private StateBasedGame game;
+	private final int state;
+
+	public Calibration(int state) {
+		this.state = state;
+		clickTrack.audioFilename = Options.CLICK_TRACK_FILE;
+		clickTrack.title = "Click Track";
+	}
+
+	@Override
+	public void init(GameContainer container, StateBasedGame game)
+			throws SlickException {
+		this.game = game;
+
+		LeapController.addListener(this);
+	}
+
+	@Override
+	public void render(GameContainer container, StateBasedGame game, Graphics g)
+			throws SlickException {
+		int width = container.getWidth(), height = container.getHeight();
+
+		// background
+		GameImage.BACKGROUND.getImage().draw();
+
+		// text
+		float textX = width * 0.04f, textY = height * 0.03f;
+		Fonts.XLARGE.drawString(textX, textY, "Calibration", Color.white);
+		textY += height * 0.01f + Fonts.XLARGE.getLineHeight();
+		Fonts.MEDIUM.drawString(textX, textY, "Tap along with the clicks: press space, or hit any square with Leap Motion.");
+		textY += Fonts.MEDIUM.getLineHeight() * 1.1f;
+		Fonts.MEDIUM.drawString(textX, textY, "Listen rather than watch.  Press R to start over, or escape to go back.");
+		textY += Fonts.MEDIUM.getLineHeight() * 2f;
+
+		// tap statistics
+		updateText();
+		float statsWidth = width * 0.44f, statsHeight = height * 0.2f;
+		Fonts.LARGE.drawString(textX, textY, keyText, Color.white);
+		Fonts.LARGE.drawString(width - textX - statsWidth, textY, leapText, Color.white);
+		textY += Fonts.LARGE.getLineHeight() * 1.2f;
+		keyTaps.draw(g, textX, textY, statsWidth, statsHeight);
+		leapTaps.draw(g, width - textX - statsWidth, textY, statsWidth, statsHeight);
+		textY += statsHeight + Fonts.MEDIUM.getLineHeight() * 2f;
+		Fonts.MEDIUM.drawString(textX, textY, suggestionText, Color.white);
+
+		UI.draw(g);
+	}
+
+	@Override
+	public void update(GameContainer container, StateBasedGame game, int delta)
+			throws SlickException {
+		UI.update(delta);
+
+		while (!leapHits.isEmpty()) {
+			if (MusicController.isPlaying())
+				leapTaps.add(getTapError(leapHits.peekTime()));
+			leapHits.remove();
+		}
+	}
+
+	@Override
+	public int getID() { return state; }
+
+	@Override
+	public void enter(GameContainer container, StateBasedGame game)
+			throws SlickException {
+		UI.enter();
+		reset();
+		previousMap = MusicController.getMap();
+		if (createClickTrack(clickTrack.audioFilename))
+			MusicController.play(clickTrack, true);
+	}
+
+	@Override
+	public void leave(GameContainer container, StateBasedGame game)
+			throws SlickException {
+		if (previousMap != null)
+			MusicController.play(previousMap, true);
+		else
+			MusicController.reset();
+		previousMap = null;
+	}
+
+	@Override
+	public void mouseWheelMoved(int newValue) {
+		UI.changeVolume((newValue < 0) ? -1 : 1);
+	}
+
+	@Override
+	public void keyPressed(int key, char c) {
+		switch (key) {
+		case Input.KEY_SPACE:
+			// input events are dispatched at the start of the frame
+			if (MusicController.isPlaying())
+				addKeyTap();
+			break;
+		case Input.KEY_ESCAPE:
+			SoundController.playSound(SoundEffect.MENUBACK);
+			game.enterState(App.STATE_TRAINING, new EasedFadeOutTransition(), new FadeInTransition());
+			break;
+		case Input.KEY_R:
+			reset();
+			break;
+		case Input.KEY_ENTER:
+			applyOffsets();
+			break;
+		case Input.KEY_F12:
+			Utils.takeScreenShot();
+			break;
+		}
+	}
+
+	@Override
+	public void onConnect() {}
+
+	@Override
+	public void onDisconnect() {}
+
+	@Override
+	public void onPos(boolean leftHand, int pos) {}
+
+	@Override
+	public void onHit(int pos, long time) {
+		if (game.getCurrentStateID() != this.getID())
+			return;
+		leapHits.add(pos, time);
+	}
+
+	/**
+	 * Returns the error of a tap from the nearest beat, ignoring all offsets.
+	 * @param time the tap time, from {@link System#nanoTime()}
+	 * @return the error, in ms (positive is late)
+	 */
+	private int getTapError(long time) {
+		int position = MusicController.getPosition(time) - MusicController.getOffset();
+		int error = position % BEAT_LENGTH;
+		if (error < 0)
+			error += BEAT_LENGTH;
+		return (error > BEAT_LENGTH / 2) ? error - BEAT_LENGTH : error;
+	}
+
+	/**
+	 * Adds a keyboard tap, timed by its input event (this must be called
+	 * while the event is dispatched).
+	 * <p>
+	 * The dispatch delay of a tap, i.e. the dispatch time minus the event
+	 * time, is the difference between the clocks plus the time the event
+	 * waited to be dispatched.  A tap is timed at its event time plus the
+	 * delay of the first tap; the smallest delay seen is the best estimate
+	 * of the clock difference, and corrects all taps by the same amount.
+	 */
+	private void addKeyTap() {
+		long time = System.nanoTime(), eventTime = Keyboard.getEventNanoseconds();
+		if (eventTime == 0)
+			keyTimesUnavailable = true;
+		if (keyTimesUnavailable) {
+			keyTaps.add(getTapError(time));
+			return;
+		}
+
+		long delay = time - eventTime;
+		if (keyTaps.getCount() == 0)
+			firstKeyDelay = minKeyDelay = delay;
+		else
+			minKeyDelay = Math.min(minKeyDelay, delay);
+		keyTaps.add(getTapError(eventTime + firstKeyDelay));
+	}
+
+	/**
+	 * Returns the correction to add to the keyboard tap errors, in ms
+	 * (the smallest dispatch delay minus the first one).
+	 */
+	private double getKeyShift() {
+		return (keyTimesUnavailable) ? 0 : (minKeyDelay - firstKeyDelay) / 1e6;
+	}
+
+	/**
+	 * Clears all taps.
+	 */
+	private void reset() {
+		keyTaps = new HitStatistics();
+		leapTaps = new HitStatistics();
+		leapHits.clear();
+		keyTextCount = leapTextCount = -1;
+	}
+
+	/**
+	 * Rebuilds the input and suggestion text, and the suggested offsets,
+	 * if the tap counts changed.
+	 */
+	private void updateText() {
+		int keyCount = keyTaps.getCount(), leapCount = leapTaps.getCount();
+		if (keyCount == keyTextCount && leapCount == leapTextCount)
+			return;
+		keyTextCount = keyCount;
+		leapTextCount = leapCount;
+		keyText = getInputText("Keyboard", keyTaps, getKeyShift());
+		if (keyTimesUnavailable && keyCount > 0)
+			keyText += " (not timed precisely, not used)";
+		leapText = getInputText("Leap Motion", leapTaps, 0);
+
+		// keyboard taps give the audio latency; Leap Motion taps add their own
+		// (keyboard taps timed at dispatch are too late by up to a frame, so they are not used)
+		boolean hasKey = (keyCount >= MIN_TAPS && !keyTimesUnavailable), hasLeap = (leapCount >= MIN_TAPS);
+		hasSuggestion = (hasKey || hasLeap);
+		if (!hasSuggestion) {
+			suggestionText = (keyTimesUnavailable) ?
+				String.format("Keyboard taps cannot be timed precisely here; tap at least %d times with Leap Motion to get a suggested offset.", MIN_TAPS) :
+				String.format("Tap at least %d times to get a suggested offset.", MIN_TAPS);
+			return;
+		}
+		double keyLatency = keyTaps.getTrimmedMean(TRIM) + getKeyShift(), leapLatency = leapTaps.getTrimmedMean(TRIM);
+		musicOffset = (int) Math.round(-((hasKey) ? keyLatency : leapLatency)) - OffsetCalibrator.getOffset();
+		if (hasKey && hasLeap)
+			leapOffset = (int) Math.round(keyLatency - leapLatency);
+		else
+			leapOffset = (hasLeap) ? 0 : Options.getLeapOffset();
+		suggestionText = String.format("Suggested music offset: %dms (now %dms)   Leap Motion offset: %dms (now %dms)   Press enter to apply.",
+				musicOffset, Options.getMusicOffset(), leapOffset, Options.getLeapOffset());
+	}
+
+	/**
+	 * Returns the text describing the taps of an input.
+	 * @param name the input name
+	 * @param taps the tap errors
+	 * @param shift the correction to add to the tap errors, in ms
+	 */
+	private static String getInputText(String name, HitStatistics taps, double shift) {
+		if (taps.getCount() == 0)
+			return String.format("%s: no taps", name);
+		return String.format("%s: %d taps, latency %+.1fms, jitter %.1fms",
+				name, taps.getCount(), taps.getMean() + shift, taps.getStandardDeviation());
+	}
+
+	/**
+	 * Applies the suggested offsets and saves the options.
+	 */
+	private void applyOffsets() {
+		updateText();
+		if (!hasSuggestion) {
+			UI.sendBarNotification("Not enough taps to suggest an offset.");
+			return;
+		}
+		Options.setMusicOffset(musicOffset);
+		Options.setLeapOffset(leapOffset);
+		Options.saveOptions();
+		keyTextCount = leapTextCount = -1;
+		UI.sendBarNotification(String.format("Music offset: %dms, Leap Motion offset: %dms",
+				Options.getMusicOffset(), Options.getLeapOffset()));
+	}
+
+	/**
+	 * Writes the click track (a 16-bit mono WAV file), if it does not exist.
+	 * The track length is a whole number of beats, so it can be looped.
+	 * @param file the file to write
+	 * @return true if the click track exists
+	 */
+	private static boolean createClickTrack(File file) {
+		int beatSamples = SAMPLE_RATE * BEAT_LENGTH / 1000;
+		int dataLength = beatSamples * BEAT_COUNT * 2;
+		if (file.isFile() && file.length() == 44 + dataLength)
+			return true;
+
+		ByteBuffer buf = ByteBuffer.allocate(44 + dataLength).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(new byte[] { 'R', 'I', 'F', 'F' }).putInt(36 + dataLength);
+		buf.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+		buf.putInt(16).putShort((short) 1).putShort((short) 1);  // PCM, mono
+		buf.putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16);
+		buf.put(new byte[] { 'd', 'a', 't', 'a' }).putInt(dataLength);
+
+		// decaying sine clicks starting exactly on each beat
+		int clickSamples = SAMPLE_RATE * CLICK_LENGTH / 1000;
+		for (int beat = 0; beat < BEAT_COUNT; beat++) {
+			double frequency = (beat % BEATS_PER_BAR == 0) ? 1500 : 1000;
+			for (int i = 0; i < beatSamples; i++) {
+				double sample = 0;
+				if (i < clickSamples)
+					sample = Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE) * Math.exp(-5.0 * i / clickSamples);
+				buf.putShort((short) (sample * 0.8 * Short.MAX_VALUE));
+			}
+		}
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			out.write(buf.array());
+			return true;
+		} catch (IOException e) {
+			ErrorHandler.error(String.format("Failed to write file '%s'.", file.getAbsolutePath()), e, false);
+			return false;
+		}
+	}
+}
@@ -12,15 +12,22 @@ import org.newdawn.slick.state.transition.FadeInTransition;
 import itdelatrisu.windsong.App;
 import itdelatrisu.windsong.ErrorHandler;
 import itdelatrisu.windsong.GameImage;
+import itdelatrisu.windsong.GameSession;
+import itdelatrisu.windsong.LogicThread;
 import itdelatrisu.windsong.Options;
+import itdelatrisu.windsong.Replay;
+import itdelatrisu.windsong.ScoreDB;
 import itdelatrisu.windsong.ScoreData;
 import itdelatrisu.windsong.Utils;
 import itdelatrisu.windsong.audio.MusicController;
+import itdelatrisu.windsong.audio.OffsetCalibrator;
 import itdelatrisu.windsong.audio.SoundController;
 import itdelatrisu.windsong.audio.SoundEffect;
+import itdelatrisu.windsong.leap.HitEventQueue;
 import itdelatrisu.windsong.leap.LeapController;
 import itdelatrisu.windsong.leap.LeapListener;
 import itdelatrisu.windsong.map.MapFile;
+import itdelatrisu.windsong.map.MapParser;
 import itdelatrisu.windsong.ui.UI;
 
 /**
@@ -30,9 +37,6 @@ public class Game extends BasicGameState implements LeapListener {
 	/** Time before the music starts, in ms. */
 	private static final int MUSIC_ENTER_TIME = 1000;
 
-	/** Time before entering the ranking screen after the last hit object, in ms. */
-	private static final int MUSIC_END_TIME_DELAY = 2000;
-
 	/** Music fade-out time, in milliseconds. */
 	private static final int MUSIC_FADEOUT_TIME = 500;
 
@@ -42,12 +46,90 @@ public class Game extends BasicGameState implements LeapListener {
 	/** The associated map. */
 	private MapFile map;
 
-	/** Current hit object index. */
-	private int objectIndex = 0;
-
 	/** The score data instance. */
 	private ScoreData scoreData;
 
+	/** The gameplay session. */
+	private GameSession session;
+
+	/**
+	 * The music track position source (on the logic thread, the clock
+	 * published by the game thread, see {@link MusicController#updateClock()}).
+	 */
+	private final GameSession.Clock musicClock = new GameSession.Clock() {
+		@Override
+		public int getPosition() { return getTrackPosition(System.nanoTime()); }
+	};
+
+	/** Shows session events on the gamepad. */
+	private static final GameSession.Listener GAMEPAD_LISTENER = new GameSession.Listener() {
+		@Override
+		public void onMapObject(int pos, int timeUntilHit) { UI.getGamepad().sendMapObject(pos, timeUntilHit); }
+
+		@Override
+		public void onHitJudged(int pos, boolean isMapObjectHit) { UI.getGamepad().sendHit(pos, isMapObjectHit); }
+	};
+
+	/** Gamepad event flags (see {@link #gamepadEvents}). */
+	private static final int
+		EVENT_HIT = 0x100,
+		EVENT_MAP_OBJECT_HIT = 0x200,
+		EVENT_POSITION_MASK = 0xFF;
+
+	/** The fixed-rate logic thread (null if the session is updated in each frame). */
+	private LogicThread logicThread;
+
+	/** Scoring state from the logic thread, for display (only with the logic thread). */
+	private ScoreData.SnapshotBuffer snapshots;
+
+	/** The score data to draw (a display copy while the logic thread runs). */
+	private ScoreData drawData;
+
+	/**
+	 * Session events from the logic thread, for the gamepad: map objects (with
+	 * the time they should be hit, from {@link System#nanoTime()}) and hits
+	 * (flagged with {@link #EVENT_HIT} or {@link #EVENT_MAP_OBJECT_HIT}).
+	 */
+	private final HitEventQueue gamepadEvents = new HitEventQueue(1024);
+
+	/** Queues session events for the gamepad (called on the logic thread). */
+	private final GameSession.Listener gamepadEventListener = new GameSession.Listener() {
+		@Override
+		public void onMapObject(int pos, int timeUntilHit) { gamepadEvents.add(pos, System.nanoTime() + timeUntilHit * 1000000L); }
+
+		@Override
+		public void onHitJudged(int pos, boolean isMapObjectHit) { gamepadEvents.add(pos | ((isMapObjectHit) ? EVENT_MAP_OBJECT_HIT : EVENT_HIT), 0); }
+	};
+
+	/** Runs the session on the logic thread. */
+	private final LogicThread.Logic sessionLogic = new LogicThread.Logic() {
+		@Override
+		public boolean tick(int delta) {
+			judgeInput(session.getPosition());
+			session.update(delta);
+			snapshots.write(scoreData);
+			return !session.isFinished() && !session.isFailed();
+		}
+	};
+
+	/** Hits captured since the last update. */
+	private final HitEventQueue hits = new HitEventQueue();
+
+	/** Hand position changes captured since the last update, by hand. */
+	private final HitEventQueue leftHandMoves = new HitEventQueue(), rightHandMoves = new HitEventQueue();
+
+	/** Last hand positions seen by the input thread. */
+	private int leftHandPos = -1, rightHandPos = -1;
+
+	/** The replay being recorded (null if none). */
+	private Replay recording;
+
+	/** The replay being played back (null if none). */
+	private Replay playback;
+
+	/** Index of the next replay event to play back. */
+	private int playbackIndex;
+
 	// game-related variables
 	private StateBasedGame game;
 	private final int state;
@@ -73,11 +155,13 @@ public class Game extends BasicGameState implements LeapListener {
 		// show gamepad
 		UI.getGamepad().draw(g);
 
-		// last hit result
-		scoreData.drawLastHitResult(g);
+		if (drawData != null) {
+			// last hit result
+			drawData.drawLastHitResult(g);
 
-		// draw game elements
-		scoreData.drawGameElements(g);
+			// draw game elements
+			drawData.drawGameElements(g);
+		}
 
 		UI.draw(g);
 	}
@@ -87,41 +171,54 @@ public class Game extends BasicGameState implements LeapListener {
 			throws SlickException {
 		UI.update(delta);
 		UI.getGamepad().update(delta);
-		int trackPosition = MusicController.getPosition();
-
-		// update score data
-		scoreData.update(delta, trackPosition);
+		if (session == null)
+			return;
+		MusicController.updateClock();
 
 		// delay before music starts
 		if (musicEnterTimer > 0) {
+			int trackPosition = session.getPosition();
+			judgeInput(trackPosition);
+			scoreData.update(delta, trackPosition);
 			musicEnterTimer -= delta;
-			if (musicEnterTimer <= 0)
+			if (musicEnterTimer <= 0) {
 				MusicController.playAt(0, false);
+				if (Options.isFixedRateLogic() && playback == null)
+					startLogicThread(container);
+			}
 			return;
 		}
 
+		if (logicThread != null) {
+			// show the results from the logic thread until it stops
+			readGamepadEvents();
+			snapshots.read(drawData);
+			drawData.update(delta, session.getPosition());
+			if (logicThread.isRunning())
+				return;
+			stopLogicThread();
+		} else {
+			// judge hits, then update the session (expire missed objects and send new ones)
+			judgeInput(session.getPosition());
+			session.update(delta);
+		}
+
 		// is the game finished?
-		if (objectIndex >= map.objects.length) {
-			if (trackPosition >= map.getEndTime() + MUSIC_END_TIME_DELAY) {
-				((GameRanking)(game.getState(App.STATE_GAMERANKING))).setScoreData(scoreData);
-				game.enterState(App.STATE_GAMERANKING, new EasedFadeOutTransition(), new FadeInTransition());
+		if (session.isFinished()) {
+			if (playback == null) {
+				OffsetCalibrator.addPlay(scoreData.getHitStatistics());
+				if (recording != null)
+					ScoreDB.add(recording.getMapHash(), recording.getTimestamp(), scoreData);
 			}
+			((GameRanking)(game.getState(App.STATE_GAMERANKING))).setScoreData(scoreData, getReplay());
+			game.enterState(App.STATE_GAMERANKING, new EasedFadeOutTransition(), new FadeInTransition());
 			return;
 		}
 
 		// dead?
-		if (scoreData.getHealth() < 1f && !Options.isNoFail()) {
+		if (session.isFailed()) {
 			MusicController.fadeOut(MUSIC_FADEOUT_TIME);
 			game.enterState(App.STATE_GAMEOVER, new EasedFadeOutTransition(), new FadeInTransition());
-			return;
-		}
-
-		// advance objectIndex
-		while (map.objects[objectIndex].getTime() - trackPosition <= ScoreData.HIT_OBJECT_FADEIN_TIME) {
-			scoreData.sendMapObject(map.objects[objectIndex]);
-			UI.getGamepad().sendMapObject(map.objects[objectIndex].getPosition(), map.objects[objectIndex].getTime() - trackPosition);
-			if (++objectIndex >= map.objects.length)
-				break;
 		}
 	}
 
@@ -138,7 +235,8 @@ public class Game extends BasicGameState implements LeapListener {
 			break;
 		case Input.KEY_SPACE:
 			// TODO for debugging, delete me
-			((GameRanking)(game.getState(App.STATE_GAMERANKING))).setScoreData(scoreData);
+			stopLogicThread();
+			((GameRanking)(game.getState(App.STATE_GAMERANKING))).setScoreData(scoreData, getReplay());
 			game.enterState(App.STATE_GAMERANKING, new EasedFadeOutTransition(), new FadeInTransition());
 		case Input.KEY_F12:
 			Utils.takeScreenShot();
@@ -158,10 +256,24 @@ public class Game extends BasicGameState implements LeapListener {
 		UI.getCursor().hide();
 		UI.getGamepad().reset();
 		map = MusicController.getMap();
-		if (map == null)
-			ErrorHandler.error("Starting game with no map.", null, false);
-		objectIndex = 0;
-		scoreData = new ScoreData(container);
+		if (map == null || MapParser.loadHitObjects(map) == null) {
+			// return to the main menu (e.g. the map file was deleted or changed)
+			ErrorHandler.error((map == null) ? "Starting game with no map." :
+					String.format("Failed to load hit objects for map '%s'.", map), null, false);
+			session = null;
+			scoreData = drawData = null;
+			recording = null;
+			game.enterState(App.STATE_MAINMENU, new EasedFadeOutTransition(), new FadeInTransition());
+			return;
+		}
+		scoreData = new ScoreData(container, map.objects);
+		drawData = scoreData;
+		session = new GameSession(map, scoreData, musicClock, GAMEPAD_LISTENER, Options.isNoFail());
+		hits.clear();
+		leftHandMoves.clear();
+		rightHandMoves.clear();
+		playbackIndex = 0;
+		recording = (playback == null) ? Replay.create(map) : null;
 		musicEnterTimer = MUSIC_ENTER_TIME;
 	}
 
@@ -169,6 +281,123 @@ public class Game extends BasicGameState implements LeapListener {
 	public void leave(GameContainer container, StateBasedGame game)
 			throws SlickException {
 		UI.getCursor().show();
+		stopLogicThread();
+		playback = null;
+	}
+
+	/**
+	 * Plays back a replay the next time the state is entered.
+	 * The replay must be of the current map.
+	 * @param replay the replay
+	 */
+	public void setReplay(Replay replay) { this.playback = replay; }
+
+	/**
+	 * Returns the replay of the current play (recorded or played back), or null if none.
+	 */
+	private Replay getReplay() { return (playback != null) ? playback : recording; }
+
+	/**
+	 * Judges hits at their capture times (or replay hits at their recorded
+	 * times), before missed objects are expired.
+	 * @param trackPosition the track position
+	 */
+	private void judgeInput(int trackPosition) {
+		if (playback != null)
+			playBackEvents(trackPosition);
+		else {
+			recordMoves(leftHandMoves, true);
+			recordMoves(rightHandMoves, false);
+			while (!hits.isEmpty()) {
+				int pos = hits.peekPosition(), time = getTrackPosition(hits.peekTime()) + Options.getLeapOffset();
+				if (recording != null)
+					recording.addHit(time, pos);
+				session.sendHit(pos, time);
+				hits.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the track position at a time.
+	 * @param time the time, from {@link System#nanoTime()}
+	 */
+	private int getTrackPosition(long time) {
+		return (logicThread != null) ? MusicController.getClockPosition(time) : MusicController.getPosition(time);
+	}
+
+	/**
+	 * Moves the session to a fixed-rate logic thread.
+	 * The session, score data, and recording are then only used by that
+	 * thread until {@link #stopLogicThread()}, and a display copy of the
+	 * score data is drawn instead.
+	 * @param container the game container
+	 */
+	private void startLogicThread(GameContainer container) {
+		session.setListener(gamepadEventListener);
+		gamepadEvents.clear();
+		snapshots = new ScoreData.SnapshotBuffer();
+		snapshots.write(scoreData);
+		drawData = new ScoreData(container, map.objects);
+		snapshots.read(drawData);
+		logicThread = new LogicThread(sessionLogic);
+		logicThread.start();
+	}
+
+	/**
+	 * Stops the logic thread (if running) and moves the session back to the
+	 * game thread.
+	 */
+	private void stopLogicThread() {
+		if (logicThread == null)
+			return;
+		logicThread.stop();
+		logicThread = null;
+		readGamepadEvents();
+		session.setListener(GAMEPAD_LISTENER);
+		drawData = scoreData;
+	}
+
+	/**
+	 * Sends the session events from the logic thread to the gamepad.
+	 */
+	private void readGamepadEvents() {
+		while (!gamepadEvents.isEmpty()) {
+			int event = gamepadEvents.peekPosition(), pos = event & EVENT_POSITION_MASK;
+			if ((event & (EVENT_HIT | EVENT_MAP_OBJECT_HIT)) != 0)
+				UI.getGamepad().sendHit(pos, (event & EVENT_MAP_OBJECT_HIT) != 0);
+			else
+				UI.getGamepad().sendMapObject(pos, (int) ((gamepadEvents.peekTime() - System.nanoTime()) / 1000000L));
+			gamepadEvents.remove();
+		}
+	}
+
+	/**
+	 * Records the hand position changes in a queue.
+	 * @param moves the queue
+	 * @param leftHand whether the queue is for the left hand
+	 */
+	private void recordMoves(HitEventQueue moves, boolean leftHand) {
+		while (!moves.isEmpty()) {
+			if (recording != null)
+				recording.addPosition(getTrackPosition(moves.peekTime()), leftHand, moves.peekPosition());
+			moves.remove();
+		}
+	}
+
+	/**
+	 * Sends all replay events up to a track position, at their recorded times.
+	 * @param trackPosition the track position
+	 */
+	private void playBackEvents(int trackPosition) {
+		while (playbackIndex < playback.size() && playback.getTime(playbackIndex) <= trackPosition) {
+			int pos = playback.getPosition(playbackIndex);
+			if (playback.isHit(playbackIndex))
+				session.sendHit(pos, playback.getTime(playbackIndex));
+			else
+				UI.getGamepad().onPos(playback.isLeftHand(playbackIndex), pos);
+			playbackIndex++;
+		}
 	}
 
 	@Override
@@ -178,13 +407,26 @@ public class Game extends BasicGameState implements LeapListener {
 	public void onDisconnect() {}
 	
 	@Override
-	public void onPos(boolean leftHand, int pos) {}
+	public void onPos(boolean leftHand, int pos) {
+		// only record changes
+		if (leftHand) {
+			if (pos == leftHandPos)
+				return;
+			leftHandPos = pos;
+		} else {
+			if (pos == rightHandPos)
+				return;
+			rightHandPos = pos;
+		}
+		if (game.getCurrentStateID() != this.getID() || playback != null)
+			return;
+		((leftHand) ? leftHandMoves : rightHandMoves).add(pos, System.nanoTime());
+	}
 
 	@Override
-	public void onHit(int pos) {
-		if (game.getCurrentStateID() != this.getID())
+	public void onHit(int pos, long time) {
+		if (game.getCurrentStateID() != this.getID() || playback != null)
 			return;
-		boolean isMapObjectHit = scoreData.sendHit(pos, MusicController.getPosition()) != ScoreData.MISS;
-		UI.getGamepad().sendHit(pos, isMapObjectHit);
+		hits.add(pos, time);
 	}
 }
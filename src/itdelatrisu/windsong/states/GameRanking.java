@@ -11,6 +11,7 @@ import org.newdawn.slick.state.transition.FadeInTransition;
 
 import itdelatrisu.windsong.App;
 import itdelatrisu.windsong.GameImage;
+import itdelatrisu.windsong.Replay;
 import itdelatrisu.windsong.ScoreData;
 import itdelatrisu.windsong.Utils;
 import itdelatrisu.windsong.audio.MusicController;
@@ -28,6 +29,9 @@ public class GameRanking extends BasicGameState {
 	
 	private ScoreData scoreData;
 
+	/** The replay of the play (null if none). */
+	private Replay replay;
+
 	public GameRanking(int state) {
 		this.state = state;
 	}
@@ -42,7 +46,7 @@ public class GameRanking extends BasicGameState {
 	public void render(GameContainer container, StateBasedGame game, Graphics g)
 			throws SlickException {
 		g.drawImage(GameImage.BACKGROUND.getImage(), 0, 0);
-		scoreData.drawScoreScreen();
+		scoreData.drawScoreScreen(g);
 		UI.draw(g);
 	}
 
@@ -55,9 +59,11 @@ public class GameRanking extends BasicGameState {
 	/**
 	 * Sets the score data for the score screen.
 	 * @param scoreData the score data
+	 * @param replay the replay of the play (or null if none)
 	 */
-	public void setScoreData(ScoreData scoreData) {
+	public void setScoreData(ScoreData scoreData, Replay replay) {
 		this.scoreData = scoreData;
+		this.replay = replay;
 	}
 
 	@Override
@@ -82,6 +88,14 @@ public class GameRanking extends BasicGameState {
 			MusicController.playAt(0, true);
 			game.enterState(App.STATE_MAINMENU, new EasedFadeOutTransition(), new FadeInTransition());
 			break;
+		case Input.KEY_R:
+			// watch the replay
+			if (replay == null)
+				break;
+			SoundController.playSound(SoundEffect.MENUHIT);
+			((Game) game.getState(App.STATE_GAME)).setReplay(replay);
+			game.enterState(App.STATE_GAME, new EasedFadeOutTransition(), new FadeInTransition());
+			break;
 		case Input.KEY_F12:
 			Utils.takeScreenShot();
 			break;
@@ -100,6 +114,8 @@ public class GameRanking extends BasicGameState {
 			throws SlickException {
 		UI.enter();
 		SoundController.playSound(SoundEffect.APPLAUSE);
+		if (replay != null)
+			replay.save();
 	}
 
 	@Override
@@ -1,5 +1,8 @@
 package itdelatrisu.windsong.states;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 
 import org.newdawn.slick.Color;
@@ -8,6 +11,7 @@ import org.newdawn.slick.Graphics;
 import org.newdawn.slick.Image;
 import org.newdawn.slick.Input;
 import org.newdawn.slick.SlickException;
+import org.newdawn.slick.gui.TextField;
 import org.newdawn.slick.state.BasicGameState;
 import org.newdawn.slick.state.StateBasedGame;
 import org.newdawn.slick.state.transition.EasedFadeOutTransition;
@@ -15,12 +19,20 @@ import org.newdawn.slick.state.transition.FadeInTransition;
 
 import itdelatrisu.windsong.App;
 import itdelatrisu.windsong.GameImage;
+import itdelatrisu.windsong.Options;
+import itdelatrisu.windsong.Replay;
+import itdelatrisu.windsong.ScoreDB;
+import itdelatrisu.windsong.ScoreData;
 import itdelatrisu.windsong.Utils;
 import itdelatrisu.windsong.audio.MusicController;
 import itdelatrisu.windsong.audio.SoundController;
 import itdelatrisu.windsong.audio.SoundEffect;
 import itdelatrisu.windsong.map.MapFile;
+import itdelatrisu.windsong.map.MapLibrary;
+import itdelatrisu.windsong.map.MapLibrary.Filter;
+import itdelatrisu.windsong.map.MapLibrary.SortKey;
 import itdelatrisu.windsong.map.MapParser;
+import itdelatrisu.windsong.map.MapStats;
 import itdelatrisu.windsong.ui.Colors;
 import itdelatrisu.windsong.ui.Fonts;
 import itdelatrisu.windsong.ui.KineticScrolling;
@@ -42,6 +54,27 @@ public class MainMenu extends BasicGameState {
 	/** Number of petal types, for the petal streams. */
 	private static final int NUM_PETAL_STREAMS = 4;
 
+	/** All maps in the library (see {@link MapParser#getLibrary()}). */
+	private MapLibrary library;
+
+	/** The maps being displayed: the library, after searching, filtering, and sorting. */
+	private List<MapFile> maps = Collections.<MapFile>emptyList();
+
+	/** The current sort key. */
+	private SortKey sortKey = SortKey.ARTIST;
+
+	/** The selected band for each filter (indexed by {@link Filter#ordinal()}), or -1 if none. */
+	private final int[] filterBands = new int[Filter.values().length];
+
+	/** Description of the current search results, sort key, and filters. */
+	private String resultStatus = "";
+
+	/** Search text field. */
+	private TextField search;
+
+	/** The query for the current search results. */
+	private String lastQuery = "";
+
 	/** Current focused (selected) result. */
 	private int focusIndex = -1;
 
@@ -77,6 +110,7 @@ public class MainMenu extends BasicGameState {
 
 	public MainMenu(int state) {
 		this.state = state;
+		Arrays.fill(filterBands, -1);
 	}
 
 	@Override
@@ -97,6 +131,16 @@ public class MainMenu extends BasicGameState {
 		buttonOffset = buttonHeight * 1.1f;
 		maxResultsShown = (int) ((height - buttonBaseY - (height * 0.05f) + Fonts.LARGE.getLineHeight()) / buttonOffset);
 
+		// search field (right of the logo)
+		int searchWidth = (int) (buttonWidth * 0.3f), searchHeight = Fonts.BOLD.getLineHeight();
+		int searchY = (int) (height * 0.04f + (GameImage.MENU_LOGO.getImage().getHeight() - searchHeight * 2) / 2);
+		search = new TextField(container, Fonts.BOLD, (int) (buttonBaseX + buttonWidth) - searchWidth, searchY, searchWidth, searchHeight);
+		search.setBackgroundColor(Color.transparent);
+		search.setBorderColor(Color.transparent);
+		search.setTextColor(Color.white);
+		search.setConsumeEvents(false);
+		search.setMaxLength(60);
+
 		// petal stream
 		petalStreams = new PetalStream[NUM_PETAL_STREAMS];
 		for (int i = 0; i < NUM_PETAL_STREAMS; ++i)
@@ -123,7 +167,6 @@ public class MainMenu extends BasicGameState {
 			return;
 		}
 
-		List<MapFile> maps = MapParser.getMaps();
 		int numMaps = maps.size();
 		MapFile focusMap = (focusIndex != -1) ? maps.get(focusIndex) : null;
 
@@ -155,6 +198,18 @@ public class MainMenu extends BasicGameState {
 		} else
 			Fonts.MEDIUM.drawString(buttonBaseX, textY, "Select a song and press space to begin.", color);
 
+		// search
+		float searchX = search.getX(), searchY = search.getY();
+		if (search.getText().isEmpty()) {
+			Color hintColor = new Color(Colors.GREEN_SEARCH);
+			hintColor.a = stateTimer.getValue();
+			Fonts.BOLD.drawString(searchX + 3, searchY + 1, "Type to search...", hintColor);
+		} else {
+			g.setColor(color);
+			search.render(container, g);
+		}
+		Fonts.DEFAULT.drawString(searchX + 3, searchY + search.getHeight(), resultStatus, color);
+
 		// map listing
 		clipToResultArea(g);
 		int startResult = (int) (startResultPos.getPosition() / buttonOffset);
@@ -172,6 +227,10 @@ public class MainMenu extends BasicGameState {
 		if (numMaps > maxResultsShown)
 			drawResultScrollbar(g, startResultPos.getPosition(), numMaps * buttonOffset);
 
+		// maps still loading
+		if (MapParser.getParserProgress() != -1 && !Options.isLoadProgressHidden())
+			UI.drawLoadingProgress(g);
+
 		UI.draw(g);
 	}
 
@@ -182,6 +241,13 @@ public class MainMenu extends BasicGameState {
 		for (int i = 0; i < NUM_PETAL_STREAMS; ++i)
 			petalStreams[i].update(delta);
 
+		// pick up library changes and search queries
+		if (!search.getText().equals(lastQuery)) {
+			updateResults();
+			startResultPos.setPosition(0);
+		} else if (MapParser.getLibrary() != library)
+			updateResults();
+
 		// initial load
 		if (currentState != State.FINAL) {
 			if (!stateTimer.update(delta)) {
@@ -197,7 +263,11 @@ public class MainMenu extends BasicGameState {
 			return;
 		}
 
-		startResultPos.setMinMax(0, buttonOffset * (MapParser.getMaps().size() - maxResultsShown));
+		// keep the search field focused (it loses focus when clicking elsewhere)
+		if (!search.hasFocus())
+			search.setFocus(true);
+
+		startResultPos.setMinMax(0, buttonOffset * (maps.size() - maxResultsShown));
 		startResultPos.update(delta);
 		if (focusIndex != -1 && focusTimer < FOCUS_DELAY)
 			focusTimer += delta;
@@ -210,6 +280,9 @@ public class MainMenu extends BasicGameState {
 	public void enter(GameContainer container, StateBasedGame game)
 			throws SlickException {
 		UI.enter();
+		search.setText("");
+		lastQuery = "";
+		updateResults();
 		startResultPos.setPosition(0);
 		focusIndex = -1;
 		for (int i = 0; i < NUM_PETAL_STREAMS; ++i)
@@ -221,6 +294,7 @@ public class MainMenu extends BasicGameState {
 			throws SlickException {
 		currentState = State.FINAL;
 		stateTimer.setTime(stateTimer.getDuration());
+		search.setFocus(false);
 	}
 
 	@Override
@@ -229,7 +303,6 @@ public class MainMenu extends BasicGameState {
 			return;
 
 		// map listing
-		List<MapFile> maps = MapParser.getMaps();
 		int numMaps = maps.size();
 		if (resultAreaContains(x, y)) {
 			startResultPos.pressed();
@@ -248,9 +321,10 @@ public class MainMenu extends BasicGameState {
 						else  // select map, change state
 							game.enterState(App.STATE_TRAINING, new EasedFadeOutTransition(), new FadeInTransition());
 					} else {
-						// set focus and play track
+						// set focus, load hit objects, and play track
 						focusIndex = index;
 						focusTimer = 0;
+						MapParser.loadHitObjects(maps.get(index));
 						MusicController.play(maps.get(index), true);
 					}
 					return;
@@ -295,14 +369,68 @@ public class MainMenu extends BasicGameState {
 	public void keyPressed(int key, char c) {
 		switch (key) {
 		case Input.KEY_ESCAPE:
-			container.exit();
+			// clear the search first
+			if (!search.getText().isEmpty())
+				search.setText("");
+			else
+				container.exit();
 			break;
 		case Input.KEY_SPACE:
+			// spaces are part of the search query (if any)
+			if (!search.getText().trim().isEmpty())
+				break;
+			search.setText("");
+			startFocusedMap();
+			break;
 		case Input.KEY_ENTER:
+			startFocusedMap();
+			break;
+		case Input.KEY_TAB:
+			// change sort key
+			if (currentState != State.FINAL)
+				return;
+			sortKey = sortKey.next();
+			updateResults();
+			UI.sendBarNotification(String.format("Sorted by %s", sortKey.getName().toLowerCase()));
+			break;
+		case Input.KEY_F1:
+		case Input.KEY_F2:
+		case Input.KEY_F3:
+		case Input.KEY_F4:
+		case Input.KEY_F5:
+			// change a filter to its next band (or to none after the last band)
+			if (currentState != State.FINAL)
+				return;
+			Filter filter = Filter.values()[key - Input.KEY_F1];
+			int band = filterBands[filter.ordinal()] + 1;
+			if (band >= filter.getBandCount())
+				band = -1;
+			filterBands[filter.ordinal()] = band;
+			updateResults();
+			UI.sendBarNotification((band == -1) ?
+				String.format("%s filter removed", filter.getName()) :
+				String.format("%s: %s", filter.getName(), filter.getBandName(band)));
+			break;
+		case Input.KEY_F6:
+			// remove all filters
 			if (currentState != State.FINAL)
 				return;
-			if (focusIndex != -1)
-				game.enterState(App.STATE_TRAINING, new EasedFadeOutTransition(), new FadeInTransition());
+			Arrays.fill(filterBands, -1);
+			updateResults();
+			UI.sendBarNotification("Filters removed");
+			break;
+		case Input.KEY_F7:
+			// watch the latest replay of the focused map
+			if (currentState != State.FINAL || focusIndex == -1)
+				return;
+			Replay replay = Replay.getLatest(maps.get(focusIndex));
+			if (replay == null) {
+				UI.sendBarNotification("No replays for this song");
+				break;
+			}
+			SoundController.playSound(SoundEffect.MENUHIT);
+			((Game) game.getState(App.STATE_GAME)).setReplay(replay);
+			game.enterState(App.STATE_GAME, new EasedFadeOutTransition(), new FadeInTransition());
 			break;
 		case Input.KEY_F12:
 			Utils.takeScreenShot();
@@ -310,6 +438,92 @@ public class MainMenu extends BasicGameState {
 		}
 	}
 
+	/**
+	 * Enters the training state for the focused map (if any).
+	 */
+	private void startFocusedMap() {
+		if (currentState != State.FINAL)
+			return;
+		if (focusIndex != -1)
+			game.enterState(App.STATE_TRAINING, new EasedFadeOutTransition(), new FadeInTransition());
+	}
+
+	/**
+	 * Updates the displayed maps for the current library and search query,
+	 * keeping the focused map selected (or clearing the focus if it is no
+	 * longer displayed) and the topmost visible map in place.
+	 */
+	private void updateResults() {
+		MapFile focusMap = (focusIndex != -1) ? maps.get(focusIndex) : null;
+		int topIndex = (int) (startResultPos.getPosition() / buttonOffset);
+		MapFile topMap = (topIndex >= 0 && topIndex < maps.size()) ? maps.get(topIndex) : null;
+		library = MapParser.getLibrary();
+		lastQuery = search.getText();
+
+		// combine the filters and search results, then sort
+		String query = lastQuery.trim();
+		BitSet mask = library.getMask(filterBands);
+		if (!query.isEmpty()) {
+			BitSet matches = MapParser.getSearchIndex().getMask(query, library.getMaps());
+			if (mask == null)
+				mask = matches;
+			else
+				mask.and(matches);
+		}
+		maps = library.query(sortKey, mask);
+		resultStatus = getResultStatus(mask != null);
+
+		// keep the topmost visible map in place (e.g. as maps are inserted above it)
+		if (topMap != null) {
+			int index = indexOf(topMap);
+			if (index != -1)
+				startResultPos.shift((index - topIndex) * buttonOffset);
+		}
+
+		focusIndex = (focusMap != null) ? indexOf(focusMap) : -1;
+	}
+
+	/**
+	 * Returns the index of a map in the displayed maps, or -1 if not displayed.
+	 * The map may have been re-parsed, so maps are also matched by file.
+	 * @param map the map
+	 */
+	private int indexOf(MapFile map) {
+		for (int i = 0, n = maps.size(); i < n; i++) {
+			MapFile m = maps.get(i);
+			if (m == map || m.getFile().equals(map.getFile()))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a description of the current results, sort key, and filters.
+	 * @param filtered whether the results are searched or filtered
+	 */
+	private String getResultStatus(boolean filtered) {
+		StringBuilder sb = new StringBuilder();
+		if (filtered) {
+			int numMaps = maps.size();
+			if (numMaps == 0)
+				sb.append("No matches found");
+			else
+				sb.append(String.format("%d match%s", numMaps, (numMaps == 1) ? "" : "es"));
+			sb.append(", sorted by ");
+		} else
+			sb.append("Sorted by ");
+		sb.append(sortKey.getName().toLowerCase());
+		for (Filter filter : Filter.values()) {
+			int band = filterBands[filter.ordinal()];
+			if (band != -1) {
+				sb.append(", ");
+				sb.append(filter.getBandName(band));
+			}
+		}
+		sb.append('.');
+		return sb.toString();
+	}
+
 	/**
 	 * Returns true if the coordinates are within the bounds of the
 	 * download result button at the given index.
@@ -377,20 +591,31 @@ public class MainMenu extends BasicGameState {
 		g.fillRect(buttonBaseX, y, buttonWidth, buttonHeight);
 		c.a = oldAlpha;
 
-		// grade? (TODO)
-		Image img = GameImage.MUSIC_PLAY.getImage().copy(); // TODO
-		img.setAlpha(alpha);
-		img.drawCentered(textX + img.getWidth() / 2, y + buttonHeight / 2f);
-		textX += img.getWidth() + buttonWidth * 0.001f;
+		// personal best grade
+		ScoreDB.Score best = ScoreDB.getBest(map.hash);
+		Image img = GameImage.MUSIC_PLAY.getImage();
+		float imgWidth = img.getWidth(), imgHeight = img.getHeight();
+		Color color = new Color(1f, 1f, 1f, alpha);
+		if (best != null) {
+			Image gradeImg = ScoreData.getGradeImage(best.grade).getImage();
+			float scale = Math.min(imgWidth / gradeImg.getWidth(), imgHeight / gradeImg.getHeight());
+			float w = gradeImg.getWidth() * scale, h = gradeImg.getHeight() * scale;
+			gradeImg.draw(textX + (imgWidth - w) / 2, y + (buttonHeight - h) / 2f, w, h, color);
+		} else
+			img.draw(textX, y + (buttonHeight - imgHeight) / 2f, color);
+		textX += imgWidth + buttonWidth * 0.001f;
 
 		// text
-		Color color = new Color(1f, 1f, 1f, alpha);
 		Fonts.BOLD.drawString(
 				textX, y + marginY,
 				String.format("%s - %s", map.artist, map.title), color);
-		Fonts.DEFAULT.drawString(
-				textX, y + marginY + Fonts.BOLD.getLineHeight(),
-				String.format("Duration: %s", Utils.getTimeString(map.getEndTime() / 1000)), color);
+		MapStats stats = map.stats;
+		String info = String.format("Duration: %s", Utils.getTimeString(map.getEndTime() / 1000));
+		if (stats != null)
+			info = String.format("%s    Peak: %d NPS", info, stats.peakNps);
+		if (best != null)
+			info = String.format("%s    Best: %,d (%.2f%%)", info, best.score, best.percent);
+		Fonts.DEFAULT.drawString(textX, y + marginY + Fonts.BOLD.getLineHeight(), info, color);
 		Fonts.DEFAULT.drawString(
 				edgeX - Fonts.DEFAULT.getWidth(map.getDifficulty()), y + marginY,
 				map.getDifficulty(), color);
@@ -13,10 +13,12 @@ import org.newdawn.slick.state.StateBasedGame;
 import itdelatrisu.windsong.App;
 import itdelatrisu.windsong.GameImage;
 import itdelatrisu.windsong.Options;
+import itdelatrisu.windsong.ScoreDB;
 import itdelatrisu.windsong.Utils;
 import itdelatrisu.windsong.audio.MusicController;
 import itdelatrisu.windsong.audio.SoundController;
 import itdelatrisu.windsong.map.MapParser;
+import itdelatrisu.windsong.map.MapWatcher;
 import itdelatrisu.windsong.ui.UI;
 import itdelatrisu.windsong.ui.animations.AnimatedValue;
 import itdelatrisu.windsong.ui.animations.AnimationEquation;
@@ -29,7 +31,10 @@ public class Splash extends BasicGameState {
 	private static final int MIN_SPLASH_TIME = 1000;
 
 	/** Whether or not loading has completed. */
-	private boolean finished = false;
+	private volatile boolean finished = false;
+
+	/** Whether or not sounds have been loaded. */
+	private volatile boolean soundsLoaded = false;
 
 	/** Loading thread. */
 	private Thread thread;
@@ -81,13 +86,20 @@ public class Splash extends BasicGameState {
 			thread = new Thread() {
 				@Override
 				public void run() {
-					File mapDir = Options.getMapDir();
-
-					// parse song directory
-					MapParser.parseAllFiles(mapDir);
+					// load scores
+					ScoreDB.start();
 
 					// load sounds
 					SoundController.init();
+					soundsLoaded = true;
+
+					// parse song directory (the main menu is entered after the first batch)
+					File mapDir = Options.getMapDir();
+					MapParser.parseAllFiles(mapDir);
+
+					// watch for library changes
+					if (Options.isMapDirWatched())
+						MapWatcher.start(mapDir);
 
 					finished = true;
 					thread = null;
@@ -100,8 +112,9 @@ public class Splash extends BasicGameState {
 		if (logoAlpha.update(delta))
 			GameImage.WELCOME.getImage().setAlpha(logoAlpha.getValue());
 
-		// change states when loading complete
-		if (finished && logoAlpha.getValue() >= 1f) {
+		// change states once sounds and the first maps are loaded
+		boolean ready = finished || (soundsLoaded && !MapParser.getMaps().isEmpty());
+		if (ready && logoAlpha.getValue() >= 1f) {
 			MusicController.playThemeSong();
 
 			game.enterState(App.STATE_MAINMENU);
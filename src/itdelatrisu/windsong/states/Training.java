@@ -12,14 +12,17 @@ import org.newdawn.slick.state.transition.FadeInTransition;
 
 import itdelatrisu.windsong.App;
 import itdelatrisu.windsong.GameImage;
+import itdelatrisu.windsong.Options;
 import itdelatrisu.windsong.ScoreData;
 import itdelatrisu.windsong.Utils;
 import itdelatrisu.windsong.audio.MusicController;
 import itdelatrisu.windsong.audio.SoundController;
 import itdelatrisu.windsong.audio.SoundEffect;
+import itdelatrisu.windsong.leap.HitEventQueue;
 import itdelatrisu.windsong.leap.LeapController;
 import itdelatrisu.windsong.leap.LeapListener;
 import itdelatrisu.windsong.map.HitObject;
+import itdelatrisu.windsong.map.HitObjectList;
 import itdelatrisu.windsong.ui.Fonts;
 import itdelatrisu.windsong.ui.UI;
 
@@ -30,6 +33,9 @@ public class Training extends BasicGameState implements LeapListener {
 	/** The score data instance. */
 	private ScoreData scoreData;
 
+	/** The hit objects sent so far. */
+	private HitObjectList hitObjects;
+
 	/** The interval between map hit objects, in ms. */
 	private static final int EVENT_INTERVAL = 2000;
 
@@ -39,6 +45,12 @@ public class Training extends BasicGameState implements LeapListener {
 	/** Time since starting training. */
 	private int time = 0;
 
+	/** System time of the last update, from {@link System#nanoTime()}. */
+	private long updateTime;
+
+	/** Hits captured since the last update. */
+	private final HitEventQueue hits = new HitEventQueue();
+
 	/** Whether the click sound was played. */
 	private boolean soundPlayed = false;
 
@@ -79,6 +91,8 @@ public class Training extends BasicGameState implements LeapListener {
 		Fonts.MEDIUM.drawString(width * 0.04f, textY, "Hit the illuminated square when the pattern is fully visible.");
 		textY += Fonts.MEDIUM.getLineHeight() * 1.1f;
 		Fonts.MEDIUM.drawString(width * 0.04f, textY, "When you're ready, click or press space to continue.");
+		textY += Fonts.MEDIUM.getLineHeight() * 1.1f;
+		Fonts.MEDIUM.drawString(width * 0.04f, textY, "Press C to calibrate the audio and input offsets.");
 
 		UI.draw(g);
 	}
@@ -86,13 +100,27 @@ public class Training extends BasicGameState implements LeapListener {
 	@Override
 	public void update(GameContainer container, StateBasedGame game, int delta)
 			throws SlickException {
+		// judge hits at their capture times (relative to the last update)
+		while (!hits.isEmpty()) {
+			int pos = hits.peekPosition();
+			int hitTime = time + (int) ((hits.peekTime() - updateTime) / 1000000L) + Options.getLeapOffset();
+			boolean isMapObjectHit = scoreData.sendHit(pos, hitTime) != ScoreData.MISS;
+			UI.getGamepad().sendHit(pos, isMapObjectHit);
+			hits.remove();
+		}
+
+		// the track may still be loading on entry (e.g. after calibration)
+		if (MusicController.isPlaying())
+			MusicController.pause();
+
 		time += delta;
+		updateTime = System.nanoTime();
 		timeToNext -= delta;
 		if (timeToNext < 0) {
 			int pos = (int) (Math.random() * 9);
 			UI.getGamepad().sendMapObject(pos, ScoreData.HIT_OBJECT_FADEIN_TIME);
-			HitObject hit = new HitObject(time + ScoreData.HIT_OBJECT_FADEIN_TIME, pos, HitObject.SOUND_CLAP);
-			scoreData.sendMapObject(hit);
+			hitObjects.add(time + ScoreData.HIT_OBJECT_FADEIN_TIME, pos, HitObject.SOUND_CLAP);
+			scoreData.sendMapObject(hitObjects.size() - 1);
 
 			soundPlayed = false;
 			timeToNext = EVENT_INTERVAL;
@@ -116,9 +144,12 @@ public class Training extends BasicGameState implements LeapListener {
 		UI.enter();
 		UI.getGamepad().reset();
 		MusicController.pause();
-		scoreData = new ScoreData(container);
+		hitObjects = new HitObjectList();
+		scoreData = new ScoreData(container, hitObjects);
 		timeToNext = EVENT_INTERVAL;
 		time = 0;
+		updateTime = System.nanoTime();
+		hits.clear();
 		soundPlayed = true;
 	}
 
@@ -149,6 +180,9 @@ public class Training extends BasicGameState implements LeapListener {
 		case Input.KEY_ENTER:
 			game.enterState(App.STATE_GAME, new EasedFadeOutTransition(), new FadeInTransition());
 			break;
+		case Input.KEY_C:
+			game.enterState(App.STATE_CALIBRATION, new EasedFadeOutTransition(), new FadeInTransition());
+			break;
 		case Input.KEY_F12:
 			Utils.takeScreenShot();
 			break;
@@ -165,10 +199,9 @@ public class Training extends BasicGameState implements LeapListener {
 	public void onPos(boolean leftHand, int pos) {}
 
 	@Override
-	public void onHit(int pos) {
+	public void onHit(int pos, long time) {
 		if (game.getCurrentStateID() != this.getID())
 			return;
-		boolean isMapObjectHit = scoreData.sendHit(pos, time) != ScoreData.MISS;
-		UI.getGamepad().sendHit(pos, isMapObjectHit);
+		hits.add(pos, time);
 	}
 }
@@ -195,7 +195,7 @@ public class Gamepad implements LeapListener {
 	}
 
 	@Override
-	public void onHit(int pos) {}
+	public void onHit(int pos, long time) {}
 	
 	@Override
 	public void onPos(boolean leftHand, int pos) {
@@ -119,6 +119,16 @@ public class KineticScrolling {
 		setPosition(position + offset);
 	}
 
+	/**
+	 * Shifts the position and target by an offset, without interrupting
+	 * any scrolling in progress.
+	 * @param offset the offset
+	 */
+	public void shift(float offset) {
+		position += offset;
+		target += offset;
+	}
+
 	/**
 	 * Call this when the mouse button has been pressed.
 	 */
@@ -11,6 +11,7 @@ import org.newdawn.slick.Input;
 import org.newdawn.slick.state.StateBasedGame;
 
 import itdelatrisu.windsong.ErrorHandler;
+import itdelatrisu.windsong.FrameTimer;
 import itdelatrisu.windsong.GameImage;
 import itdelatrisu.windsong.Options;
 import itdelatrisu.windsong.Utils;
@@ -87,18 +88,19 @@ public class UI {
 	}
 
 	/**
-	 * Draws the global UI components: cursor, FPS, volume bar, tooltips, bar notifications.
+	 * Draws the global UI components: cursor, FPS, frame timing, volume bar, tooltips, bar notifications.
 	 * @param g the graphics context
 	 */
 	public static void draw(Graphics g) {
 		drawBarNotification(g);
 		drawVolume(g);
 		drawFPS();
+		drawFrameTiming(g);
 		drawTooltip(g);
 	}
 
 	/**
-	 * Draws the global UI components: cursor, FPS, volume bar, tooltips, bar notifications.
+	 * Draws the global UI components: cursor, FPS, frame timing, volume bar, tooltips, bar notifications.
 	 * @param g the graphics context
 	 * @param mouseX the mouse x coordinate
 	 * @param mouseY the mouse y coordinate
@@ -108,6 +110,7 @@ public class UI {
 		drawBarNotification(g);
 		drawVolume(g);
 		drawFPS();
+		drawFrameTiming(g);
 		drawTooltip(g);
 	}
 
@@ -150,6 +153,18 @@ public class UI {
 		);
 	}
 
+	/**
+	 * Draws the frame timing overlay at the top-left corner of the game container.
+	 * If the option is not activated, this will do nothing.
+	 * @param g the graphics context
+	 */
+	public static void drawFrameTiming(Graphics g) {
+		if (!Options.isFrameTimingEnabled())
+			return;
+
+		FrameTimer.draw(g, container.getWidth() * 0.003f, container.getHeight() * 0.003f);
+	}
+
 	/**
 	 * Draws the volume bar on the middle right-hand side of the game container.
 	 * Only draws if the volume has recently been changed using with {@link #changeVolume(int)}.
@@ -398,6 +398,15 @@ public class Music {
 		}
 	}
 
+	/**
+	 * Get the pitch of the music as a factor of it's normal pitch
+	 *
+	 * @return The pitch the music is played at.
+	 */
+	public float getPitch() {
+		return pitch;
+	}
+
 	/**
 	 * Get the individual volume of the music
 	 * @return The volume of this music, still effected by global SoundStore volume. 0 - 1, 1 is Max
@@ -502,4 +511,18 @@ public class Music {
 	public float getPosition () {
 		return sound.getPosition();
 	}
+
+	/**
+	 * The position into the sound at an earlier time, found by stepping back
+	 * from the current (drift-corrected) stream position
+	 * 
+	 * @param time The earlier time, from {@link System#nanoTime()}
+	 * @return The position at that time in seconds.
+	 */
+	public float getPosition (long time) {
+		float position = sound.getPosition();
+		if (!playing())
+			return position;
+		return position - (System.nanoTime() - time) / 1000000000f * pitch;
+	}
 }